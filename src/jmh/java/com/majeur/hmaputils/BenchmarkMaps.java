@@ -0,0 +1,83 @@
+package com.majeur.hmaputils;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.util.Random;
+
+/**
+ * Synthetic inputs shared by benchmarks, deterministic so that runs can be compared.
+ */
+final class BenchmarkMaps {
+
+    static final String SEQUENTIAL = "sequential";
+    static final String PARALLEL = "parallel";
+
+    private BenchmarkMaps() {
+    }
+
+    /**
+     * Reports processed megapixels per second next to the benchmark throughput.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Megapixels {
+
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megapixels = 0;
+        }
+
+        void add(int width, int height) {
+            megapixels += (double) width * height / 1e6;
+        }
+    }
+
+    static ParallelEngine engine(String name) {
+        return PARALLEL.equals(name) ? new ParallelEngine(Runtime.getRuntime().availableProcessors())
+                : ParallelEngine.SEQUENTIAL;
+    }
+
+    /**
+     * Rolling hills with some noise, covering most of the 16bit range.
+     */
+    static BufferedImage heightmap(int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_USHORT_GRAY);
+        short[] data = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+        Random random = new Random(size);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                double hills = Math.sin(x * 12.0 / size) * Math.cos(y * 9.0 / size);
+                double ridges = Math.abs(Math.sin((x + 2 * y) * 40.0 / size));
+                data[y * size + x] = (short) (32768 + 20000 * hills + 8000 * ridges + random.nextInt(256));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Track mask as decoded from a RGB png, with red track stripes and green wet patches.
+     */
+    static BufferedImage trackMask(int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int i = (y * size + x) * 3; // b, g, r
+                if (Math.abs(x - y) < size / 64 || Math.abs(x + y - size) < size / 64)
+                    data[i + 2] = (byte) (128 + (x & 127));
+                else if ((x / 64 + y / 64) % 7 == 0)
+                    data[i + 1] = (byte) (64 + (y & 127));
+            }
+        }
+        return image;
+    }
+}
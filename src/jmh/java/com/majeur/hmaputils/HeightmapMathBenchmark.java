@@ -0,0 +1,131 @@
+package com.majeur.hmaputils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of each {@link HeightmapMath} stage, every stage working on the results of the previous ones.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HeightmapMathBenchmark {
+
+    private static final int[] CUSTOM_COLORS = {0x804020, 0x408020, 0x204080, 0x000000};
+
+    @State(Scope.Thread)
+    public static class MapState {
+
+        @Param({"1024", "4096", "8192"})
+        public int size;
+
+        @Param({BenchmarkMaps.SEQUENTIAL, BenchmarkMaps.PARALLEL})
+        public String engine;
+
+        ParallelEngine parallelEngine;
+        HeightmapMath map, integerMap, smoothedScharrMap;
+        BufferedImage trackMask;
+        int[] rgbMask, customMap;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            parallelEngine = BenchmarkMaps.engine(engine);
+            BufferedImage heightmap = BenchmarkMaps.heightmap(size);
+            short[] data = ((DataBufferUShort) heightmap.getRaster().getDataBuffer()).getData();
+            map = new HeightmapMath(size, size, size, data);
+            map.setEngine(parallelEngine);
+            integerMap = new HeightmapMath(size, size, size, data);
+            integerMap.setEngine(parallelEngine);
+            integerMap.setIntegerGradients(true);
+            smoothedScharrMap = new HeightmapMath(size, size, size, data);
+            smoothedScharrMap.setEngine(parallelEngine);
+            smoothedScharrMap.setGradientOperator(GradientOperator.forName("scharr", true));
+            map.calculateGradients();
+            map.calculateFusedGradientNorm(1.0);
+            rgbMask = new int[size * size];
+            customMap = new int[size * size];
+            trackMask = BenchmarkMaps.trackMask(size);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            parallelEngine.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int[] calculateRGImage(MapState state, BenchmarkMaps.Megapixels counter) {
+        state.map.calculateRGImage();
+        counter.add(state.size, state.size);
+        return state.map.rgImageData;
+    }
+
+    @Benchmark
+    public double[][] calculateGradients(MapState state, BenchmarkMaps.Megapixels counter) {
+        state.map.calculateGradients();
+        counter.add(state.size, state.size);
+        return state.map.gradientX;
+    }
+
+    @Benchmark
+    public short[] calculateGradientNorm(MapState state, BenchmarkMaps.Megapixels counter) {
+        state.map.calculateGradientNorm(1.0);
+        counter.add(state.size, state.size);
+        return state.map.gradientNorm;
+    }
+
+    @Benchmark
+    public short[] calculateFusedGradientNorm(MapState state, BenchmarkMaps.Megapixels counter) {
+        state.map.calculateFusedGradientNorm(1.0);
+        counter.add(state.size, state.size);
+        return state.map.gradientNorm;
+    }
+
+    @Benchmark
+    public short[] calculateIntegerGradientNorm(MapState state, BenchmarkMaps.Megapixels counter) {
+        state.integerMap.calculateFusedGradientNorm(1.0);
+        counter.add(state.size, state.size);
+        return state.integerMap.gradientNorm;
+    }
+
+    @Benchmark
+    public short[] calculateSmoothedScharrGradientNorm(MapState state, BenchmarkMaps.Megapixels counter) {
+        state.smoothedScharrMap.calculateFusedGradientNorm(1.0);
+        counter.add(state.size, state.size);
+        return state.smoothedScharrMap.gradientNorm;
+    }
+
+    @Benchmark
+    public int[] calculateRGBMask(MapState state, BenchmarkMaps.Megapixels counter) {
+        state.map.calculateMasks(0.3, 0.6, null, state.rgbMask, null, null);
+        counter.add(state.size, state.size);
+        return state.rgbMask;
+    }
+
+    /**
+     * RGB mask, track mask and custom colors, as computed for a full run.
+     */
+    @Benchmark
+    public int[] calculateMasks(MapState state, BenchmarkMaps.Megapixels counter) {
+        state.map.calculateMasks(0.3, 0.6, state.trackMask, state.rgbMask, state.customMap, CUSTOM_COLORS);
+        counter.add(state.size, state.size);
+        return state.customMap;
+    }
+}
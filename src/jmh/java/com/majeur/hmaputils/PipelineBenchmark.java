@@ -0,0 +1,76 @@
+package com.majeur.hmaputils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a whole {@link MapsComputation} producing every output, images being handed to a
+ * black hole instead of being encoded and written to disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    @Param({"1024", "4096", "8192"})
+    public int size;
+
+    @Param({BenchmarkMaps.SEQUENTIAL, BenchmarkMaps.PARALLEL})
+    public String engine;
+
+    @Param({"false", "true"})
+    public boolean trackMask;
+
+    private ParallelEngine parallelEngine;
+    private BufferedImage heightmap;
+    private BufferedImage trackMaskImage;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        parallelEngine = BenchmarkMaps.engine(engine);
+        heightmap = BenchmarkMaps.heightmap(size);
+        if (trackMask)
+            trackMaskImage = BenchmarkMaps.trackMask(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        parallelEngine.shutdown();
+    }
+
+    @Benchmark
+    public String[] compute(Blackhole blackhole, BenchmarkMaps.Megapixels counter) throws ComputationException {
+        // Files are never opened, names are only used to build output paths
+        MapsComputation computation = new MapsComputation(new File("heightmap.png"), true, true, 1.0,
+                true, 0.3, 0.6, trackMask ? new File("track_mask.png") : null, true,
+                new int[]{0xff0000, 0x00ff00, 0x0000ff, 0x000000});
+        computation.setEngine(parallelEngine);
+        computation.setTrackMaskImage(trackMaskImage);
+        computation.setImageSink((im, file) -> {
+            blackhole.consume(im);
+            return true;
+        });
+        computation.setWriteReport(false);
+        counter.add(size, size);
+        return computation.compute(heightmap);
+    }
+}
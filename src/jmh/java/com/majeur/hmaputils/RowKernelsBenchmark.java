@@ -0,0 +1,100 @@
+package com.majeur.hmaputils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.DataBufferUShort;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scalar against Vector API {@link RowKernels}, on a single thread over a whole map. Vector kernels are
+ * skipped when the JVM does not provide them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RowKernelsBenchmark {
+
+    static final String SCALAR = "scalar";
+    static final String VECTOR = "vector";
+
+    @State(Scope.Thread)
+    public static class KernelState {
+
+        @Param({"1024", "4096"})
+        public int size;
+
+        @Param({SCALAR, VECTOR})
+        public String kernels;
+
+        RowKernels rowKernels;
+        short[] heightmap, norm;
+        int[] mask, colors;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            rowKernels = SCALAR.equals(kernels) ? RowKernels.SCALAR : RowKernels.vector();
+            if (rowKernels == null)
+                throw new IllegalStateException("Vector API kernels are not available, run with --add-modules jdk.incubator.vector");
+            heightmap = ((DataBufferUShort) BenchmarkMaps.heightmap(size).getRaster().getDataBuffer()).getData();
+            norm = new short[size * size];
+            mask = new int[size * size];
+            colors = new int[size * size];
+            for (int y = 0; y < size; y++)
+                rowKernels.integerNormRow(heightmap, Math.max(0, y - 1) * size, y * size,
+                        Math.min(size - 1, y + 1) * size, y == 0 || y == size - 1, size, 0.5, norm, y * size);
+            for (int y = 0; y < size; y++)
+                RowKernels.SCALAR.rgbMaskRow(norm, y * size, mask, y * size, size, 0x4000, 0x8000);
+        }
+    }
+
+    @Benchmark
+    public int[] rgRow(KernelState state, BenchmarkMaps.Megapixels counter) {
+        int size = state.size;
+        for (int y = 0; y < size; y++)
+            state.rowKernels.rgRow(state.heightmap, y * size, state.colors, y * size, size);
+        counter.add(size, size);
+        return state.colors;
+    }
+
+    @Benchmark
+    public short[] integerNormRow(KernelState state, BenchmarkMaps.Megapixels counter) {
+        int size = state.size;
+        for (int y = 0; y < size; y++)
+            state.rowKernels.integerNormRow(state.heightmap, Math.max(0, y - 1) * size, y * size,
+                    Math.min(size - 1, y + 1) * size, y == 0 || y == size - 1, size, 0.5, state.norm, y * size);
+        counter.add(size, size);
+        return state.norm;
+    }
+
+    @Benchmark
+    public int[] rgbMaskRow(KernelState state, BenchmarkMaps.Megapixels counter) {
+        int size = state.size;
+        for (int y = 0; y < size; y++)
+            state.rowKernels.rgbMaskRow(state.norm, y * size, state.colors, y * size, size, 0x4000, 0x8000);
+        counter.add(size, size);
+        return state.colors;
+    }
+
+    @Benchmark
+    public int[] alterRgbMaskRow(KernelState state, BenchmarkMaps.Megapixels counter) {
+        int size = state.size;
+        for (int y = 0; y < size; y++)
+            state.rowKernels.alterRgbMaskRow(state.mask, y * size, state.colors, y * size, size,
+                    0x804020, 0x408020, 0x204080, 0x000000);
+        counter.add(size, size);
+        return state.colors;
+    }
+}
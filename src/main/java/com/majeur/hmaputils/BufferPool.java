@@ -0,0 +1,227 @@
+package com.majeur.hmaputils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of full-size planes, short[], int[] and double[][] arrays and images backed by them, so that repeated
+ * computations reuse planes of previous ones instead of allocating new ones and leaving old ones to full garbage
+ * collections. Planes are keyed by kind and size: only planes of the same size are reused, which is what reruns on
+ * a heightmap, or on heightmaps of the same size, need.
+ * <p>
+ * Returned planes are retained up to a size limit, least recently returned ones being dropped first. When no
+ * retained plane fits a request, the oldest ones are dropped until the new plane fits once returned, so that planes
+ * of another heightmap size do not linger. Borrowed planes are not cleared, borrowers write every sample. Planes
+ * can be borrowed and returned from several threads at once.
+ */
+public class BufferPool {
+
+    public static final String SIZE_PROPERTY = "hmaputils.pool.size";
+
+    private static final int MIN_SAMPLES = 1 << 16; // Smaller planes are cheap to allocate, they are not retained
+    private static final ColorModel RGB_MODEL = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+    private static final ColorModel ARGB_MODEL = ColorModel.getRGBdefault();
+    private static final ColorModel GRAY16_MODEL =
+            new BufferedImage(1, 1, BufferedImage.TYPE_USHORT_GRAY).getColorModel();
+
+    private static BufferPool defaultPool;
+
+    private final List<Object> retained = new ArrayList<>(); // Least recently returned first
+    private long maxBytes, retainedBytes;
+    private long reusedBytes, allocatedBytes;
+
+    public BufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the pool shared by computations of this process. It retains at most {@value #SIZE_PROPERTY} system
+     * property in megabytes, a quarter of the maximum heap size by default.
+     */
+    public static synchronized BufferPool getDefault() {
+        if (defaultPool == null) {
+            Long megabytes = Long.getLong(SIZE_PROPERTY);
+            defaultPool = new BufferPool(megabytes != null ? megabytes << 20 : Runtime.getRuntime().maxMemory() / 4);
+        }
+        return defaultPool;
+    }
+
+    public short[] shorts(int length) {
+        short[] plane = (short[]) take(short[].class, length, 1, 2L * length);
+        return plane != null ? plane : new short[length];
+    }
+
+    public int[] ints(int length) {
+        int[] plane = (int[]) take(int[].class, length, 1, 4L * length);
+        return plane != null ? plane : new int[length];
+    }
+
+    /**
+     * Returns rows x columns doubles, such as the planes of {@link HeightmapMath#calculateGradients()}.
+     */
+    public double[][] doubles(int rows, int columns) {
+        double[][] plane = (double[][]) take(double[][].class, rows, columns, 8L * rows * columns);
+        return plane != null ? plane : new double[rows][columns];
+    }
+
+    /**
+     * Returns an image backed by a pooled plane, which {@link #release(BufferedImage)} returns.
+     *
+     * @param type {@link BufferedImage#TYPE_INT_RGB}, {@link BufferedImage#TYPE_INT_ARGB} or
+     *             {@link BufferedImage#TYPE_USHORT_GRAY}.
+     */
+    public BufferedImage image(int width, int height, int type) {
+        if ((long) width * height > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Image " + width + "x" + height + " is too large.");
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+                return rgbImage(ints(width * height), width, height, false);
+            case BufferedImage.TYPE_INT_ARGB:
+                return rgbImage(ints(width * height), width, height, true);
+            case BufferedImage.TYPE_USHORT_GRAY:
+                return grayImage(shorts(width * height), width, height);
+            default:
+                throw new IllegalArgumentException("Unsupported image type " + type);
+        }
+    }
+
+    /**
+     * Returns a {@link BufferedImage#TYPE_INT_RGB} or {@link BufferedImage#TYPE_INT_ARGB} image sharing given data.
+     */
+    public static BufferedImage rgbImage(int[] data, int width, int height, boolean alpha) {
+        ColorModel model = alpha ? ARGB_MODEL : RGB_MODEL;
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(data, width * height), width, height,
+                width, ((DirectColorModel) model).getMasks(), null);
+        return new BufferedImage(model, raster, false, null);
+    }
+
+    /**
+     * Returns a {@link BufferedImage#TYPE_USHORT_GRAY} image sharing given data.
+     */
+    public static BufferedImage grayImage(short[] data, int width, int height) {
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferUShort(data, width * height), width,
+                height, width, 1, new int[]{0}, null);
+        return new BufferedImage(GRAY16_MODEL, raster, false, null);
+    }
+
+    /**
+     * Returns a plane borrowed from this pool, or any other plane no longer used, to the pool. Nothing must use it
+     * afterwards. Null planes are ignored.
+     *
+     * @param plane A short[], int[] or double[][] array.
+     */
+    public void release(Object plane) {
+        if (plane == null)
+            return;
+        if (!(plane instanceof short[] || plane instanceof int[] || plane instanceof double[][]))
+            throw new IllegalArgumentException("Cannot pool " + plane.getClass().getSimpleName() + " planes.");
+        long bytes = bytes(plane);
+        if (bytes < 2L * MIN_SAMPLES)
+            return;
+        synchronized (this) {
+            for (Object other : retained)
+                if (other == plane)
+                    throw new IllegalStateException("Plane returned twice.");
+            retained.add(plane);
+            retainedBytes += bytes;
+            trim(maxBytes);
+        }
+    }
+
+    /**
+     * Returns the plane backing an image of {@link #image} to the pool, or of any other image of a type it supports
+     * and no longer used. Images backed otherwise are left to the garbage collector. Null images are ignored.
+     */
+    public void release(BufferedImage image) {
+        if (image == null)
+            return;
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+                || buffer.getSize() != (long) image.getWidth() * image.getHeight())
+            return;
+        if (buffer instanceof DataBufferInt)
+            release(((DataBufferInt) buffer).getData());
+        else if (buffer instanceof DataBufferUShort)
+            release(((DataBufferUShort) buffer).getData());
+    }
+
+    /**
+     * Sets bytes of planes the pool retains at most, dropping the oldest ones if it retains more.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim(maxBytes);
+    }
+
+    /**
+     * Drops least recently returned planes until the pool retains at most given bytes, 0 dropping them all.
+     */
+    public synchronized void trim(long bytes) {
+        while (retainedBytes > bytes && !retained.isEmpty())
+            retainedBytes -= bytes(retained.remove(0));
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * Returns bytes of planes borrowed from retained ones, and of planes allocated because none fitted.
+     */
+    public synchronized long[] getBorrowedBytes() {
+        return new long[]{reusedBytes, allocatedBytes};
+    }
+
+    /**
+     * Removes the most recently returned plane of given kind and size, making room for it if there is none.
+     *
+     * @param length  Length of the array.
+     * @param columns Length of rows of double[][] arrays, 1 otherwise.
+     */
+    private synchronized Object take(Class<?> kind, int length, int columns, long bytes) {
+        for (int i = retained.size() - 1; i >= 0; i--) {
+            Object plane = retained.get(i);
+            if (plane.getClass() == kind && length(plane) == length
+                    && (columns == 1 || length == 0 || ((double[][]) plane)[0].length == columns)) {
+                retained.remove(i);
+                retainedBytes -= bytes;
+                reusedBytes += bytes;
+                return plane;
+            }
+        }
+        allocatedBytes += bytes;
+        if (bytes >= 2L * MIN_SAMPLES)
+            trim(Math.max(0, maxBytes - bytes)); // Planes of other sizes, once this one comes back
+        return null;
+    }
+
+    private static int length(Object plane) {
+        if (plane instanceof short[])
+            return ((short[]) plane).length;
+        if (plane instanceof int[])
+            return ((int[]) plane).length;
+        return ((double[][]) plane).length;
+    }
+
+    private static long bytes(Object plane) {
+        if (plane instanceof short[])
+            return 2L * ((short[]) plane).length;
+        if (plane instanceof int[])
+            return 4L * ((int[]) plane).length;
+        double[][] rows = (double[][]) plane;
+        return rows.length == 0 ? 0 : 8L * rows.length * rows[0].length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool [" + retained.size() + " planes, " + retainedBytes + "/" + maxBytes + " bytes]";
+    }
+}
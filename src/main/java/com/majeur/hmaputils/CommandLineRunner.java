@@ -0,0 +1,615 @@
+package com.majeur.hmaputils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteOrder;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless entry point, processing many heightmaps with the parameters {@link MainFrame} collects.
+ * <p>
+ * Heightmaps are computed on a pool of {@code --jobs} workers while a dedicated thread decodes the next ones,
+ * at most one decoded heightmap is waiting for a worker at any time. Streamed heightmaps are not prefetched, nor
+ * the ones whose outputs only need a gradient norm found in {@link PlaneCache}.
+ */
+public class CommandLineRunner {
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILURE = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private static final String[] HEIGHTMAP_NAMES = {"heightmap.png", "hmap.png"};
+
+    private final PrintStream out, err;
+
+    private final List<String> inputs = new ArrayList<>();
+    private boolean rgmap, relief, rgbm, custom;
+    private double rmultiplier = 1.0, lbound = 0.3, ubound = 0.6;
+    private String trackMask;
+    private int[] replaceColors = {0xff0000, 0x00ff00, 0x0000ff, 0x000000};
+    private File outputDir;
+    private int jobs = 1;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private Boolean streaming;
+    private boolean integerGradients;
+    private String gradientOperator = "central";
+    private boolean smoothGradient;
+    private boolean normalMap, slopeMap;
+    private double pixelSize = 1, heightScale = 1;
+    private PngRowWriter.Profile compression = PngRowWriter.Profile.DEFAULT;
+    private boolean cache = true;
+    private boolean report = true;
+    private boolean mipmaps;
+    private int[] rawSize = {0, 0}; // Inferred from file length by default
+    private ByteOrder rawOrder = ByteOrder.LITTLE_ENDIAN;
+    private boolean rawRelief;
+    private ShortPlane.Storage planeStorage;
+    private boolean watch;
+    private Integer servePort; // Serves jobs over HTTP instead of processing inputs when set
+    private int queueCapacity = JobServer.DEFAULT_QUEUE_CAPACITY;
+    private double[] boundShares; // Blue and red shares of --auto-bounds
+
+    public CommandLineRunner(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Parses arguments and processes every heightmap.
+     *
+     * @return Process exit code, {@link #EXIT_OK} if every heightmap succeeded.
+     */
+    public int run(String... args) {
+        try {
+            parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(Strings.CLI_USAGE);
+            return EXIT_USAGE;
+        }
+        if (servePort != null)
+            return serve();
+        if (inputs.isEmpty()) {
+            out.println(Strings.CLI_USAGE);
+            return EXIT_OK;
+        }
+
+        List<File> files;
+        try {
+            files = resolveInputs();
+        } catch (IOException e) {
+            err.println("Unable to list inputs: " + e.getMessage());
+            return EXIT_FAILURE;
+        }
+        if (files.isEmpty()) {
+            err.println("No heightmap found.");
+            return EXIT_FAILURE;
+        }
+        if (watch) {
+            if (files.size() != 1) {
+                err.println("--watch takes a single heightmap, " + files.size() + " found.");
+                return EXIT_USAGE;
+            }
+            return watch(files.get(0));
+        }
+        return process(files);
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--rg":
+                    rgmap = true;
+                    break;
+                case "--relief":
+                    relief = true;
+                    break;
+                case "--multiplier":
+                    rmultiplier = parseDouble(arg, value(args, ++i, arg));
+                    break;
+                case "--rgb-mask":
+                    rgbm = relief = true;
+                    break;
+                case "--lower":
+                    lbound = parseDouble(arg, value(args, ++i, arg));
+                    break;
+                case "--upper":
+                    ubound = parseDouble(arg, value(args, ++i, arg));
+                    break;
+                case "--auto-bounds":
+                    boundShares = parseShares(value(args, ++i, arg));
+                    rgbm = relief = true;
+                    break;
+                case "--track-mask":
+                    trackMask = value(args, ++i, arg);
+                    break;
+                case "--custom":
+                    custom = rgbm = relief = true;
+                    break;
+                case "--colors":
+                    replaceColors = parseColors(value(args, ++i, arg));
+                    break;
+                case "--output":
+                    outputDir = new File(value(args, ++i, arg));
+                    break;
+                case "--jobs":
+                    jobs = parsePositiveInt(arg, value(args, ++i, arg));
+                    break;
+                case "--parallelism":
+                    parallelism = parsePositiveInt(arg, value(args, ++i, arg));
+                    break;
+                case "--streaming":
+                    streaming = true;
+                    break;
+                case "--no-streaming":
+                    streaming = false;
+                    break;
+                case "--integer-gradients":
+                    integerGradients = true;
+                    break;
+                case "--gradient":
+                    gradientOperator = value(args, ++i, arg);
+                    GradientOperator.forName(gradientOperator, false); // Fails early on unknown names
+                    break;
+                case "--smooth-gradient":
+                    smoothGradient = true;
+                    break;
+                case "--normal-map":
+                    normalMap = true;
+                    break;
+                case "--slope-map":
+                    slopeMap = true;
+                    break;
+                case "--pixel-size":
+                    pixelSize = parsePositiveDouble(arg, value(args, ++i, arg));
+                    break;
+                case "--height-scale":
+                    heightScale = parsePositiveDouble(arg, value(args, ++i, arg));
+                    break;
+                case "--no-cache":
+                    cache = false;
+                    break;
+                case "--serve":
+                    servePort = parsePort(value(args, ++i, arg));
+                    break;
+                case "--queue":
+                    queueCapacity = parsePositiveInt(arg, value(args, ++i, arg));
+                    break;
+                case "--watch":
+                    watch = true;
+                    break;
+                case "--mipmaps":
+                    mipmaps = true;
+                    break;
+                case "--raw-size":
+                    rawSize = parseSize(value(args, ++i, arg));
+                    break;
+                case "--big-endian":
+                    rawOrder = ByteOrder.BIG_ENDIAN;
+                    break;
+                case "--raw-relief":
+                    rawRelief = relief = true;
+                    break;
+                case "--planes":
+                    planeStorage = parsePlaneStorage(value(args, ++i, arg));
+                    break;
+                case "--no-report":
+                    report = false;
+                    break;
+                case "--compression":
+                    compression = parseCompression(value(args, ++i, arg));
+                    break;
+                case "--help":
+                    inputs.clear();
+                    return;
+                default:
+                    if (arg.startsWith("--"))
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                    inputs.add(arg);
+            }
+        }
+        if (!inputs.isEmpty() && servePort == null && !rgmap && !relief && !normalMap && !slopeMap)
+            throw new IllegalArgumentException("No output requested.");
+        if (ubound < lbound)
+            throw new IllegalArgumentException("Upper bound cannot be lower than lower bound.");
+        if (servePort != null && !inputs.isEmpty())
+            throw new IllegalArgumentException("--serve does not take heightmaps, jobs give them.");
+        if (watch && Boolean.TRUE.equals(streaming))
+            throw new IllegalArgumentException("--watch cannot stream heightmaps.");
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    private static double parseDouble(String option, String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+    }
+
+    private static double parsePositiveDouble(String option, String value) {
+        double d = parseDouble(option, value);
+        if (!(d > 0))
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        return d;
+    }
+
+    private static int parsePositiveInt(String option, String value) {
+        try {
+            int i = Integer.parseInt(value);
+            if (i > 0) return i;
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+    }
+
+    private static int parsePort(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            if (port >= 0 && port <= 0xffff) return port;
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        throw new IllegalArgumentException("Invalid value for --serve: " + value);
+    }
+
+    private static int[] parseSize(String value) {
+        String[] size = value.toLowerCase(Locale.ROOT).split("x");
+        if (size.length == 2)
+            return new int[]{parsePositiveInt("--raw-size", size[0].trim()), parsePositiveInt("--raw-size", size[1].trim())};
+        throw new IllegalArgumentException("Invalid value for --raw-size: " + value);
+    }
+
+    private static double[] parseShares(String value) {
+        String[] percents = value.split(",");
+        if (percents.length != 2)
+            throw new IllegalArgumentException("Two percentages expected for --auto-bounds: " + value);
+        double blue = parseDouble("--auto-bounds", percents[0].trim()) / 100;
+        double red = parseDouble("--auto-bounds", percents[1].trim()) / 100;
+        if (blue < 0 || red < 0 || blue + red > 1)
+            throw new IllegalArgumentException("Percentages of --auto-bounds must be positive and sum to 100 at most.");
+        return new double[]{blue, red};
+    }
+
+    private static PngRowWriter.Profile parseCompression(String value) {
+        for (PngRowWriter.Profile profile : PngRowWriter.Profile.values())
+            if (profile.name().equalsIgnoreCase(value))
+                return profile;
+        throw new IllegalArgumentException("Invalid value for --compression: " + value);
+    }
+
+    private static ShortPlane.Storage parsePlaneStorage(String value) {
+        for (ShortPlane.Storage storage : ShortPlane.Storage.values())
+            if (storage.name().equalsIgnoreCase(value))
+                return storage;
+        throw new IllegalArgumentException("Invalid value for --planes: " + value);
+    }
+
+    private static int[] parseColors(String value) {
+        String[] hex = value.split(",");
+        if (hex.length != 4)
+            throw new IllegalArgumentException("Four colors expected for --colors: " + value);
+        int[] colors = new int[4];
+        try {
+            for (int i = 0; i < 4; i++)
+                colors[i] = Integer.parseInt(hex[i].trim(), 16) & 0xffffff;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid color in --colors: " + value);
+        }
+        return colors;
+    }
+
+    /**
+     * Expands inputs into heightmap files. Directories are searched recursively for the heightmap names
+     * {@link MainFrame} autodetects, arguments containing glob characters are matched against files below
+     * their non-glob prefix (for shells that do not expand them).
+     */
+    private List<File> resolveInputs() throws IOException {
+        Set<File> files = new LinkedHashSet<>();
+        for (String input : inputs) {
+            File file = new File(input);
+            if (file.isDirectory()) {
+                files.addAll(walk(file.toPath(), path -> Arrays.asList(HEIGHTMAP_NAMES).contains(
+                        path.getFileName().toString())));
+            } else if (isGlob(input)) {
+                String glob = input.replace(File.separatorChar, '/');
+                int separator = globBaseEnd(glob);
+                Path base = Paths.get(separator < 0 ? "." : separator == 0 ? "/" : glob.substring(0, separator));
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob.substring(separator + 1));
+                files.addAll(walk(base, path -> matcher.matches(base.relativize(path))));
+            } else {
+                files.add(file);
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static boolean isGlob(String input) {
+        return input.indexOf('*') >= 0 || input.indexOf('?') >= 0 || input.indexOf('[') >= 0
+                || input.indexOf('{') >= 0;
+    }
+
+    /**
+     * Returns the index of the last separator before first glob character, -1 if there is none.
+     */
+    private static int globBaseEnd(String glob) {
+        int firstGlobChar = glob.length();
+        for (char c : new char[]{'*', '?', '[', '{'}) {
+            int i = glob.indexOf(c);
+            if (i >= 0) firstGlobChar = Math.min(firstGlobChar, i);
+        }
+        return glob.lastIndexOf('/', firstGlobChar);
+    }
+
+    private static List<File> walk(Path base, Predicate<Path> filter) throws IOException {
+        if (!Files.isDirectory(base))
+            return new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(base)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(filter)
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private int process(List<File> files) {
+        File[] outputDirs = outputDirs(files);
+        ParallelEngine engine = parallelism > 1 ? new ParallelEngine(parallelism) : ParallelEngine.SEQUENTIAL;
+        ExecutorService decoder = Executors.newSingleThreadExecutor();
+        ExecutorService workers = Executors.newFixedThreadPool(jobs);
+        Semaphore pending = new Semaphore(jobs + 1);
+
+        List<Future<Boolean>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                MapsComputation computation = createComputation(file, engine);
+                if (outputDirs[i] != null)
+                    computation.setOutputDir(outputDirs[i]);
+
+                pending.acquire();
+                long start = System.nanoTime();
+                // Streamed heightmaps are decoded by bands during computation, cached ones not at all
+                Future<BufferedImage> source = computation.isStreaming() || !computation.needsSource() ? null
+                        : decoder.submit(computation::readSource);
+                results.add(workers.submit(() -> {
+                    try {
+                        String[] written = source != null ? computation.compute(source.get()) : computation.compute();
+                        printSummary(file, start, written, null, boundShares != null ? computation.getMaskBounds() : null);
+                        return true;
+                    } catch (ExecutionException e) {
+                        printSummary(file, start, null, describe(e.getCause()), null);
+                        return false;
+                    } catch (ComputationException | RuntimeException e) {
+                        printSummary(file, start, null, describe(e), null);
+                        return false;
+                    } finally {
+                        computation.release();
+                        pending.release();
+                    }
+                }));
+            }
+
+            int failures = 0;
+            for (Future<Boolean> result : results)
+                if (!result.get()) failures++;
+            out.println((files.size() - failures) + " succeeded, " + failures + " failed.");
+            return failures == 0 ? EXIT_OK : EXIT_FAILURE;
+        } catch (Exception e) {
+            err.println("Batch interrupted: " + e);
+            return EXIT_FAILURE;
+        } finally {
+            decoder.shutdownNow();
+            workers.shutdown();
+            try {
+                workers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Serves jobs on the loopback interface until the process is stopped, {@code --jobs} of them at once.
+     */
+    private int serve() {
+        ParallelEngine engine = parallelism > 1 ? new ParallelEngine(parallelism) : ParallelEngine.SEQUENTIAL;
+        JobServer server;
+        try {
+            server = new JobServer(servePort, jobs, queueCapacity, engine);
+            server.setPool(BufferPool.getDefault());
+        } catch (IOException e) {
+            err.println("Unable to serve on port " + servePort + ": " + e.getMessage());
+            engine.shutdown();
+            return EXIT_FAILURE;
+        }
+        if (cache)
+            server.setCache(PlaneCache.getDefault());
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            engine.shutdown();
+            stopped.countDown();
+        }));
+        server.start();
+        out.println("Serving jobs on http://127.0.0.1:" + server.getPort() + "/jobs, stop with Ctrl+C.");
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Computes maps of a heightmap, then recomputes changed tiles each time the heightmap or the track mask is
+     * saved, until the process is stopped.
+     */
+    private int watch(File file) {
+        ParallelEngine engine = parallelism > 1 ? new ParallelEngine(parallelism) : ParallelEngine.SEQUENTIAL;
+        MapsComputation computation = createComputation(file, engine);
+        computation.setIncremental(true);
+        if (outputDir != null)
+            computation.setOutputDir(outputDir);
+        try {
+            long start = System.nanoTime();
+            try {
+                printSummary(file, start, computation.compute(), null,
+                        boundShares != null ? computation.getMaskBounds() : null);
+            } catch (ComputationException | RuntimeException e) {
+                printSummary(file, start, null, describe(e), null);
+                return EXIT_FAILURE;
+            }
+            try (MapsWatcher watcher = new MapsWatcher(computation)) {
+                out.println("Watching " + computation.getInputFiles().stream().map(File::getPath)
+                        .collect(Collectors.joining(", ")) + ", stop with Ctrl+C.");
+                watcher.watch(new MapsWatcher.Listener() {
+
+                    @Override
+                    public void onRecomputed(String[] result, long millis) {
+                        DirtyTiles tiles = computation.getDirtyTiles();
+                        String changes = tiles == null ? "full computation"
+                                : tiles.getCount() + "/" + tiles.getTotal() + " tiles changed"
+                                + (computation.isNormRescaled() ? ", norm rescaled" : "");
+                        printOutcome(file, millis, result, null,
+                                boundShares != null ? computation.getMaskBounds() : null);
+                        out.println("     " + changes);
+                    }
+
+                    @Override
+                    public void onError(String reason) {
+                        out.println("FAIL " + file.getPath() + ": " + reason);
+                    }
+                });
+            } catch (IOException e) {
+                err.println("Unable to watch " + file.getPath() + ": " + e.getMessage());
+                return EXIT_FAILURE;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return EXIT_OK;
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    private static String describe(Throwable t) {
+        return t instanceof ComputationException ? t.getMessage() : t.toString();
+    }
+
+    private MapsComputation createComputation(File file, ParallelEngine engine) {
+        File trackMaskFile = null;
+        if (trackMask != null) {
+            trackMaskFile = new File(trackMask);
+            if (!trackMaskFile.isAbsolute())
+                trackMaskFile = new File(file.getAbsoluteFile().getParentFile(), trackMask);
+        }
+        MapsComputation computation = new MapsComputation(file, rgmap, relief, rmultiplier, rgbm, lbound, ubound,
+                trackMaskFile, custom, replaceColors);
+        computation.setEngine(engine);
+        if (streaming != null)
+            computation.setStreaming(streaming);
+        computation.setIntegerGradients(integerGradients);
+        computation.setGradientOperator(GradientOperator.forName(gradientOperator, smoothGradient));
+        computation.setSurfaceMaps(normalMap, slopeMap);
+        computation.setSurfaceScale(pixelSize, heightScale);
+        computation.setCompression(compression);
+        if (boundShares != null)
+            computation.setBoundShares(boundShares[0], boundShares[1]);
+        if (cache)
+            computation.setCache(PlaneCache.getDefault());
+        computation.setWriteReport(report);
+        computation.setMipmaps(mipmaps);
+        computation.setRawLayout(rawSize[0], rawSize[1], rawOrder);
+        computation.setRawRelief(rawRelief);
+        computation.setPlaneStorage(planeStorage);
+        computation.setPool(BufferPool.getDefault());
+        return computation;
+    }
+
+    /**
+     * Output directories of each file, null to write next to the heightmap. When several heightmaps are written
+     * to the same output directory each one gets its own sub directory, named after the heightmap or after its
+     * parent directory and the heightmap if names clash.
+     */
+    private File[] outputDirs(List<File> files) {
+        File[] dirs = new File[files.size()];
+        if (outputDir == null)
+            return dirs;
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < files.size(); i++) {
+            File dir = outputDir;
+            if (files.size() > 1) {
+                File file = files.get(i).getAbsoluteFile();
+                String name = baseName(file);
+                if (!used.add(name)) {
+                    name = file.getParentFile().getName() + "_" + name;
+                    for (int n = 2; !used.add(name); n++)
+                        name = file.getParentFile().getName() + "_" + baseName(file) + "_" + n;
+                }
+                dir = new File(outputDir, name);
+            }
+            dirs[i] = dir;
+        }
+        return dirs;
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * @param bounds Mask bounds to report when they were derived from shares, null otherwise.
+     */
+    private void printSummary(File file, long start, String[] written, String error, double[] bounds) {
+        printOutcome(file, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), written, error, bounds);
+    }
+
+    private synchronized void printOutcome(File file, long millis, String[] written, String error, double[] bounds) {
+        if (error != null) {
+            out.println("FAIL " + file.getPath() + " (" + millis + " ms): " + error);
+            return;
+        }
+        StringBuilder builder = new StringBuilder("OK   ").append(file.getPath())
+                .append(" (").append(millis).append(" ms):");
+        for (String name : written)
+            if (name != null) builder.append(' ').append(name);
+        if (bounds != null)
+            builder.append(String.format(Locale.US, " (bounds %.4f, %.4f)", bounds[0], bounds[1]));
+        out.println(builder);
+    }
+}
@@ -0,0 +1,13 @@
+package com.majeur.hmaputils;
+
+/**
+ * Thrown when a computation cannot complete, message is meant to be shown to the user.
+ */
+public class ComputationException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public ComputationException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,176 @@
+package com.majeur.hmaputils;
+
+/**
+ * Square tiles of a map that changed between two versions of a plane, found by comparing planes row by row.
+ * Kernels then only recompute dirty tiles, expanded by a halo when their stencil reads neighbour pixels.
+ */
+public class DirtyTiles {
+
+    public static final int TILE_SIZE = 64;
+
+    public final int width, height;
+    public final int columns, rows; // Tiles
+    private final boolean[] dirty;
+    private int count;
+
+    public DirtyTiles(int width, int height) {
+        this.width = width;
+        this.height = height;
+        columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        dirty = new boolean[columns * rows];
+    }
+
+    /**
+     * Returns tiles whose values differ between the two planes, and copies changed rows of current into previous.
+     */
+    public static DirtyTiles diff(short[] previous, short[] current, int width, int height, ParallelEngine engine) {
+        DirtyTiles tiles = new DirtyTiles(width, height);
+        engine.forEachBand(tiles.rows, (from, to) -> {
+            for (int ty = from; ty < to; ty++)
+                for (int y = ty * TILE_SIZE; y < Math.min(height, (ty + 1) * TILE_SIZE); y++)
+                    tiles.diffRow(previous, current, y * width);
+        });
+        tiles.countDirty();
+        return tiles;
+    }
+
+    /**
+     * @see #diff(short[], short[], int, int, ParallelEngine)
+     */
+    public static DirtyTiles diff(int[] previous, int[] current, int width, int height, ParallelEngine engine) {
+        DirtyTiles tiles = new DirtyTiles(width, height);
+        engine.forEachBand(tiles.rows, (from, to) -> {
+            for (int ty = from; ty < to; ty++)
+                for (int y = ty * TILE_SIZE; y < Math.min(height, (ty + 1) * TILE_SIZE); y++)
+                    tiles.diffRow(previous, current, y * width);
+        });
+        tiles.countDirty();
+        return tiles;
+    }
+
+    private void diffRow(short[] previous, short[] current, int off) {
+        int x = 0;
+        while (x < width && previous[off + x] == current[off + x])
+            x++;
+        if (x == width)
+            return; // Most rows did not change
+        int y = off / width;
+        for (int tx = x / TILE_SIZE; tx < columns; tx++) {
+            int from = Math.max(x, tx * TILE_SIZE), to = Math.min(width, (tx + 1) * TILE_SIZE);
+            for (int i = off + from; i < off + to; i++) {
+                if (previous[i] != current[i]) {
+                    dirty[index(tx, y / TILE_SIZE)] = true;
+                    System.arraycopy(current, off + from, previous, off + from, to - from);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void diffRow(int[] previous, int[] current, int off) {
+        int x = 0;
+        while (x < width && previous[off + x] == current[off + x])
+            x++;
+        if (x == width)
+            return;
+        int y = off / width;
+        for (int tx = x / TILE_SIZE; tx < columns; tx++) {
+            int from = Math.max(x, tx * TILE_SIZE), to = Math.min(width, (tx + 1) * TILE_SIZE);
+            for (int i = off + from; i < off + to; i++) {
+                if (previous[i] != current[i]) {
+                    dirty[index(tx, y / TILE_SIZE)] = true;
+                    System.arraycopy(current, off + from, previous, off + from, to - from);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void countDirty() {
+        count = 0;
+        for (boolean d : dirty)
+            if (d) count++;
+    }
+
+    private int index(int tx, int ty) {
+        return ty * columns + tx;
+    }
+
+    public void mark(int tx, int ty) {
+        if (!dirty[index(tx, ty)]) {
+            dirty[index(tx, ty)] = true;
+            count++;
+        }
+    }
+
+    public void markAll() {
+        for (int i = 0; i < dirty.length; i++)
+            dirty[i] = true;
+        count = dirty.length;
+    }
+
+    /**
+     * Marks tiles dirty in other, which must have the same size.
+     */
+    public void add(DirtyTiles other) {
+        for (int i = 0; i < dirty.length; i++)
+            if (other.dirty[i]) mark(i % columns, i / columns);
+    }
+
+    public boolean isDirty(int tx, int ty) {
+        return dirty[index(tx, ty)];
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getTotal() {
+        return dirty.length;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns dirty tiles and tiles next to them, which a one pixel halo around dirty tiles reaches.
+     */
+    public DirtyTiles withNeighbours() {
+        DirtyTiles tiles = new DirtyTiles(width, height);
+        for (int ty = 0; ty < rows; ty++)
+            for (int tx = 0; tx < columns; tx++)
+                if (isDirty(tx, ty))
+                    for (int ny = Math.max(0, ty - 1); ny <= Math.min(rows - 1, ty + 1); ny++)
+                        for (int nx = Math.max(0, tx - 1); nx <= Math.min(columns - 1, tx + 1); nx++)
+                            tiles.mark(nx, ny);
+        return tiles;
+    }
+
+    /**
+     * Returns dirty tiles as {x0, y0, x1, y1} pixel rectangles, ends exclusive, expanded by halo pixels
+     * and clamped to the map.
+     */
+    public int[][] rectangles(int halo) {
+        int[][] rects = new int[count][];
+        int n = 0;
+        for (int ty = 0; ty < rows; ty++) {
+            for (int tx = 0; tx < columns; tx++) {
+                if (!isDirty(tx, ty))
+                    continue;
+                rects[n++] = new int[]{
+                        Math.max(0, tx * TILE_SIZE - halo),
+                        Math.max(0, ty * TILE_SIZE - halo),
+                        Math.min(width, (tx + 1) * TILE_SIZE + halo),
+                        Math.min(height, (ty + 1) * TILE_SIZE + halo)};
+            }
+        }
+        return rects;
+    }
+
+    @Override
+    public String toString() {
+        return "DirtyTiles [" + count + "/" + dirty.length + "]";
+    }
+}
@@ -0,0 +1,86 @@
+package com.majeur.hmaputils;
+
+/**
+ * Stencil computing the gradient of a row of heights from the rows around it. {@link HeightmapMath} and streamed
+ * computations run operators one row at a time over the window of rows they reach, gradients are consumed right
+ * away by gradient norm kernels and never stored in a full-size plane.
+ * <p>
+ * Gradients are integer weighted sums of heights. Their scale is up to the operator, as the gradient norm is scaled
+ * by its maximum, but it must be the same for every pixel. Operators are run by several threads at once.
+ */
+public interface GradientOperator {
+
+    /**
+     * Largest radius an operator can have, which streamed computations keep around each band of rows.
+     */
+    int MAX_RADIUS = 2;
+
+    /**
+     * 3-point central difference, with one-sided differences on map borders. The default, giving the exact gradient
+     * norms of {@link HeightmapMath#calculateGradients()}.
+     */
+    GradientOperator CENTRAL_DIFFERENCE = new StencilOperator("central", new int[]{-1, 0, 1}, new int[]{1});
+
+    /**
+     * 3x3 Sobel operator, a central difference smoothed by (1, 2, 1) across it.
+     */
+    GradientOperator SOBEL = new StencilOperator("sobel", new int[]{-1, 0, 1}, new int[]{1, 2, 1});
+
+    /**
+     * 3x3 Scharr operator, a central difference smoothed by (3, 10, 3) across it, more isotropic than Sobel.
+     */
+    GradientOperator SCHARR = new StencilOperator("scharr", new int[]{-1, 0, 1}, new int[]{3, 10, 3});
+
+    /**
+     * Names of built-in operators, see {@link #forName(String, boolean)}.
+     */
+    String[] NAMES = {"central", "sobel", "scharr"};
+
+    /**
+     * Returns the name identifying this operator in cache keys and run reports, different operators must have
+     * different names.
+     */
+    String getName();
+
+    /**
+     * Returns rows and columns the stencil reaches on each side of a pixel, at most {@value #MAX_RADIUS}.
+     */
+    int getRadius();
+
+    /**
+     * Returns the gradients of heights rising by one unit per pixel, which turns gradients into height differences
+     * per pixel for {@link HeightmapMath#setSurfaceMaps}.
+     */
+    double getGain();
+
+    /**
+     * Computes gradients of columns [from, to) of a row.
+     *
+     * @param src  Heightmap values.
+     * @param rows Offsets in src of the 2 * radius + 1 rows centered on the row, first and last rows being repeated
+     *             beyond map borders.
+     * @param dx   Gradients across rows, stored at the index of their column.
+     * @param dy   Gradients along the row, stored at the index of their column.
+     */
+    void gradients(short[] src, int[] rows, int width, int from, int to, int[] dx, int[] dy);
+
+    /**
+     * Returns a built-in operator.
+     *
+     * @param name     One of {@link #NAMES}, case insensitive.
+     * @param smoothed True to smooth heights with a 3x3 binomial filter first, fused into a single 5x5 stencil.
+     * @throws IllegalArgumentException If there is no such operator.
+     */
+    static GradientOperator forName(String name, boolean smoothed) {
+        StencilOperator operator;
+        if ("central".equalsIgnoreCase(name))
+            operator = (StencilOperator) CENTRAL_DIFFERENCE;
+        else if ("sobel".equalsIgnoreCase(name))
+            operator = (StencilOperator) SOBEL;
+        else if ("scharr".equalsIgnoreCase(name))
+            operator = (StencilOperator) SCHARR;
+        else
+            throw new IllegalArgumentException("Unknown gradient operator " + name);
+        return smoothed ? operator.smoothed() : operator;
+    }
+}
@@ -1,23 +1,49 @@
 package com.majeur.hmaputils;
 
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
 
 public class HeightmapMath {
 
-    private static final int USHORT_MAX_VALUE = 0xffff;
+    static final int USHORT_MAX_VALUE = 0xffff;
+    static final double SLOPE_SCALE = USHORT_MAX_VALUE / 90.0; // Slope map value of a degree
+    private static final int TRACK_MASK_ROWS = 64; // Rows of track mask colors read at once
+    private static final RowKernels KERNELS = RowKernels.getDefault();
+    private static final int SLOPE_STEPS = 4096;
+    // Slope map values of tangents t / (1 - t) for t in [0, 1] by 1 / SLOPE_STEPS, interpolated instead of atan()
+    // which is several times slower than the rest of surface maps. Within 1e-3 of exact values before rounding.
+    private static final double[] SLOPES = new double[SLOPE_STEPS + 2];
+
+    static {
+        for (int i = 0; i <= SLOPE_STEPS; i++)
+            SLOPES[i] = Math.toDegrees(Math.atan2(i, SLOPE_STEPS - i)) * SLOPE_SCALE;
+        SLOPES[SLOPE_STEPS + 1] = SLOPES[SLOPE_STEPS];
+    }
 
     public double[][] gradientX; // Variable to communicate the gradient in X direction with calling class
     public double[][] gradientY; // Variable to communicate the gradient in Y direction with calling class
     public short[] gradientNorm; // Variable to communicate the gradient norm of both directions with calling class
+    public NormHistogram normHistogram; // Variable to communicate the gradient norm histogram with calling class
     public int[] rgImageData; // Variable to communicate the gradient in Y direction with calling class
-    public int[] rgbMaskData; // Variable to communicate the gradient in Y direction with calling class
+    public int[] normalMap; // Variable to communicate the normal map with calling class, see setSurfaceMaps()
+    public short[] slopeMap; // Variable to communicate the slope map with calling class, see setSurfaceMaps()
 
 
     public final short[] data; // Variable to store hmap data
     public final int width, height;
     private final int scansize;
 
-    private int val; // temporary variable to store the height value of a pixel
+    private ParallelEngine engine = ParallelEngine.SEQUENTIAL;
+    private RowProgress progress = new RowProgress(null);
+    private BufferPool pool; // Of computed planes, null to allocate them
+    private boolean integerGradients;
+    private GradientOperator gradientOperator = GradientOperator.CENTRAL_DIFFERENCE;
+    private boolean trackTiles;
+    private NormStats normStats; // Extremums last gradient norm was scaled with
+    private NormStats[] tileStats; // Extremums of each DirtyTiles tile, when tracking tiles
+    private double normMultiplier;
+    private double pixelSize = 1, heightScale = 1;
 
 
     public HeightmapMath(int width, int height, int scansize, short[] data) {
@@ -28,274 +54,896 @@ public class HeightmapMath {
     }
 
     /**
-     * Function that encode current heightmap values to R and G channels of an RGB 24bits image.
-     * Stores results in {@link #rgImageData}.
+     * Sets the engine running kernels over bands of rows. Results do not depend on the engine.
      */
-    public void calculateRGImage() {
-        rgImageData = new int[height * width];
+    public void setEngine(ParallelEngine engine) {
+        this.engine = engine;
+    }
 
-        for (int i = 0; i < height; ++i) {
+    /**
+     * Borrows planes this map computes, such as {@link #gradientNorm}, from pool instead of allocating them. The
+     * release methods return them, nothing must use them afterwards.
+     */
+    public void setPool(BufferPool pool) {
+        this.pool = pool;
+    }
 
-            for (int j = 1; j < width; ++j) {
+    /**
+     * Sets where kernels count processed rows, each pass over the map counting {@link #height} rows. Kernels
+     * throw {@link java.util.concurrent.CancellationException} within a row once it is cancelled.
+     */
+    public void setProgress(RowProgress progress) {
+        this.progress = progress;
+    }
 
-                extractValue(i, j);
+    /**
+     * Makes {@link #calculateFusedGradientNorm(double)} keep gradients as exact integer differences and
+     * compute the norm from their exact squared norm with a single square root, instead of using
+     * {@link Math#hypot(double, double)}. Results may differ from the default mode by one unit at most,
+     * when the scaled norm is very close to an integer.
+     */
+    public void setIntegerGradients(boolean integerGradients) {
+        this.integerGradients = integerGradients;
+    }
 
-                rgImageData[i * scansize + j] = val << 8;
+    /**
+     * Sets the stencil {@link #calculateFusedGradientNorm(double)} computes gradients with, central difference by
+     * default. Gradients are computed row by row from the rows the stencil reaches, without any gradient plane.
+     */
+    public void setGradientOperator(GradientOperator gradientOperator) {
+        this.gradientOperator = gradientOperator;
+    }
+
+    public GradientOperator getGradientOperator() {
+        return gradientOperator;
+    }
+
+    /**
+     * Makes {@link #calculateFusedGradientNorm(double)} also compute a tangent space normal map and a slope map
+     * from the gradients it computes the norm from, row by row as it goes. {@link #calculateSurfaceMaps()} computes
+     * them alone.
+     * <p>
+     * Normals are RGB encoded, red towards the right of the map and green towards its top (OpenGL convention).
+     * Slopes are angles with the horizontal, 0 to 90 degrees scaled to 0-65535.
+     *
+     * @param normalMap   Destination of the normal map, width * height RGB pixels, or null.
+     * @param slopeMap    Destination of the slope map, width * height values, or null.
+     * @param pixelSize   World units between two pixels.
+     * @param heightScale World units of a heightmap unit.
+     */
+    public void setSurfaceMaps(int[] normalMap, short[] slopeMap, double pixelSize, double heightScale) {
+        this.normalMap = normalMap;
+        this.slopeMap = slopeMap;
+        this.pixelSize = pixelSize;
+        this.heightScale = heightScale;
+    }
+
+    /**
+     * Makes {@link #calculateFusedGradientNorm(double)} keep gradient norm extremums of each {@link DirtyTiles}
+     * tile, so that {@link #updateGradientNorm(DirtyTiles)} can later recompute changed tiles only.
+     */
+    public void setTrackTiles(boolean trackTiles) {
+        this.trackTiles = trackTiles;
+    }
+
+    /**
+     * Function that encode current heightmap values to R and G channels of an RGB 24bits image.
+     * Stores results in {@link #rgImageData}.
+     */
+    public void calculateRGImage() {
+        rgImageData = pool != null ? pool.ints(height * width) : new int[height * width];
+        calculateRGImage(rgImageData);
+    }
+
+    /**
+     * Same as {@link #calculateRGImage()}, writing width * height RGB pixels straight into rgImage.
+     */
+    public void calculateRGImage(int[] rgImage) {
+        engine.forEachBand(height, (from, to) -> {
+            for (int i = from; i < to; ++i) {
+                rgRow(data, i * scansize, rgImage, i * width, width);
+                rgImage[i * width] = 0; // Kernels skip the first column, always black, pooled planes are not cleared
+                progress.advance(1);
             }
-        }
+        });
+    }
+
+    static void rgRow(short[] src, int srcOff, int[] dst, int dstOff, int width) {
+        KERNELS.rgRow(src, srcOff, dst, dstOff, width);
     }
 
     public void releaseRGImageRef() {
+        release(rgImageData);
         rgImageData = null;
     }
 
     /**
      * Function that calculates the gradient from the image given in argument using the central difference method.
+     * Boundary pixels use a one-sided difference.
      * Stores results in {@link #gradientX} and {@link #gradientY}.
      */
     public void calculateGradients() {
-        gradientX = new double[height][width];
-        gradientY = new double[height][width];
+        gradientX = doubles(height, width);
+        gradientY = doubles(height, width);
 
-        int[] row = new int[height];
-        int[] column = new int[width];
+        engine.forEachBand(height, (from, to) -> {
+            for (int i = from; i < to; ++i) {
 
-        for (int i = 0; i < height; ++i) {
-            row[i] = i + 1;
-        }
+                if (height > 1) {
+                    int p = rowAbove(i), n = rowBelow(i);
+                    for (int j = 0; j < width; ++j) {
+                        int v2 = valueAt(n, j);
+                        int v1 = valueAt(p, j);
 
-        for (int i = 0; i < width; ++i) {
-            column[i] = i + 1;
-        }
+                        gradientX[i][j] = (double) -(v2 - v1) / (n - p);
+                    }
+                } else {
+                    Arrays.fill(gradientX[i], 0); // Pooled planes are not cleared
+                }
 
-        if (height > 1) {
-			/*
-			  Calculate gradient for boundary pixels.
-			 */
-            for (int j = 0; j < width; ++j) {
-                extractValue(1, j);
-                int v2 = val;
+                if (width > 1) {
+                    for (int j = 0; j < width; ++j) {
+                        int l = j > 0 ? j - 1 : 0;
+                        int r = j < width - 1 ? j + 1 : width - 1;
+                        int v2 = valueAt(i, r);
+                        int v1 = valueAt(i, l);
 
-                extractValue(0, j);
-                int v1 = val;
+                        gradientY[i][j] = (double) (v2 - v1) / (r - l);
+                    }
+                } else {
+                    Arrays.fill(gradientY[i], 0);
+                }
+                progress.advance(1);
+            }
+        });
+    }
 
-                gradientX[0][j] = (double) -(v2 - v1) / (row[1] - row[0]);
+    /**
+     * Reads heightmap value for a given i (y) and a given j (x).
+     *
+     * @param i Row index.
+     * @param j Column index.
+     */
+    private int valueAt(int i, int j) {
+        return data[i * scansize + j] & 0xffff; // get unsigned short as int
+    }
 
-                extractValue(height - 1, j);
-                int vn = val;
+    public void releaseGradientsRef() {
+        release(gradientX);
+        release(gradientY);
+        gradientX = null;
+        gradientY = null;
+    }
 
-                extractValue(height - 2, j);
-                int vn1 = val;
+    /**
+     * Function that calculates the euclidean norm of Gx(x, y) and Gy(x, y)
+     * for each (x, y) scaled to a short.
+     *
+     * @param multiplier A multiplier that will be applied to computed norm of each point.
+     */
+    public void calculateGradientNorm(double multiplier) {
+        gradientNorm = shorts(width * height);
+
+        double[][] arr = doubles(width, height);
+
+        double[] extremums = engine.reduceBands(height, (from, to) -> {
+            double max = 0, min = 0;
+            for (int y = from; y < to; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    /*
+                      Calculate euclidean norm and extremums for scaling.
+                     */
+                    arr[x][y] = Math.hypot(gradientY[y][x], gradientX[y][x]);
+
+                    if (arr[x][y] > max) {
+                        max = arr[x][y];
+                    } else if (arr[x][y] < min) {
+                        min = arr[x][y];
+                    }
+                }
+                progress.advance(1);
+            }
+            return new double[]{min, max};
+        }, (a, b) -> new double[]{Math.min(a[0], b[0]), Math.max(a[1], b[1])});
+        double min = extremums != null ? extremums[0] : 0, max = extremums != null ? extremums[1] : 0;
+
+        engine.forEachBand(height, (from, to) -> {
+            for (int y = from; y < to; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    /*
+                      Scaling into 0-65535 (unsigned short).
+                     */
+
+                    gradientNorm[y * scansize + x] = (short) Math.min(
+                            (arr[x][y] - min) / (max - min) * USHORT_MAX_VALUE * multiplier,
+                            USHORT_MAX_VALUE
+                    );
 
-                gradientX[height - 1][j] = (double) -(vn - vn1) / (row[height - 1] - row[height - 2]);
+                }
+                progress.advance(1);
             }
-        }
+        });
+        release(arr);
+    }
 
-        if (height > 2) {
-			/*
-			  Calculate the gradient for central pixels.
-			 */
-            for (int i = 1; i < height - 1; ++i) {
-                for (int j = 0; j < width; ++j) {
-                    extractValue(i + 1, j);
-                    int v2 = val;
+    /**
+     * Drops {@link #gradientNorm}, returning it to the pool if one was set, even if it was not computed here.
+     */
+    public void releaseGradientNormRef() {
+        release(gradientNorm);
+        gradientNorm = null;
+    }
+
+    /**
+     * Function that calculates the gradient norm directly from heightmap values, without materializing
+     * {@link #gradientX} and {@link #gradientY}. Each row is computed from the row above and the row below
+     * (boundary rows use themselves as neighbour), so results are exactly the ones of
+     * {@link #calculateGradients()} followed by {@link #calculateGradientNorm(double)}. Other gradient operators
+     * are run the same way, over as many rows as their stencil reaches.
+     * <p>
+     * A first pass only tracks extremums for scaling, a second one computes and scales norms, and surface maps if
+     * any was set. Stores results in {@link #gradientNorm}, and their histogram in {@link #normHistogram}.
+     *
+     * @see #setIntegerGradients(boolean)
+     * @see #setGradientOperator(GradientOperator)
+     *
+     * @param multiplier A multiplier that will be applied to computed norm of each point.
+     */
+    public void calculateFusedGradientNorm(double multiplier) {
+        NormStats stats = trackTiles ? calculateTileStats() : engine.reduceBands(height, (from, to) -> {
+            NormStats bandStats = new NormStats(integerGradients);
+            GradientStencil stencil = stencil();
+            for (int i = from; i < to; ++i) {
+                stencil.at(i, this::offset).stats(data, 0, width, bandStats);
+                progress.advance(1);
+            }
+            return bandStats;
+        }, NormStats::merge);
+        normStats = stats;
+        normMultiplier = multiplier;
+
+        gradientNorm = shorts(width * height);
+        normHistogram = new NormHistogram();
+        normHistogram.add(engine.reduceBands(height, (from, to) -> {
+            int[] counts = new int[NormHistogram.BINS];
+            boolean surface = hasSurfaceMaps();
+            GradientStencil stencil = stencil(surface);
+            for (int i = from; i < to; ++i) {
+                stencil.at(i, this::offset).norm(data, 0, width, stats, multiplier, gradientNorm, i * scansize);
+                if (surface)
+                    stencil.surface(0, width, surfaceScale(), normalMap, slopeMap, i * width);
+                NormHistogram.count(gradientNorm, i * scansize, width, counts);
+                progress.advance(1);
+            }
+            return counts;
+        }, NormHistogram::mergeCounts));
+    }
 
-                    extractValue(i - 1, j);
-                    int v1 = val;
+    /**
+     * Computes surface maps set with {@link #setSurfaceMaps} in a single pass, without the gradient norm.
+     */
+    public void calculateSurfaceMaps() {
+        double scale = surfaceScale();
+        engine.forEachBand(height, (from, to) -> {
+            GradientStencil stencil = stencil(true);
+            for (int i = from; i < to; ++i) {
+                stencil.at(i, this::offset).gradients(data, 0, width);
+                stencil.surface(0, width, scale, normalMap, slopeMap, i * width);
+                progress.advance(1);
+            }
+        });
+    }
 
-                    gradientX[i][j] = (double) -(v2 - v1) / (row[i + 1] - row[i - 1]);
+    /**
+     * Updates surface maps after heights of given tiles changed, {@link #data} already holding new values. Unlike
+     * the gradient norm they are not scaled by extremums, only dirty tiles and the halo the gradient operator
+     * stencil reaches around them are recomputed.
+     */
+    public void updateSurfaceMaps(DirtyTiles dirty) {
+        double scale = surfaceScale();
+        int[][] rects = dirty.rectangles(gradientOperator.getRadius());
+        engine.forEachBand(rects.length, (from, to) -> {
+            GradientStencil stencil = stencil(true);
+            for (int t = from; t < to; t++) {
+                int[] rect = rects[t];
+                for (int i = rect[1]; i < rect[3]; ++i) {
+                    stencil.at(i, this::offset).gradients(data, rect[0], rect[2]);
+                    stencil.surface(rect[0], rect[2], scale, normalMap, slopeMap, i * width);
                 }
+                progress.checkCancelled();
             }
-        }
+        });
+    }
 
-        if (width > 1) {
-			/*
-			  Calculate gradient for boundary pixels.
-			 */
-            for (int j = 0; j < height; ++j) {
-                extractValue(j, 1);
-                int v2 = val;
+    private boolean hasSurfaceMaps() {
+        return normalMap != null || slopeMap != null;
+    }
 
-                extractValue(j, 0);
-                int v1 = val;
+    /**
+     * World height difference per pixel of a unit gradient.
+     */
+    private double surfaceScale() {
+        return surfaceScale(gradientOperator, pixelSize, heightScale);
+    }
+
+    static double surfaceScale(GradientOperator operator, double pixelSize, double heightScale) {
+        return heightScale / (pixelSize * operator.getGain());
+    }
 
-                gradientY[j][0] = (double) (v2 - v1) / (column[1] - column[0]);
+    /**
+     * First pass of {@link #calculateFusedGradientNorm(double)} when tracking tiles, keeping extremums of each tile.
+     */
+    private NormStats calculateTileStats() {
+        DirtyTiles layout = new DirtyTiles(width, height);
+        tileStats = new NormStats[layout.columns * layout.rows];
+        engine.forEachBand(layout.rows, (from, to) -> {
+            for (int ty = from; ty < to; ty++) {
+                for (int tx = 0; tx < layout.columns; tx++)
+                    tileStats[ty * layout.columns + tx] = tileStats(tx, ty);
+                progress.advance(Math.min(height, (ty + 1) * DirtyTiles.TILE_SIZE) - ty * DirtyTiles.TILE_SIZE);
+            }
+        });
+        return mergeTileStats();
+    }
 
-                extractValue(j, width - 1);
-                int vn = val;
+    private NormStats tileStats(int tx, int ty) {
+        NormStats stats = new NormStats(integerGradients);
+        GradientStencil stencil = stencil();
+        int x0 = tx * DirtyTiles.TILE_SIZE, x1 = Math.min(width, x0 + DirtyTiles.TILE_SIZE);
+        for (int i = ty * DirtyTiles.TILE_SIZE; i < Math.min(height, (ty + 1) * DirtyTiles.TILE_SIZE); ++i)
+            stencil.at(i, this::offset).stats(data, x0, x1, stats);
+        return stats;
+    }
 
-                extractValue(j, width - 2);
-                int vn1 = val;
+    private NormStats mergeTileStats() {
+        NormStats stats = new NormStats(integerGradients);
+        for (NormStats tile : tileStats)
+            stats = stats.merge(tile.copy()); // Merging changes its receiver, tiles are kept
+        return stats;
+    }
 
-                gradientY[j][width - 1] = (double) (vn - vn1) / (column[width - 1] - column[width - 2]);
+    /**
+     * Updates {@link #gradientNorm} after heights of given tiles changed, {@link #data} already holding new
+     * values. Extremums of dirty tiles and of tiles next to them are recomputed first. If extremums of the whole
+     * map did not change, only dirty tiles and a halo around them as wide as the radius of the gradient operator,
+     * which its stencil reaches, are recomputed. Otherwise every norm is rescaled. {@link #normHistogram} is cleared either way.
+     * <p>
+     * Requires a previous {@link #calculateFusedGradientNorm(double)} made while tracking tiles.
+     *
+     * @return True if the whole norm was rescaled.
+     */
+    public boolean updateGradientNorm(DirtyTiles dirty) {
+        if (tileStats == null)
+            throw new IllegalStateException("Gradient norm was not computed while tracking tiles.");
+        normHistogram = null;
+        if (dirty.isEmpty())
+            return false;
+        DirtyTiles touched = dirty.withNeighbours();
+        int[][] tiles = touched.rectangles(0);
+        engine.forEachBand(tiles.length, (from, to) -> {
+            for (int t = from; t < to; t++) {
+                int tx = tiles[t][0] / DirtyTiles.TILE_SIZE, ty = tiles[t][1] / DirtyTiles.TILE_SIZE;
+                tileStats[ty * touched.columns + tx] = tileStats(tx, ty);
+                progress.checkCancelled();
             }
+        });
+        NormStats stats = mergeTileStats();
+        if (!stats.sameScale(normStats)) {
+            normStats = stats;
+            engine.forEachBand(height, (from, to) -> {
+                GradientStencil stencil = stencil();
+                for (int i = from; i < to; ++i) {
+                    stencil.at(i, this::offset).norm(data, 0, width, stats, normMultiplier, gradientNorm, i * scansize);
+                    progress.checkCancelled();
+                }
+            });
+            return true;
         }
+        int[][] rects = dirty.rectangles(gradientOperator.getRadius());
+        engine.forEachBand(rects.length, (from, to) -> {
+            GradientStencil stencil = stencil();
+            for (int t = from; t < to; t++) {
+                int[] rect = rects[t];
+                for (int i = rect[1]; i < rect[3]; ++i)
+                    stencil.at(i, this::offset).norm(data, rect[0], rect[2], stats, normMultiplier, gradientNorm,
+                            i * scansize);
+                progress.checkCancelled();
+            }
+        });
+        return false;
+    }
 
-        if (width > 2) {
-			/*
-			  Calculate gradient for central pixels.
-			 */
-            for (int i = 0; i < height; ++i) {
-                for (int j = 1; j < width - 1; ++j) {
-
-                    extractValue(i, j + 1);
-                    int v2 = val;
-
-                    extractValue(i, j - 1);
-                    int v1 = val;
+    /**
+     * Updates RG encoded heights of given tiles, see {@link #calculateRGImage()}.
+     *
+     * @param rgImage Pixels of the RG image, width * height RGB pixels.
+     */
+    public void updateRGImage(DirtyTiles dirty, int[] rgImage) {
+        int[][] rects = dirty.rectangles(0);
+        engine.forEachBand(rects.length, (from, to) -> {
+            for (int t = from; t < to; t++) {
+                int[] rect = rects[t];
+                int x0 = Math.max(1, rect[0]); // First pixel is left untouched, as rgRow() does
+                for (int i = rect[1]; i < rect[3]; ++i)
+                    for (int j = x0; j < rect[2]; ++j)
+                        rgImage[i * width + j] = (data[i * scansize + j] & 0xffff) << 8;
+                progress.checkCancelled();
+            }
+        });
+    }
 
-                    gradientY[i][j] = (double) (v2 - v1) / (column[j + 1] - column[j - 1]);
+    /**
+     * Recomputes masks of given tiles, see {@link #calculateMasks}.
+     *
+     * @param halo     Pixels around tiles to recompute as well, the gradient operator radius after a gradient norm
+     *                 update.
+     * @param trackRgb Track mask colors, width * height pixels as returned by {@link RgbRowReader}, or null.
+     */
+    public void updateMasks(DirtyTiles dirty, int halo, double lowerBound, double upperBound, int[] trackRgb,
+                            int[] rgbMask, int[] customMap, int[] customColors) {
+        int up = maskBound(upperBound);
+        int low = maskBound(lowerBound);
+        int[][] rects = dirty.rectangles(halo);
+        engine.forEachBand(rects.length, (from, to) -> {
+            for (int t = from; t < to; t++) {
+                int[] rect = rects[t];
+                for (int i = rect[1]; i < rect[3]; ++i) {
+                    int off = i * width + rect[0];
+                    maskRow(gradientNorm, i * scansize + rect[0], low, up, trackRgb, off, rgbMask, off,
+                            customMap, off, customColors, rect[2] - rect[0]);
                 }
+                progress.checkCancelled();
             }
-        }
+        });
     }
 
     /**
-     * Reads heightmap value for a given i (y) and a given j (x) and stores result
-     * in {@link #val}.
-     *
-     * @param i Row index.
-     * @param j Column index.
+     * Function that counts values of {@link #gradientNorm} when it was not computed by
+     * {@link #calculateFusedGradientNorm(double)}, which counts them as it goes. Stores result in {@link #normHistogram}.
      */
-    private void extractValue(int i, int j) {
-        val = data[i * scansize + j] & 0xffff; // get unsigned short as int
+    public void calculateNormHistogram() {
+        progress.checkCancelled();
+        normHistogram = NormHistogram.of(gradientNorm, engine);
+        progress.advance(height);
     }
 
-    public void releaseGradientsRef() {
-        gradientX = null;
-        gradientY = null;
+    private int rowAbove(int i) {
+        return rowAbove(i, height);
+    }
+
+    private int rowBelow(int i) {
+        return rowBelow(i, height);
+    }
+
+    private int offset(int row) {
+        return row * scansize;
+    }
+
+    private short[] shorts(int length) {
+        return pool != null ? pool.shorts(length) : new short[length];
+    }
+
+    private double[][] doubles(int rows, int columns) {
+        return pool != null ? pool.doubles(rows, columns) : new double[rows][columns];
+    }
+
+    private void release(Object plane) {
+        if (pool != null)
+            pool.release(plane);
+    }
+
+    private GradientStencil stencil() {
+        return stencil(false);
+    }
+
+    private GradientStencil stencil(boolean surface) {
+        return new GradientStencil(gradientOperator, width, height, surface);
+    }
+
+    static int rowAbove(int i, int height) {
+        return i > 0 ? i - 1 : 0;
+    }
+
+    static int rowBelow(int i, int height) {
+        return i < height - 1 ? i + 1 : height - 1;
+    }
+
+    static boolean isEdgeRow(int i, int height) {
+        return i == 0 || i == height - 1;
     }
 
     /**
-     * Function that calculates the euclidean norm of Gx(x, y) and Gy(x, y)
-     * for each (x, y) scaled to a short.
-     *
-     * @param multiplier A multiplier that will be applied to computed norm of each point.
+     * Extremums of the gradient norm. Squared norm is tracked as an exact integer (differences
+     * are doubled so that central ones do not need to be halved), euclidean norm is only computed
+     * when a new maximum is met.
      */
-    public void calculateGradientNorm(double multiplier) {
-        gradientNorm = new short[width * height];
-
-        double[][] arr = new double[width][height];
-        double max = 0, min = 0;
-
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-				/*
-				  Calculate euclidean norm and extremums for scaling.
-				 */
-                arr[x][y] = Math.hypot(gradientY[y][x], gradientX[y][x]);
-
-                if (arr[x][y] > max) {
-                    max = arr[x][y];
-                } else if (arr[x][y] < min) {
-                    min = arr[x][y];
-                }
+    static final class NormStats {
+
+        final boolean integer; // Norms come from the exact squared norm instead of hypot()
+        long maxSquared;
+        double max, min; // min stays 0 as norms are never negative, same as calculateGradientNorm()
+        private int maxDx, maxDy;
+
+        NormStats() {
+            this(false);
+        }
+
+        NormStats(boolean integer) {
+            this.integer = integer;
+        }
+
+        void accumulate(int dx, int dy) {
+            long squared = (long) dx * dx + (long) dy * dy;
+            if (squared < maxSquared || squared == 0)
+                return;
+            if (integer) {
+                maxSquared = squared;
+                return;
+            }
+            int ax = Math.abs(dx), ay = Math.abs(dy);
+            if (squared > maxSquared) {
+                maxSquared = squared;
+                maxDx = ax;
+                maxDy = ay;
+                max = Math.hypot(ay * 0.5, ax * 0.5);
+            } else if (!(ax == maxDx && ay == maxDy) && !(ax == maxDy && ay == maxDx)) {
+                // Same exact norm from other differences, hypot() may round differently
+                max = Math.max(max, Math.hypot(ay * 0.5, ax * 0.5));
             }
         }
 
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-				/*
-				  Scaling into 0-65535 (unsigned short).
-				 */
+        /**
+         * Returns stats with the same extremums, which merges can update without changing these ones.
+         */
+        NormStats copy() {
+            NormStats copy = new NormStats(integer);
+            copy.maxSquared = maxSquared;
+            copy.max = max;
+            copy.min = min;
+            copy.maxDx = maxDx;
+            copy.maxDy = maxDy;
+            return copy;
+        }
 
-                gradientNorm[y * scansize + x] = (short) Math.min(
-                        (arr[x][y] - min) / (max - min) * USHORT_MAX_VALUE * multiplier,
-                        USHORT_MAX_VALUE
-                );
+        /**
+         * Returns true if norms scaled with other extremums are the same as with these ones.
+         */
+        boolean sameScale(NormStats other) {
+            return maxSquared == other.maxSquared && (integer || max == other.max && min == other.min);
+        }
 
+        /**
+         * Merges extremums of two bands. Result does not depend on which band comes first.
+         */
+        NormStats merge(NormStats other) {
+            if (other.maxSquared > maxSquared) {
+                return other;
+            } else if (other.maxSquared == maxSquared) {
+                max = Math.max(max, other.max);
             }
+            return this;
+        }
+
+        /**
+         * Factor turning the square root of a doubled squared norm into the 0-65535 range, the
+         * /2 of central differences and the max norm being folded into it.
+         */
+        double integerScale(double multiplier) {
+            return maxSquared == 0 ? 0 : USHORT_MAX_VALUE * multiplier / Math.sqrt(maxSquared);
         }
     }
 
     /**
-     * Function that calculates the RGB mask from relief map values.
+     * Accumulates gradient norm extremums of a row into given stats.
      *
-     * @param lowerBound
-     * @param upperBound
+     * @param src     Heightmap values.
+     * @param prev    Offset of the row above in src (the row itself for first row).
+     * @param row     Offset of the row in src.
+     * @param next    Offset of the row below in src (the row itself for last row).
+     * @param edgeRow True if the row is the first or the last one, which uses a one-sided difference.
      */
-    public void calculateRGBMask(double lowerBound, double upperBound) {
-        rgbMaskData = new int[width * height];
-        int up = (int) Math.round(USHORT_MAX_VALUE * upperBound);
-        int low = (int) Math.round(USHORT_MAX_VALUE * lowerBound);
+    static void normStatsRow(short[] src, int prev, int row, int next, boolean edgeRow, int width, NormStats stats) {
+        normStatsRange(src, prev, row, next, edgeRow, width, 0, width, stats);
+    }
 
-        for (int y = 0; y < height; ++y) {
+    /**
+     * {@link #normStatsRow} restricted to columns [from, to).
+     */
+    static void normStatsRange(short[] src, int prev, int row, int next, boolean edgeRow, int width,
+                               int from, int to, NormStats stats) {
+        int rowFactor = edgeRow ? 2 : 1;
+        for (int j = from; j < to; ++j) {
+            int left = j > 0 ? j - 1 : 0;
+            int right = j < width - 1 ? j + 1 : width - 1;
+            int colFactor = j == 0 || j == width - 1 ? 2 : 1;
+
+            int dx = ((src[next + j] & 0xffff) - (src[prev + j] & 0xffff)) * rowFactor;
+            int dy = ((src[row + right] & 0xffff) - (src[row + left] & 0xffff)) * colFactor;
+            stats.accumulate(dx, dy);
+        }
+    }
+
+    /**
+     * Computes the scaled gradient norm of a row, see {@link #normStatsRow} for parameters.
+     *
+     * @param stats  Extremums of the whole heightmap.
+     * @param dst    Destination of scaled norms.
+     * @param dstOff Offset of the row in dst.
+     */
+    static void normRow(short[] src, int prev, int row, int next, boolean edgeRow, int width,
+                        NormStats stats, double multiplier, short[] dst, int dstOff) {
+        if (stats.integer) {
+            KERNELS.integerNormRow(src, prev, row, next, edgeRow, width, stats.integerScale(multiplier), dst, dstOff);
+            return;
+        }
+        normRange(src, prev, row, next, edgeRow, width, 0, width, stats, multiplier, dst, dstOff);
+    }
 
-            for (int x = 0; x < width; ++x) {
+    /**
+     * {@link #normRow} restricted to columns [from, to), dstOff being the offset of the whole row.
+     */
+    static void normRange(short[] src, int prev, int row, int next, boolean edgeRow, int width, int from, int to,
+                          NormStats stats, double multiplier, short[] dst, int dstOff) {
+        if (stats.integer) {
+            RowKernels.integerNormRange(src, prev, row, next, edgeRow, width, from, to,
+                    stats.integerScale(multiplier), dst, dstOff);
+            return;
+        }
+        double max = stats.max, min = stats.min;
+        int rowFactor = edgeRow ? 2 : 1;
+        for (int j = from; j < to; ++j) {
+            int left = j > 0 ? j - 1 : 0;
+            int right = j < width - 1 ? j + 1 : width - 1;
+            int colFactor = j == 0 || j == width - 1 ? 2 : 1;
+
+            int dx = ((src[next + j] & 0xffff) - (src[prev + j] & 0xffff)) * rowFactor;
+            int dy = ((src[row + right] & 0xffff) - (src[row + left] & 0xffff)) * colFactor;
+            double norm = Math.hypot(dy * 0.5, -dx * 0.5);
+
+            dst[dstOff + j] = (short) Math.min(
+                    (norm - min) / (max - min) * USHORT_MAX_VALUE * multiplier,
+                    USHORT_MAX_VALUE
+            );
+        }
+    }
 
-                val = gradientNorm[y * scansize + x] & 0xffff; // get unsigned short as int
 
-                if (val < low)
-                    rgbMaskData[y * scansize + x] = 0x0000ff00; // green
-                else if (val < up)
-                    rgbMaskData[y * scansize + x] = 0x00ff0000; // red
-                else
-                    rgbMaskData[y * scansize + x] = 0x000000ff; // blue
+    /**
+     * Computes the scaled gradient norm of columns [from, to) from gradients of a {@link GradientOperator}, see
+     * {@link #normRange(short[], int, int, int, boolean, int, int, int, NormStats, double, short[], int)}.
+     */
+    static void normRange(int[] dx, int[] dy, int from, int to, NormStats stats, double multiplier,
+                          short[] dst, int dstOff) {
+        if (stats.integer) {
+            double scale = stats.integerScale(multiplier);
+            for (int j = from; j < to; ++j) {
+                long x = dx[j], y = dy[j];
+                dst[dstOff + j] = (short) Math.min(Math.sqrt(x * x + y * y) * scale, USHORT_MAX_VALUE);
             }
+            return;
+        }
+        double max = stats.max, min = stats.min;
+        for (int j = from; j < to; ++j) {
+            double norm = Math.hypot(dy[j] * 0.5, -dx[j] * 0.5);
+
+            dst[dstOff + j] = (short) Math.min(
+                    (norm - min) / (max - min) * USHORT_MAX_VALUE * multiplier,
+                    USHORT_MAX_VALUE
+            );
         }
     }
 
     /**
-     * Function that set rgb mask pixel to black using red information, and alpha value using green
-     * information from the track mask image.
-     * <p>
-     * This can be heavily optimized by accessing buffers, but getRGB()
-     * is used to support any kind of image.
+     * Computes normals and slopes of columns [from, to) from gradients of a {@link GradientOperator}, see
+     * {@link #setSurfaceMaps}.
      *
-     * @param im Track mask image
+     * @param scale   World height difference per pixel of a unit gradient.
+     * @param normals Destination of RGB normals, or null.
+     * @param slopes  Destination of scaled slopes, or null.
+     * @param off     Offset of the whole row in normals and slopes.
      */
-    public void applyTrackMask(BufferedImage im) {
-        int mask_val;
-        for (int y = 0; y < height; ++y) {
+    static void surfaceRange(int[] dx, int[] dy, int from, int to, double scale, int[] normals, short[] slopes,
+                             int off) {
+        for (int j = from; j < to; ++j) {
+            double right = dy[j] * scale; // Height difference per world unit towards the right
+            double down = dx[j] * scale; // Towards the bottom
+            double squared = right * right + down * down;
+            if (normals != null) {
+                double inverse = 1 / Math.sqrt(squared + 1);
+                // Rounded values are positive, truncation is cheaper than Math.round()
+                int r = (int) ((1 - right * inverse) * 127.5 + 0.5);
+                int g = (int) ((1 + down * inverse) * 127.5 + 0.5);
+                int b = (int) ((1 + inverse) * 127.5 + 0.5);
+                normals[off + j] = r << 16 | g << 8 | b;
+            }
+            if (slopes != null) {
+                double tangent = Math.sqrt(squared);
+                double t = tangent / (1 + tangent) * SLOPE_STEPS;
+                int i = (int) t;
+                double slope = SLOPES[i] + (SLOPES[i + 1] - SLOPES[i]) * (t - i);
+                slopes[off + j] = (short) (slope + 0.5);
+            }
+        }
+    }
 
-            for (int x = 0; x < width; ++x) {
-                mask_val = im.getRGB(x, y);
+    /**
+     * Runs a {@link GradientOperator} over a heightmap one row at a time. Central difference goes through the
+     * kernels above, other operators, and central difference when surface maps need gradients too, fill a row of
+     * gradients that norm and surface kernels consume right away. A stencil keeps row buffers, each band of rows
+     * uses its own.
+     */
+    static final class GradientStencil {
+
+        private final GradientOperator operator;
+        private final int width, height;
+        private final int[] rows; // Offsets of rows the stencil reaches
+        private final int[] dx, dy; // Null when central difference kernels are used
+        private int row;
+
+        /**
+         * @param surface True if gradients are kept for {@link #surface}.
+         */
+        GradientStencil(GradientOperator operator, int width, int height, boolean surface) {
+            this.operator = operator;
+            this.width = width;
+            this.height = height;
+            rows = new int[2 * operator.getRadius() + 1];
+            boolean kernels = operator == GradientOperator.CENTRAL_DIFFERENCE && !surface;
+            dx = kernels ? null : new int[width];
+            dy = kernels ? null : new int[width];
+        }
 
-                if ((mask_val & 0x00ff0000) >> 16 > 0) { // if has red
-                    mask_val = (mask_val & 0x00ff0000) >> 16; // extract red
-                    mask_val = 255 - mask_val; // invert
+        /**
+         * Centers the stencil on row i.
+         *
+         * @param offset Offset of a row in heightmap values.
+         */
+        GradientStencil at(int i, IntUnaryOperator offset) {
+            int radius = rows.length / 2;
+            for (int k = 0; k < rows.length; k++)
+                rows[k] = offset.applyAsInt(Math.max(0, Math.min(height - 1, i + k - radius)));
+            row = i;
+            return this;
+        }
 
-                    val = rgbMaskData[y * scansize + x] & 0x00ffffff;
+        /**
+         * Accumulates gradient norm extremums of columns [from, to) of the row into given stats.
+         */
+        void stats(short[] src, int from, int to, NormStats stats) {
+            if (dx == null) {
+                normStatsRange(src, rows[0], rows[1], rows[2], isEdgeRow(row, height), width, from, to, stats);
+                return;
+            }
+            operator.gradients(src, rows, width, from, to, dx, dy);
+            for (int j = from; j < to; ++j)
+                stats.accumulate(dx[j], dy[j]);
+        }
 
-                    if (val == 0xff0000) // if red, set our inverted value to red channel and 0 to others
-                        rgbMaskData[y * scansize + x] = mask_val << 16;
-                    else if (val == 0x00ff00)
-                        rgbMaskData[y * scansize + x] = mask_val << 8; // same if green
-                    else if (val == 0x0000ff)
-                        rgbMaskData[y * scansize + x] = mask_val; // same if blue
+        /**
+         * Computes the scaled gradient norm of columns [from, to) of the row.
+         *
+         * @param dstOff Offset of the whole row in dst.
+         */
+        void norm(short[] src, int from, int to, NormStats stats, double multiplier, short[] dst, int dstOff) {
+            if (dx == null && from == 0 && to == width) {
+                normRow(src, rows[0], rows[1], rows[2], isEdgeRow(row, height), width, stats, multiplier, dst, dstOff);
+            } else if (dx == null) {
+                normRange(src, rows[0], rows[1], rows[2], isEdgeRow(row, height), width, from, to, stats, multiplier,
+                        dst, dstOff);
+            } else {
+                operator.gradients(src, rows, width, from, to, dx, dy);
+                normRange(dx, dy, from, to, stats, multiplier, dst, dstOff);
+            }
+        }
 
-                } else if ((mask_val & 0x0000ff00) >> 8 > 0) { // if has green
-                    mask_val = (mask_val & 0x0000ff00) >> 8; // extract green
+        /**
+         * Computes gradients of columns [from, to) of the row, for {@link #surface}.
+         */
+        void gradients(short[] src, int from, int to) {
+            operator.gradients(src, rows, width, from, to, dx, dy);
+        }
 
-                    rgbMaskData[y * scansize + x] |= mask_val << 24; // set our mask value to the alpha channel
+        /**
+         * Computes surface maps of columns [from, to) from gradients of the last {@link #norm} or
+         * {@link #gradients} call, see {@link #surfaceRange}. Stencil must keep gradients.
+         */
+        void surface(int from, int to, double scale, int[] normals, short[] slopes, int off) {
+            surfaceRange(dx, dy, from, to, scale, normals, slopes, off);
+        }
+    }
 
+    /**
+     * Function that calculates the RGB mask from relief map values, applies the track mask and remaps the mask
+     * to custom colors in a single pass. Each row is classified, masked and remapped while it is still in cache,
+     * and results are written straight into given arrays, usually the {@link java.awt.image.DataBufferInt}
+     * of destination images.
+     * <p>
+     * Track mask sets rgb mask pixel to black using red information, and alpha value using green information.
+     * Common image layouts are read directly from their buffer, any other kind of image goes through getRGB(),
+     * see {@link RgbRowReader}.
+     *
+     * @param lowerBound
+     * @param upperBound
+     * @param trackMask    Track mask image, or null.
+     * @param rgbMask      Receives the RGB mask, width * height ARGB pixels. Can be null if only custom colors are wanted.
+     * @param customMap    Receives the custom colors, width * height RGB pixels, or null.
+     * @param customColors Red, green, blue and black replacement colors, used with customMap only.
+     */
+    public void calculateMasks(double lowerBound, double upperBound, BufferedImage trackMask,
+                               int[] rgbMask, int[] customMap, int[] customColors) {
+        int up = maskBound(upperBound);
+        int low = maskBound(lowerBound);
+        RgbRowReader reader = trackMask != null ? RgbRowReader.forImage(trackMask) : null;
+
+        engine.forEachBand(height, (from, to) -> {
+            int[] maskRows = reader != null ? new int[Math.min(TRACK_MASK_ROWS, to - from) * width] : null;
+            int[] mask = rgbMask != null ? rgbMask : new int[width]; // Single row when RGB mask is not kept
+            for (int y = from; y < to; y += TRACK_MASK_ROWS) {
+                int rows = Math.min(TRACK_MASK_ROWS, to - y);
+                if (reader != null)
+                    reader.readRows(y, rows, maskRows, 0);
+                for (int r = 0; r < rows; ++r) {
+                    int i = y + r;
+                    maskRow(gradientNorm, i * scansize, low, up, maskRows, r * width,
+                            mask, rgbMask != null ? i * width : 0, customMap, i * width, customColors, width);
+                    progress.advance(1);
                 }
-
             }
-        }
+        });
+    }
+
+    /**
+     * One row of {@link #calculateMasks}.
+     *
+     * @param track     Track mask colors as returned by {@link BufferedImage#getRGB(int, int)} or {@link RgbRowReader},
+     *                  or null.
+     * @param customMap Custom colors destination, or null.
+     */
+    static void maskRow(short[] norm, int normOff, int low, int up, int[] track, int trackOff,
+                        int[] rgbMask, int rgbMaskOff, int[] customMap, int customOff, int[] customColors, int width) {
+        KERNELS.rgbMaskRow(norm, normOff, rgbMask, rgbMaskOff, width, low, up);
+        if (track != null)
+            trackMaskRow(track, trackOff, rgbMask, rgbMaskOff, width);
+        if (customMap != null)
+            KERNELS.alterRgbMaskRow(rgbMask, rgbMaskOff, customMap, customOff, width,
+                    customColors[0], customColors[1], customColors[2], customColors[3]);
     }
 
-    public void alterRgbMask(int red, int green, int blue, int black) {
+    static int maskBound(double bound) {
+        return (int) Math.round(USHORT_MAX_VALUE * bound);
+    }
+
+    /**
+     * Applies a row of track mask, see {@link #calculateMasks}.
+     *
+     * @param mask    Track mask colors as returned by {@link BufferedImage#getRGB(int, int)} or {@link RgbRowReader}.
+     * @param maskOff Offset of the row in mask.
+     */
+    static void trackMaskRow(int[] mask, int maskOff, int[] rgbMask, int rgbMaskOff, int width) {
+        for (int x = 0; x < width; ++x) {
+            int mask_val = mask[maskOff + x];
+
+            if ((mask_val & 0x00ff0000) >> 16 > 0) { // if has red
+                mask_val = (mask_val & 0x00ff0000) >> 16; // extract red
+                mask_val = 255 - mask_val; // invert
 
-        for (int y = 0; y < height; ++y) {
+                int val = rgbMask[rgbMaskOff + x] & 0x00ffffff;
 
-            for (int x = 0; x < width; ++x) {
+                if (val == 0xff0000) // if red, set our inverted value to red channel and 0 to others
+                    rgbMask[rgbMaskOff + x] = mask_val << 16;
+                else if (val == 0x00ff00)
+                    rgbMask[rgbMaskOff + x] = mask_val << 8; // same if green
+                else if (val == 0x0000ff)
+                    rgbMask[rgbMaskOff + x] = mask_val; // same if blue
 
-                val = rgbMaskData[y * scansize + x];
+            } else if ((mask_val & 0x0000ff00) >> 8 > 0) { // if has green
+                mask_val = (mask_val & 0x0000ff00) >> 8; // extract green
 
-                if (val == 0x00ff0000) {
-                    rgbMaskData[y * scansize + x] = red;
-                } else if (val == 0x0000ff00) {
-                    rgbMaskData[y * scansize + x] = green;
-                } else if (val == 0x000000ff) {
-                    rgbMaskData[y * scansize + x] = blue;
-                } else {
-                    rgbMaskData[y * scansize + x] = black;
-                }
+                rgbMask[rgbMaskOff + x] |= mask_val << 24; // set our mask value to the alpha channel
 
             }
-        }
 
+        }
     }
 
     @Override
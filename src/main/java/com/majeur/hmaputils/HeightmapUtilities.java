@@ -9,6 +9,11 @@ import java.net.URISyntaxException;
 public class HeightmapUtilities implements Runnable {
 
     public static void main(String... args) {
+        if (args.length > 0) {
+            // Any argument selects command line mode, which must not touch AWT
+            System.setProperty("java.awt.headless", "true");
+            System.exit(new CommandLineRunner(System.out, System.err).run(args));
+        }
         EventQueue.invokeLater(new HeightmapUtilities());
     }
 
@@ -0,0 +1,457 @@
+package com.majeur.hmaputils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local HTTP service computing maps for other tools, only reachable from the loopback interface.
+ * <p>
+ * Jobs take the parameters of {@link ComputeMapsTask} as a JSON object and wait in a bounded queue for one of
+ * the workers, a full queue rejecting new jobs with status 429:
+ * <pre>
+ * POST   /jobs       {"source": "/maps/heightmap.png", "relief": true, "rgbMask": true, "trackMask": "track.png"}
+ *                    202 and the job, or 400, 429 (Retry-After) if the queue is full
+ * GET    /jobs       Every known job, and queue state
+ * GET    /jobs/{id}  Job status (queued, running, done, failed or cancelled), progress in rows, written files
+ *                    and stage measures once done
+ * DELETE /jobs/{id}  Cancels a queued or running job, 409 if it already ended
+ * </pre>
+ * Job parameters: source (required), rg, relief, multiplier, rgbMask, lower, upper, trackMask (relative to the
+ * heightmap directory if not absolute), custom (implies rgbMask), colors (four hex strings), output (directory,
+ * the heightmap one by default), mipmaps, gradient (central, sobel or scharr), smoothGradient, normalMap, slopeMap,
+ * pixelSize and heightScale (world units, 1 by default), and for raw 16bit heightmaps (.r16, .raw) rawWidth,
+ * rawHeight (inferred when square), bigEndian and rawRelief (implies relief, written as raw heights). The last
+ * {@value #MAX_FINISHED_JOBS} ended jobs are kept.
+ */
+public class JobServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 8765;
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    private static final int MAX_FINISHED_JOBS = 256;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final String QUEUED = "queued", RUNNING = "running", DONE = "done", FAILED = "failed",
+            CANCELLED = "cancelled";
+
+    private final HttpServer server;
+    private final ExecutorService httpExecutor;
+    private final ThreadPoolExecutor workers;
+    private final int queueCapacity;
+    private final ParallelEngine engine;
+    private final Map<String, Job> jobs = new LinkedHashMap<>(); // Guarded by this, in submission order
+    private int nextId = 1;
+    private PlaneCache cache;
+    private BufferPool pool;
+
+    /**
+     * @param port    Port to listen on, 0 picks a free one.
+     * @param workers Jobs computed concurrently.
+     */
+    public JobServer(int port, int workers, int queueCapacity, ParallelEngine engine) throws IOException {
+        this.queueCapacity = queueCapacity;
+        this.engine = engine;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handle);
+        httpExecutor = Executors.newFixedThreadPool(2, daemonThreads("hmaputils-http"));
+        server.setExecutor(httpExecutor);
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreads("hmaputils-job"));
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Sets the cache jobs reuse gradient norms from, see {@link MapsComputation#setCache(PlaneCache)}.
+     */
+    public void setCache(PlaneCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the pool jobs borrow planes from, see {@link MapsComputation#setPool(BufferPool)}. Each job returns its
+     * planes once it ends.
+     */
+    public void setPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests and cancels queued and running jobs.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        httpExecutor.shutdown();
+        workers.shutdownNow();
+        synchronized (this) {
+            for (Job job : jobs.values())
+                job.computation.cancel();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/jobs") || path.equals("/jobs/")) {
+                if (method.equals("POST"))
+                    submit(exchange);
+                else if (method.equals("GET"))
+                    send(exchange, 200, list());
+                else
+                    send(exchange, 405, error("Method not allowed."));
+                return;
+            }
+            Job job;
+            synchronized (this) {
+                job = jobs.get(path.substring("/jobs/".length()));
+            }
+            if (job == null)
+                send(exchange, 404, error("No such job."));
+            else if (method.equals("GET"))
+                send(exchange, 200, job.toJson());
+            else if (method.equals("DELETE"))
+                send(exchange, cancel(job) ? 202 : 409, job.toJson());
+            else
+                send(exchange, 405, error("Method not allowed."));
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            send(exchange, 500, error(e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        Job job;
+        try {
+            job = createJob(readBody(exchange));
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, error(e.getMessage()));
+            return;
+        }
+        synchronized (this) {
+            try {
+                workers.execute(job);
+            } catch (RejectedExecutionException e) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 429, error("Queue is full, " + queueCapacity + " jobs are waiting."));
+                return;
+            }
+            jobs.put(job.id, job);
+        }
+        exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+        send(exchange, 202, job.toJson());
+    }
+
+    private static JSONObject readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = new byte[MAX_BODY_BYTES + 1];
+            int length = 0, read;
+            while (length < body.length && (read = in.read(body, length, body.length - length)) > 0)
+                length += read;
+            if (length > MAX_BODY_BYTES)
+                throw new IllegalArgumentException("Request body is too large.");
+            Object json = new JSONParser().parse(new InputStreamReader(
+                    new ByteArrayInputStream(body, 0, length), StandardCharsets.UTF_8));
+            if (!(json instanceof JSONObject))
+                throw new IllegalArgumentException("Job parameters must be a JSON object.");
+            return (JSONObject) json;
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid JSON: " + e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If parameters are invalid.
+     */
+    private synchronized Job createJob(JSONObject params) {
+        String sourcePath = string(params, "source", null);
+        if (sourcePath == null)
+            throw new IllegalArgumentException("Missing source.");
+        File source = new File(sourcePath);
+        boolean rgmap = bool(params, "rg", false);
+        boolean relief = bool(params, "relief", false);
+        boolean custom = bool(params, "custom", false);
+        boolean rgbm = custom || bool(params, "rgbMask", false);
+        boolean rawRelief = bool(params, "rawRelief", false);
+        relief |= rawRelief;
+        boolean normalMap = bool(params, "normalMap", false), slopeMap = bool(params, "slopeMap", false);
+        if (!rgmap && !relief && !rgbm && !normalMap && !slopeMap)
+            throw new IllegalArgumentException("No output requested.");
+        int rawWidth = (int) number(params, "rawWidth", 0), rawHeight = (int) number(params, "rawHeight", 0);
+        if (rawWidth < 0 || rawHeight < 0)
+            throw new IllegalArgumentException("Raw size must be positive.");
+        double lbound = number(params, "lower", 0.3), ubound = number(params, "upper", 0.6);
+        if (ubound < lbound)
+            throw new IllegalArgumentException("Upper bound cannot be lower than lower bound.");
+        GradientOperator gradientOperator = GradientOperator.forName(string(params, "gradient", "central"),
+                bool(params, "smoothGradient", false));
+        File trackMask = null;
+        String trackMaskPath = string(params, "trackMask", null);
+        if (trackMaskPath != null) {
+            trackMask = new File(trackMaskPath);
+            if (!trackMask.isAbsolute())
+                trackMask = new File(source.getAbsoluteFile().getParentFile(), trackMaskPath);
+        }
+
+        MapsComputation computation = new MapsComputation(source, rgmap, relief, number(params, "multiplier", 1.0),
+                rgbm, lbound, ubound, trackMask, custom, colors(params));
+        computation.setEngine(engine);
+        computation.setCache(cache);
+        computation.setPool(pool);
+        computation.setMipmaps(bool(params, "mipmaps", false));
+        computation.setGradientOperator(gradientOperator);
+        computation.setSurfaceMaps(normalMap, slopeMap);
+        computation.setSurfaceScale(number(params, "pixelSize", 1), number(params, "heightScale", 1));
+        computation.setRawLayout(rawWidth, rawHeight,
+                bool(params, "bigEndian", false) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        computation.setRawRelief(rawRelief);
+        String output = string(params, "output", null);
+        if (output != null)
+            computation.setOutputDir(new File(output));
+        return new Job(Integer.toString(nextId++), computation,
+                output != null ? new File(output) : source.getAbsoluteFile().getParentFile());
+    }
+
+    private static String string(JSONObject params, String key, String def) {
+        Object value = params.get(key);
+        if (value == null)
+            return def;
+        if (!(value instanceof String))
+            throw new IllegalArgumentException(key + " must be a string.");
+        return (String) value;
+    }
+
+    private static boolean bool(JSONObject params, String key, boolean def) {
+        Object value = params.get(key);
+        if (value == null)
+            return def;
+        if (!(value instanceof Boolean))
+            throw new IllegalArgumentException(key + " must be true or false.");
+        return (Boolean) value;
+    }
+
+    private static double number(JSONObject params, String key, double def) {
+        Object value = params.get(key);
+        if (value == null)
+            return def;
+        if (!(value instanceof Number))
+            throw new IllegalArgumentException(key + " must be a number.");
+        return ((Number) value).doubleValue();
+    }
+
+    private static int[] colors(JSONObject params) {
+        Object value = params.get("colors");
+        if (value == null)
+            return new int[]{0xff0000, 0x00ff00, 0x0000ff, 0x000000};
+        if (!(value instanceof List) || ((List<?>) value).size() != 4)
+            throw new IllegalArgumentException("colors must be four hex colors.");
+        int[] colors = new int[4];
+        for (int i = 0; i < 4; i++) {
+            try {
+                colors[i] = Integer.parseInt(String.valueOf(((List<?>) value).get(i)), 16) & 0xffffff;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid color " + ((List<?>) value).get(i));
+            }
+        }
+        return colors;
+    }
+
+    /**
+     * @return False if the job already ended.
+     */
+    private boolean cancel(Job job) {
+        synchronized (job) {
+            if (job.status.equals(QUEUED) && workers.remove(job)) {
+                job.end(CANCELLED);
+                return true;
+            }
+            if (!job.status.equals(QUEUED) && !job.status.equals(RUNNING))
+                return false;
+        }
+        job.computation.cancel(); // Running, or about to
+        return true;
+    }
+
+    /**
+     * Forgets oldest ended jobs beyond {@value #MAX_FINISHED_JOBS}.
+     */
+    private synchronized void retire() {
+        int ended = 0;
+        for (Job job : jobs.values())
+            if (job.hasEnded()) ended++;
+        for (Iterator<Job> it = jobs.values().iterator(); it.hasNext() && ended > MAX_FINISHED_JOBS; ) {
+            if (it.next().hasEnded()) {
+                it.remove();
+                ended--;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject list() {
+        JSONObject json = new JSONObject();
+        JSONArray array = new JSONArray();
+        synchronized (this) {
+            for (Job job : jobs.values())
+                array.add(job.toJson());
+        }
+        json.put("jobs", array);
+        json.put("queued", workers.getQueue().size());
+        json.put("queueCapacity", queueCapacity);
+        json.put("running", workers.getActiveCount());
+        json.put("workers", workers.getMaximumPoolSize());
+        return json;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject error(String message) {
+        JSONObject json = new JSONObject();
+        json.put("error", message);
+        return json;
+    }
+
+    private static void send(HttpExchange exchange, int status, JSONObject json) throws IOException {
+        byte[] body = json.toJSONString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private class Job implements Runnable {
+
+        final String id;
+        final MapsComputation computation;
+        final File outputDir;
+        final long submitted = System.currentTimeMillis();
+        volatile String status = QUEUED; // Changes under the job lock
+        volatile int progress, total;
+        volatile String[] result;
+        volatile String error;
+        volatile long started, ended;
+
+        Job(String id, MapsComputation computation, File outputDir) {
+            this.id = id;
+            this.computation = computation;
+            this.outputDir = outputDir;
+            computation.setProgressListener((p, total) -> {
+                this.progress = p;
+                this.total = total;
+            });
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (!status.equals(QUEUED))
+                    return;
+                status = RUNNING;
+                started = System.currentTimeMillis();
+            }
+            if (computation.isCancelled()) {
+                end(CANCELLED);
+                return;
+            }
+            try {
+                result = computation.compute();
+                end(DONE);
+            } catch (CancellationException e) {
+                end(CANCELLED);
+            } catch (ComputationException e) {
+                error = e.getMessage();
+                end(FAILED);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                error = e.toString();
+                end(FAILED);
+            } finally {
+                computation.release();
+            }
+        }
+
+        void end(String status) {
+            synchronized (this) {
+                this.status = status;
+                ended = System.currentTimeMillis();
+            }
+            retire();
+        }
+
+        boolean hasEnded() {
+            return ended != 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("status", status);
+            json.put("source", computation.getInputFiles().get(0).getPath());
+            json.put("progress", progress);
+            json.put("total", total);
+            json.put("submitted", submitted);
+            if (started != 0)
+                json.put("started", started);
+            if (ended != 0)
+                json.put("ended", ended);
+            if (error != null)
+                json.put("error", error);
+            String[] result = this.result;
+            if (result != null) {
+                JSONArray outputs = new JSONArray();
+                for (String name : result)
+                    if (name != null) outputs.add(new File(outputDir, name).getPath());
+                json.put("outputs", outputs);
+                json.put("report", computation.getReport().toJson());
+            }
+            return json;
+        }
+    }
+}
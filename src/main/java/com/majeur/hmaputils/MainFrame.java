@@ -6,7 +6,10 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.text.JTextComponent;
 import javax.swing.text.MaskFormatter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
@@ -21,7 +24,7 @@ import static java.lang.Double.parseDouble;
 import static java.lang.Integer.parseInt;
 import static java.lang.Integer.toHexString;
 
-public class MainFrame extends JFrame implements ActionListener {
+public class MainFrame extends JFrame implements ActionListener, PreviewPanel.ParamsSource {
 
     private static final int RG_MAP = 0;
     private static final int RELIEF_MAP = 1;
@@ -50,12 +53,19 @@ public class MainFrame extends JFrame implements ActionListener {
     private JTextField filePathText;
     private JButton startButton;
     private JCheckBox[] checkBoxes = new JCheckBox[Strings.CHECKBOX_LABELS.length];
+    private JCheckBox mipmapsCheckBox;
+    private JCheckBox normalMapCheckBox, slopeMapCheckBox;
+    private JFormattedTextField pixelSizeText, heightScaleText;
     private JProgressBar progressBar;
     private JFormattedTextField reliefMultiplierText;
+    private JComboBox<String> gradientComboBox;
+    private JCheckBox smoothGradientCheckBox;
     private JFormattedTextField lowerRgbmBoundText, upperRgbmBoundText;
     private JButton trackMaskFileButton;
     private JTextField trackMaskPathText;
     private JFormattedTextField redColorText, greenColorText, blueColorText, blackColorText;
+    private PreviewPanel previewPanel;
+    private ComputeMapsTask runningTask; // Start button cancels it while not null
 
     public MainFrame() {
         super("Heightmap Utilities");
@@ -68,8 +78,18 @@ public class MainFrame extends JFrame implements ActionListener {
         contentPanel.add(createInputPane());
         contentPanel.add(createOutputPane());
         contentPanel.add(createBottomPane());
-        setContentPane(contentPanel);
-        setSize(530, 650);
+        previewPanel = new PreviewPanel(this);
+        JPanel rootPanel = new JPanel(new BorderLayout());
+        rootPanel.add(contentPanel, BorderLayout.CENTER);
+        rootPanel.add(previewPanel, BorderLayout.EAST);
+        rootPanel.setBorder(BorderFactory.createEmptyBorder(0, 0, 8, 8));
+        setContentPane(rootPanel);
+        listenForPreview(lowerRgbmBoundText, upperRgbmBoundText, redColorText, greenColorText, blueColorText,
+                blackColorText);
+        reliefMultiplierText.getDocument().addDocumentListener(new DocumentAdapter(() -> previewPanel.setGradientNorm(null)));
+        gradientComboBox.addActionListener(e -> previewPanel.setGradientNorm(null));
+        smoothGradientCheckBox.addActionListener(e -> previewPanel.setGradientNorm(null));
+        setSize(530 + previewPanel.getPreferredSize().width + 8, 720);
         setLocationRelativeTo(null);
 
         File[] files = HeightmapUtilities.getWorkingDir().listFiles();
@@ -121,6 +141,19 @@ public class MainFrame extends JFrame implements ActionListener {
                 label.setLabelFor(reliefMultiplierText);
                 subPanel.add(label);
                 subPanel.add(reliefMultiplierText);
+                label = new JLabel("Gradient:");
+                gradientComboBox = new JComboBox<>(GradientOperator.NAMES);
+                gradientComboBox.setToolTipText("Central difference, or Sobel and Scharr operators which are less "
+                        + "sensitive to noise");
+                gradientComboBox.setEnabled(false);
+                label.setLabelFor(gradientComboBox);
+                subPanel.add(label);
+                subPanel.add(gradientComboBox);
+                smoothGradientCheckBox = new JCheckBox("Smooth heights");
+                smoothGradientCheckBox.setToolTipText("Smooth heights with a 3x3 binomial filter before computing "
+                        + "gradients");
+                smoothGradientCheckBox.setEnabled(false);
+                subPanel.add(smoothGradientCheckBox);
                 panel.add(subPanel);
             } else if (which == RGB_MASK) {
                 JPanel subPanel = new JPanel();
@@ -188,10 +221,64 @@ public class MainFrame extends JFrame implements ActionListener {
             descLabel.setBorder(BorderFactory.createEmptyBorder(0, 22, 10, 0));
             panel.add(descLabel);
         }
+        JPanel surfacePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        surfacePanel.setAlignmentX(LEFT_ALIGNMENT);
+        normalMapCheckBox = new JCheckBox(Strings.NORMALMAP_LABEL);
+        normalMapCheckBox.setToolTipText(Strings.NORMALMAP_DESCR);
+        normalMapCheckBox.addActionListener(this);
+        surfacePanel.add(normalMapCheckBox);
+        slopeMapCheckBox = new JCheckBox(Strings.SLOPEMAP_LABEL);
+        slopeMapCheckBox.setToolTipText(Strings.SLOPEMAP_DESCR);
+        slopeMapCheckBox.addActionListener(this);
+        surfacePanel.add(slopeMapCheckBox);
+        panel.add(surfacePanel);
+        JPanel subPanel = new JPanel();
+        subPanel.setAlignmentX(LEFT_ALIGNMENT);
+        JLabel label = new JLabel("Pixel size:");
+        pixelSizeText = buildDoubleTextField(1.0, false);
+        label.setLabelFor(pixelSizeText);
+        subPanel.add(label);
+        subPanel.add(pixelSizeText);
+        label = new JLabel("Height scale:");
+        heightScaleText = buildDoubleTextField(1.0, false);
+        label.setLabelFor(heightScaleText);
+        subPanel.add(label);
+        subPanel.add(heightScaleText);
+        panel.add(subPanel);
+
+        mipmapsCheckBox = new JCheckBox(Strings.MIPMAPS_LABEL);
+        mipmapsCheckBox.setToolTipText(Strings.MIPMAPS_DESCR);
+        mipmapsCheckBox.setAlignmentX(LEFT_ALIGNMENT);
+        panel.add(mipmapsCheckBox);
         panel.setAlignmentX(CENTER_ALIGNMENT);
         return panel;
     }
 
+    private void listenForPreview(JTextComponent... fields) {
+        for (JTextComponent field : fields)
+            field.getDocument().addDocumentListener(new DocumentAdapter(previewPanel::schedule));
+    }
+
+    @Override
+    public double[] getPreviewParams() {
+        try {
+            return new double[]{
+                    parseDouble(lowerRgbmBoundText.getText()),
+                    parseDouble(upperRgbmBoundText.getText()),
+                    parseInt(redColorText.getText(), 16),
+                    parseInt(greenColorText.getText(), 16),
+                    parseInt(blueColorText.getText(), 16),
+                    parseInt(blackColorText.getText(), 16)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isCustomPreview() {
+        return checkBoxes[CUSTOM].isSelected();
+    }
+
     private JFormattedTextField buildDoubleTextField(double defValue, boolean enabled) {
         JFormattedTextField jftf = new JFormattedTextField(DECIMAL_FORMAT);
         jftf.setValue(defValue);
@@ -224,16 +311,20 @@ public class MainFrame extends JFrame implements ActionListener {
     public void actionPerformed(ActionEvent event) {
         if (event.getSource() == fileButton) {
             JFileChooser chooser = new JFileChooser();
-            chooser.setFileFilter(new FileNameExtensionFilter("PNG Images", "png"));
+            chooser.setFileFilter(new FileNameExtensionFilter("Heightmaps (PNG, raw 16bit)", "png", "r16", "raw"));
             chooser.setAcceptAllFileFilterUsed(false);
             chooser.setCurrentDirectory(sourceFile == null ? HeightmapUtilities.getWorkingDir() : sourceFile.getParentFile());
             int result = chooser.showOpenDialog(this);
             if (result == JFileChooser.APPROVE_OPTION) {
                 sourceFile = chooser.getSelectedFile();
                 filePathText.setText(sourceFile.getName());
+                previewPanel.setGradientNorm(null);
             }
         } else if (event.getSource() == checkBoxes[RELIEF_MAP]) {
-            reliefMultiplierText.setEnabled(checkBoxes[RELIEF_MAP].isSelected());
+            boolean checked = checkBoxes[RELIEF_MAP].isSelected();
+            reliefMultiplierText.setEnabled(checked);
+            gradientComboBox.setEnabled(checked);
+            smoothGradientCheckBox.setEnabled(checked);
 
         } else if (event.getSource() == checkBoxes[RGB_MASK]) {
             boolean checked = checkBoxes[RGB_MASK].isSelected();
@@ -246,6 +337,11 @@ public class MainFrame extends JFrame implements ActionListener {
                 checkBoxes[RELIEF_MAP].doClick();
             checkBoxes[RELIEF_MAP].setEnabled(!checkBoxes[RGB_MASK].isSelected());
 
+        } else if (event.getSource() == normalMapCheckBox || event.getSource() == slopeMapCheckBox) {
+            boolean checked = normalMapCheckBox.isSelected() || slopeMapCheckBox.isSelected();
+            pixelSizeText.setEnabled(checked);
+            heightScaleText.setEnabled(checked);
+
         } else if (event.getSource() == trackMaskFileButton) {
             JFileChooser chooser = new JFileChooser();
             chooser.setFileFilter(new FileNameExtensionFilter("PNG Images", "png"));
@@ -266,6 +362,11 @@ public class MainFrame extends JFrame implements ActionListener {
             if (!checkBoxes[RGB_MASK].isSelected())
                 checkBoxes[RGB_MASK].doClick();
             checkBoxes[RGB_MASK].setEnabled(!checkBoxes[CUSTOM].isSelected());
+            previewPanel.schedule();
+
+        } else if (event.getSource() == startButton && runningTask != null) {
+            runningTask.cancelComputation();
+            startButton.setEnabled(false);
 
         } else if (event.getSource() == startButton) {
             startComputation(sourceFile, checkBoxes[RG_MAP].isSelected(),
@@ -287,9 +388,22 @@ public class MainFrame extends JFrame implements ActionListener {
     private void startComputation(File src, boolean rgmap, boolean relief, double multiplier,
                                   boolean rgbm, double lbound, double ubound, File trackMask, boolean custom, int red,
                                   int green, int blue, int black) {
-        saveParams(src, multiplier, lbound, ubound, trackMask, red, green, blue, black);
+        String gradient = (String) gradientComboBox.getSelectedItem();
+        boolean smoothGradient = smoothGradientCheckBox.isSelected();
+        double pixelSize = parseDouble(pixelSizeText.getText()), heightScale = parseDouble(heightScaleText.getText());
+        if (!(pixelSize > 0) || !(heightScale > 0)) {
+            JOptionPane.showMessageDialog(this, "Pixel size and height scale must be positive.", "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        saveParams(src, multiplier, gradient, smoothGradient, pixelSize, heightScale, lbound, ubound, trackMask, red,
+                green, blue, black);
         ComputeMapsTask worker = new ComputeMapsTask(src, rgmap, relief, multiplier, rgbm, lbound, ubound, trackMask, custom,
                 new int[]{red, green, blue, black});
+        worker.setMipmaps(mipmapsCheckBox.isSelected());
+        worker.setGradientOperator(GradientOperator.forName(gradient, smoothGradient));
+        worker.setSurfaceMaps(normalMapCheckBox.isSelected(), slopeMapCheckBox.isSelected());
+        worker.setSurfaceScale(pixelSize, heightScale);
         worker.setCallbacks(new Callbacks() {
 
             @Override
@@ -299,10 +413,10 @@ public class MainFrame extends JFrame implements ActionListener {
                 for (String name : arr)
                     if (name != null) text += System.lineSeparator() + name;
                 progressBar.setValue(progressBar.getMaximum());
+                if (worker.getGradientNorm() != null)
+                    previewPanel.setGradientNorm(worker.getGradientNorm());
                 JOptionPane.showMessageDialog(MainFrame.this, text, "Done", JOptionPane.INFORMATION_MESSAGE);
-                startButton.setEnabled(true);
-                progressBar.setValue(0);
-                setCursor(Cursor.getDefaultCursor());
+                onComputationEnd();
             }
 
             @Override
@@ -315,21 +429,35 @@ public class MainFrame extends JFrame implements ActionListener {
             public void onError(String reason) {
                 setWindowProgressCompat(true, true);
                 JOptionPane.showMessageDialog(MainFrame.this, reason, "Error", JOptionPane.ERROR_MESSAGE);
-                startButton.setEnabled(true);
-                progressBar.setValue(0);
-                setCursor(Cursor.getDefaultCursor());
+                onComputationEnd();
                 setWindowProgressCompat(false, false);
             }
 
+            @Override
+            public void onCancelled() {
+                setWindowProgressCompat(false, false);
+                onComputationEnd();
+            }
+
         });
+        runningTask = worker;
         progressBar.setEnabled(true);
-        startButton.setEnabled(false);
+        startButton.setText("Cancel");
         setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
         setWindowProgressCompat(true, false);
         worker.execute();
     }
 
-    public void saveParams(File srcFile, double rmultiplier, double lbound, double ubound, File trackMask,
+    private void onComputationEnd() {
+        runningTask = null;
+        startButton.setText("Go !");
+        startButton.setEnabled(true);
+        progressBar.setValue(0);
+        setCursor(Cursor.getDefaultCursor());
+    }
+
+    public void saveParams(File srcFile, double rmultiplier, String gradient, boolean smoothGradient,
+                           double pixelSize, double heightScale, double lbound, double ubound, File trackMask,
 						   int red, int green, int blue, int black) {
         SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
 
@@ -338,6 +466,10 @@ public class MainFrame extends JFrame implements ActionListener {
                 JSONObject json = new JSONObject();
                 json.put("sourcehmap", srcFile != null ? srcFile.getAbsolutePath() : "");
                 json.put("rmultiplier", rmultiplier);
+                json.put("gradient", gradient);
+                json.put("smoothgradient", smoothGradient);
+                json.put("pixelsize", pixelSize);
+                json.put("heightscale", heightScale);
                 json.put("lbound", lbound);
                 json.put("ubound", ubound);
                 json.put("trackmask", trackMask != null ? trackMask.getAbsolutePath() : "");
@@ -401,6 +533,14 @@ public class MainFrame extends JFrame implements ActionListener {
                     }
                     double rmultiplier = (Double) json.get("rmultiplier");
                     reliefMultiplierText.setText(Double.toString(rmultiplier));
+                    String gradient = (String) json.get("gradient");
+                    if (gradient != null) // Missing from configs saved by previous versions
+                        gradientComboBox.setSelectedItem(gradient);
+                    smoothGradientCheckBox.setSelected(Boolean.TRUE.equals(json.get("smoothgradient")));
+                    if (json.get("pixelsize") != null)
+                        pixelSizeText.setText(json.get("pixelsize").toString());
+                    if (json.get("heightscale") != null)
+                        heightScaleText.setText(json.get("heightscale").toString());
                     double lbound = (Double) json.get("lbound");
                     lowerRgbmBoundText.setText(Double.toString(lbound));
                     double ubound = (Double) json.get("ubound");
@@ -450,4 +590,30 @@ public class MainFrame extends JFrame implements ActionListener {
         }
     }
 
+    /**
+     * Runs an action on any change of a document.
+     */
+    private static class DocumentAdapter implements DocumentListener {
+
+        private final Runnable action;
+
+        DocumentAdapter(Runnable action) {
+            this.action = action;
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            action.run();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            action.run();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            action.run();
+        }
+    }
 }
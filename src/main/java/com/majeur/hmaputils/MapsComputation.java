@@ -0,0 +1,1754 @@
+package com.majeur.hmaputils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Computes output maps of a heightmap. This does not depend on any UI and can be run from any thread,
+ * see {@link ComputeMapsTask} for the Swing bound version.
+ * <p>
+ * In-memory computations run as a {@link StageGraph}: maps that do not depend on each other, their writes and
+ * the track mask decoding run at the same time, within a memory budget, and each image is dropped as soon as it
+ * is written.
+ * <p>
+ * Heightmaps that would not fit in memory are streamed: rows are decoded, computed and encoded by bands,
+ * after a first pass over the source collecting gradient norm extremums. Peak memory then only depends
+ * on the heightmap width. Heights decoded by the first pass can be kept off-heap for later passes, see
+ * {@link #setPlaneStorage(ShortPlane.Storage)}.
+ * <p>
+ * Heightmaps are 16bit gray PNGs, or raw heights ({@link RawHeightmap}) which are mapped instead of decoded.
+ */
+public class MapsComputation {
+
+    public interface ProgressListener {
+
+        void onProgress(int p, int total);
+    }
+
+    /**
+     * Where computed images end up, PNG files by default. Lets benchmarks leave disk out of the measure.
+     */
+    interface ImageSink {
+
+        boolean write(BufferedImage im, File file) throws IOException;
+    }
+
+    private static final int STREAMING_BAND_ROWS = 128;
+    private static final int IN_MEMORY_BYTES_PER_PIXEL = 20; // Source, norm, mask and custom images, track mask, pending writes
+    private static final String NORMAL_MAP = "normal_map.png";
+    private static final String SLOPE_MAP = "slope_map.png";
+    private static final int MAX_PENDING_WRITES = 2;
+    private static final int MAX_CONCURRENT_STAGES = 3;
+
+    private final File srcFile;
+    private final boolean rgmap, relief, rgbm, custom;
+    private final double rmultiplier, lbound, ubound;
+    private final File trackMask;
+    private final int[] replaceColors;
+
+    private File outputDir;
+    private ParallelEngine engine = ParallelEngine.getDefault();
+    private volatile ProgressListener progressListener;
+    private Boolean streaming; // Null selects automatically
+    private boolean integerGradients;
+    private GradientOperator gradientOperator = GradientOperator.CENTRAL_DIFFERENCE;
+    private PngRowWriter.Profile compression = PngRowWriter.Profile.DEFAULT;
+    private ImageSink imageSink = this::writeFile;
+    private BufferedImage trackMaskImage; // Already decoded track mask, read from trackMask file if null
+    private PlaneCache cache;
+    private String normKey; // Cache key of the gradient norm, computed once
+    private PlaneCache.Plane cachedNorm;
+    private PlaneCache.Plane gradientNorm; // Of last in-memory computation
+    private BufferPool pool; // Of in-memory planes and images, null to allocate them
+    private BufferedImage pooledSource; // Decoded by readSource(), returned to pool once computed
+    private double[] boundShares; // Blue and red shares mask bounds are derived from, given bounds are used if null
+    private double[] maskBounds; // Bounds used by last computation
+    private RunReport report;
+    private boolean writeReport = true;
+    private boolean mipmaps;
+    private boolean incremental;
+    private Planes planes; // Of last in-memory computation, kept when incremental
+    private DirtyTiles dirtyTiles; // Recomputed by last recompute(), null if everything was computed
+    private boolean normRescaled;
+    private int rawWidth, rawHeight; // Inferred from file length if zero
+    private ByteOrder rawOrder = ByteOrder.LITTLE_ENDIAN;
+    private boolean rawRelief;
+    private ShortPlane.Storage planeStorage; // Of heights kept between streaming passes, null to decode them again
+    private boolean normalMap, slopeMap;
+    private double pixelSize = 1, heightScale = 1;
+
+    private final RowProgress progress = new RowProgress((p, total) -> {
+        ProgressListener listener = progressListener;
+        if (listener != null)
+            listener.onProgress(p, total);
+    });
+    private boolean decoded; // Source decoding was counted in progress
+
+    public MapsComputation(File srcFile, boolean rgmap, boolean relief, double rmultiplier,
+                           boolean rgbm, double lbound, double ubound, File trackMask, boolean custom, int[] replaceColors) {
+        this.srcFile = srcFile;
+        this.rgmap = rgmap;
+        this.relief = relief;
+        this.rmultiplier = rmultiplier;
+        this.rgbm = rgbm;
+        this.lbound = lbound;
+        this.ubound = ubound;
+        this.trackMask = trackMask;
+        this.custom = custom;
+        this.replaceColors = replaceColors;
+        report = new RunReport(srcFile != null ? srcFile.getPath() : null);
+    }
+
+    /**
+     * Sets the directory outputs are written to, source file directory is used by default.
+     * Directory is created if needed.
+     */
+    public void setOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    public void setEngine(ParallelEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Sets the listener notified of processed rows over every stage, at most every
+     * {@value RowProgress#NOTIFY_INTERVAL} ms, from computing or writing threads.
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Stops computation from any thread. {@link #compute()} then throws {@link CancellationException} within a
+     * row of whatever it was doing, after deleting partially written files.
+     */
+    public void cancel() {
+        progress.cancel();
+    }
+
+    public boolean isCancelled() {
+        return progress.isCancelled();
+    }
+
+    /**
+     * Sets the speed/size trade-off of written PNG files, {@link PngRowWriter.Profile#DEFAULT} by default.
+     */
+    public void setCompression(PngRowWriter.Profile compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Sets the cache the gradient norm is reused from when only downstream parameters (mask bounds, track
+     * mask, colors) changed. Null, the default, disables caching. Streamed heightmaps are never cached.
+     */
+    public void setCache(PlaneCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Borrows planes and images of in-memory computations from pool, and returns them once written so that next
+     * computations reuse them. The gradient norm, and planes of incremental computations, are kept until
+     * {@link #release()}.
+     */
+    public void setPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets whether {@value RunReport#FILE_NAME} is written next to outputs, true by default. Stages are
+     * measured and emitted as JFR events either way.
+     */
+    public void setWriteReport(boolean writeReport) {
+        this.writeReport = writeReport;
+    }
+
+    /**
+     * Returns the measures of this computation stages, complete once {@link #compute()} returned.
+     */
+    public RunReport getReport() {
+        return report;
+    }
+
+    /**
+     * Sets whether a full mip chain of every output map is written next to it, as name_mip1.png,
+     * name_mip2.png... down to a single pixel. Levels are reduced from computed maps before they are written,
+     * with a majority filter for the RGB mask and the custom color map so that they keep their class colors.
+     *
+     * @see Mipmaps
+     */
+    public void setMipmaps(boolean mipmaps) {
+        this.mipmaps = mipmaps;
+    }
+
+    /**
+     * Keeps heights, gradient norm, track mask and output images of in-memory computations, so that
+     * {@link #recompute()} only recomputes tiles that changed. Planes and images stay allocated between
+     * computations, about {@value #IN_MEMORY_BYTES_PER_PIXEL} bytes per pixel. Incremental computations are never
+     * streamed nor take the gradient norm from cache.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        if (!incremental)
+            planes = null;
+    }
+
+    /**
+     * Returns source files maps are computed from: the heightmap, and the track mask if any.
+     */
+    public List<File> getInputFiles() {
+        List<File> files = new ArrayList<>();
+        files.add(srcFile);
+        if (rgbm && trackMask != null)
+            files.add(trackMask);
+        return files;
+    }
+
+    /**
+     * Returns tiles whose heights or track mask changed in last {@link #recompute()}, null if last computation
+     * computed every tile.
+     */
+    public DirtyTiles getDirtyTiles() {
+        return dirtyTiles;
+    }
+
+    /**
+     * Returns true if gradient norm extremums changed in last {@link #recompute()}, which then rescaled the whole
+     * norm and recomputed every mask.
+     */
+    public boolean isNormRescaled() {
+        return normRescaled;
+    }
+
+    /**
+     * Sets the layout of raw heightmaps (.r16, .raw files), and the byte order of written raw maps. Sizes of zero,
+     * the default, infer a square size from file length. Heights are little endian by default.
+     */
+    public void setRawLayout(int width, int height, ByteOrder order) {
+        rawWidth = width;
+        rawHeight = height;
+        rawOrder = order;
+    }
+
+    /**
+     * Sets whether the relief map is written as raw heights, heightmap_relief.r16 (and its mip levels), instead of
+     * a PNG. Raw maps follow the byte order of {@link #setRawLayout(int, int, ByteOrder)}.
+     */
+    public void setRawRelief(boolean rawRelief) {
+        this.rawRelief = rawRelief;
+    }
+
+    /**
+     * Keeps heights decoded by the first pass of streamed computations in a {@link ShortPlane} of given storage,
+     * so that later passes read them back instead of decoding the heightmap again. Null, the default, decodes it on
+     * every pass. Mapped planes take 2 bytes per pixel in a scratch file of the output directory. Raw heightmaps
+     * are read from their own mapping on every pass either way.
+     */
+    public void setPlaneStorage(ShortPlane.Storage planeStorage) {
+        this.planeStorage = planeStorage;
+    }
+
+    /**
+     * Also computes a tangent space normal map ({@value #NORMAL_MAP}) and a slope map ({@value #SLOPE_MAP}) from
+     * the gradients the relief map is computed from, in the same pass, see {@link HeightmapMath#setSurfaceMaps}.
+     * Computations with surface maps do not take the gradient norm from cache, as gradients are needed anyway.
+     */
+    public void setSurfaceMaps(boolean normalMap, boolean slopeMap) {
+        this.normalMap = normalMap;
+        this.slopeMap = slopeMap;
+    }
+
+    /**
+     * @param pixelSize   World units between two pixels, 1 by default.
+     * @param heightScale World units of a heightmap unit, 1 by default.
+     */
+    public void setSurfaceScale(double pixelSize, double heightScale) {
+        if (!(pixelSize > 0) || !(heightScale > 0))
+            throw new IllegalArgumentException("Pixel size and height scale must be positive.");
+        this.pixelSize = pixelSize;
+        this.heightScale = heightScale;
+    }
+
+    private boolean hasSurfaceMaps() {
+        return normalMap || slopeMap;
+    }
+
+    void setImageSink(ImageSink imageSink) {
+        this.imageSink = imageSink;
+    }
+
+    void setTrackMaskImage(BufferedImage trackMaskImage) {
+        this.trackMaskImage = trackMaskImage;
+    }
+
+    /**
+     * Forces streaming by bands of rows on or off. By default heightmaps are streamed only when they
+     * would not fit in memory. Heightmaps of more than 2^31 samples are streamed anyway.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @see HeightmapMath#setIntegerGradients(boolean)
+     */
+    public void setIntegerGradients(boolean integerGradients) {
+        this.integerGradients = integerGradients;
+    }
+
+    /**
+     * @see HeightmapMath#setGradientOperator(GradientOperator)
+     */
+    public void setGradientOperator(GradientOperator gradientOperator) {
+        this.gradientOperator = gradientOperator;
+    }
+
+    /**
+     * Returns true if {@link #compute()} will stream the heightmap instead of decoding it at once. Heightmaps of
+     * more than 2^31 samples are always streamed, in-memory computations index samples with ints.
+     */
+    public boolean isStreaming() {
+        if (srcFile == null)
+            return false;
+        long samples = sourceSamples();
+        if (samples > Integer.MAX_VALUE)
+            return true;
+        if (incremental)
+            return false;
+        if (streaming != null)
+            return streaming;
+        return samples * inMemoryBytesPerPixel() > Runtime.getRuntime().maxMemory() / 4 * 3;
+    }
+
+    /**
+     * Returns width * height of the source heightmap, 0 if it cannot be read, which readSource() then reports.
+     */
+    private long sourceSamples() {
+        if (RawHeightmap.isRaw(srcFile)) {
+            try {
+                RawHeightmap raw = rawLayout();
+                return (long) raw.width * raw.height;
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+        try (PngRowReader reader = new PngRowReader(srcFile)) {
+            return (long) reader.width * reader.height;
+        } catch (IOException e) {
+            return 0; // Let ImageIO handle it and report the error
+        }
+    }
+
+    private int inMemoryBytesPerPixel() {
+        return IN_MEMORY_BYTES_PER_PIXEL + (normalMap ? 4 : 0) + (slopeMap ? 2 : 0);
+    }
+
+    /**
+     * Sets progress total once heightmap size is known. Decoding counts height rows, then in-memory computations
+     * count the rows of their stages, see {@link #stages}, and streamed ones height rows per pass over the source.
+     * Stages that turn out not to be needed are counted at once.
+     */
+    private synchronized void planProgress(int width, int height, boolean streamed) {
+        if (progress.getTotal() > 0)
+            return;
+        if (!streamed) {
+            progress.setTotal(height + stages(null, width, height, new Planes(null), new String[6]).getRows());
+            return;
+        }
+        int passes = 1;
+        if (rgbm && boundShares != null) passes += 1;
+        if (relief || rgbm) passes += 1;
+        progress.setTotal((long) passes * height);
+    }
+
+    /**
+     * Reads and checks source heightmap. Can be called ahead of {@link #compute(BufferedImage)}
+     * to decode next heightmap while another one is computed.
+     */
+    public BufferedImage readSource() throws ComputationException {
+        if (srcFile == null)
+            throw new ComputationException("No input file.");
+        if (sourceSamples() > Integer.MAX_VALUE)
+            throw new ComputationException(srcFile.getName() + " has more than 2^31 samples, it can only be streamed.");
+
+        RunReport.Stage stage = report.start("decode");
+        BufferedImage sourceImage = RawHeightmap.isRaw(srcFile) ? readRaw() : readImage(srcFile, true);
+        if (sourceImage == null)
+            throw new ComputationException("Unable to read " + srcFile.getName());
+        stage.pixels((long) sourceImage.getWidth() * sourceImage.getHeight()).end();
+        decoded = true;
+
+        if (sourceImage.getType() != BufferedImage.TYPE_USHORT_GRAY)
+            throw new ComputationException("Input image must be a 16bit grayscaled no-alpha png.");
+        pooledSource = sourceImage;
+        return sourceImage;
+    }
+
+    /**
+     * Maps a raw heightmap straight into image data, counting its rows.
+     *
+     * @throws CancellationException If computation was cancelled.
+     */
+    private BufferedImage readRaw() throws ComputationException {
+        try {
+            RawHeightmap raw = rawLayout();
+            planProgress(raw.width, raw.height, false);
+            return raw.read(srcFile, progress, pool);
+        } catch (IOException e) {
+            throw new ComputationException("Unable to read " + srcFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private RawHeightmap rawLayout() throws IOException {
+        return RawHeightmap.of(srcFile, rawWidth, rawHeight, rawOrder);
+    }
+
+    private String reliefFileName() {
+        return rawRelief ? "heightmap_relief" + RawHeightmap.EXTENSION : "heightmap_relief.png";
+    }
+
+    /**
+     * Derives RGB mask bounds from the gradient norm histogram so that given shares of the map end up in blue
+     * and red, instead of using the bounds given to the constructor.
+     *
+     * @see NormHistogram#boundsForShares(double, double)
+     */
+    public void setBoundShares(double blueShare, double redShare) {
+        if (blueShare < 0 || redShare < 0 || blueShare + redShare > 1)
+            throw new IllegalArgumentException("Shares must be positive and sum to 1 at most.");
+        boundShares = new double[]{blueShare, redShare};
+    }
+
+    /**
+     * Returns lower and upper bounds last RGB mask was computed with, null if none was.
+     */
+    public double[] getMaskBounds() {
+        return maskBounds;
+    }
+
+    /**
+     * Returns the gradient norm computed by last in-memory computation, null if none was needed or if the
+     * heightmap was streamed.
+     */
+    public PlaneCache.Plane getGradientNorm() {
+        return gradientNorm;
+    }
+
+    /**
+     * Returns false if {@link #compute()} does not need to decode the heightmap, every requested map being
+     * computed from a cached gradient norm. The source file is hashed the first time.
+     */
+    public boolean needsSource() {
+        return rgmap || !(relief || rgbm) || hasSurfaceMaps() || incremental || isStreaming() || loadCachedNorm() == null;
+    }
+
+    public String[] compute() throws ComputationException {
+        dirtyTiles = null;
+        normRescaled = false;
+        if (isStreaming()) {
+            if (incremental)
+                throw new ComputationException(srcFile.getName()
+                        + " has more than 2^31 samples, it cannot be computed incrementally.");
+            return computeStreaming();
+        }
+        if (!needsSource()) {
+            prepareOutputDir();
+            HeightmapMath map = new HeightmapMath(cachedNorm.width, cachedNorm.height, cachedNorm.width, null);
+            map.gradientNorm = cachedNorm.data;
+            decoded = true; // Not needed
+            planProgress(map.width, map.height, false);
+            progress.advance(map.height);
+            return compute(map);
+        }
+        return compute(readSource());
+    }
+
+    private PlaneCache.Plane loadCachedNorm() {
+        if (cache == null || srcFile == null)
+            return null;
+        if (cachedNorm == null && normKey == null) {
+            try {
+                List<Object> parameters = new ArrayList<>(Arrays.asList("norm", rmultiplier, integerGradients));
+                if (RawHeightmap.isRaw(srcFile))
+                    parameters.add(rawLayout());
+                if (gradientOperator != GradientOperator.CENTRAL_DIFFERENCE) // Central keeps keys it always had
+                    parameters.add(gradientOperator.getName());
+                normKey = PlaneCache.key(srcFile, parameters.toArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            cachedNorm = cache.load(normKey);
+        }
+        return cachedNorm;
+    }
+
+    /**
+     * Computes and writes requested maps.
+     *
+     * @param sourceImage Source heightmap as returned by {@link #readSource()}.
+     * @return Names of written files, in RG, relief, RGB mask, custom, normal, slope order. Null if not requested or
+     * not written.
+     * @throws CancellationException If {@link #cancel()} was called, partially written files are deleted.
+     */
+    public String[] compute(BufferedImage sourceImage) throws ComputationException {
+        prepareOutputDir();
+
+        short[] data = ((DataBufferUShort) sourceImage.getRaster().getDataBuffer()).getData();
+        int width = sourceImage.getWidth();
+        int height = sourceImage.getHeight();
+        planProgress(width, height, false);
+        if (!decoded)
+            progress.advance(height); // Decoded by caller
+        boolean pooled = sourceImage == pooledSource; // Images given by callers are theirs
+        pooledSource = null;
+        try {
+            String[] result = compute(new HeightmapMath(width, height, width, data));
+            if (pooled && planes != null) {
+                planes.source = sourceImage; // Heights of incremental computations
+                pooled = false;
+            }
+            return result;
+        } finally {
+            if (pooled)
+                recycle(sourceImage);
+        }
+    }
+
+    /**
+     * @param map Heightmap values, or only its gradient norm when taken from cache.
+     */
+    private String[] compute(HeightmapMath map) throws ComputationException {
+        map.setEngine(engine);
+        map.setPool(pool);
+        map.setIntegerGradients(integerGradients);
+        map.setGradientOperator(gradientOperator);
+        map.setProgress(progress);
+        map.setTrackTiles(incremental);
+        putSettings(map.width, map.height, false);
+        Planes planes = new Planes(map);
+        this.planes = null;
+
+        String[] result = new String[6];
+        try {
+            stages(map, map.width, map.height, planes, result).run(MAX_CONCURRENT_STAGES, memoryBudget());
+        } catch (ComputationException | RuntimeException e) {
+            throw e; // Cancelled stages already deleted their partially written file
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new ComputationException("Computation failed: " + e.getMessage());
+        }
+        writeReport();
+        progress.complete();
+        if (incremental) {
+            planes.result = result.clone();
+            planes.sourceModified = srcFile != null ? srcFile.lastModified() : 0;
+            planes.trackModified = trackMask != null ? trackMask.lastModified() : 0;
+            this.planes = planes;
+        }
+        return result;
+    }
+
+    /**
+     * Stages of an in-memory computation: each map, the gradient norm, the track mask decoding and every write, the
+     * buffers they pass each other and the rows they count in progress. Nothing runs until the graph does, so the
+     * graph also plans progress from the heightmap size alone, map being null then.
+     *
+     * @param planes Receives computed images, which are dropped once written unless computation is incremental.
+     * @param result Receives names of written files.
+     */
+    private StageGraph stages(HeightmapMath map, int width, int height, Planes planes, String[] result) {
+        StageGraph graph = new StageGraph();
+        long pixels = (long) width * height;
+
+        if (rgmap) {
+            StageGraph.Buffer rgImage = graph.buffer("rg_image", 4 * pixels, () -> {
+                if (!incremental) planes.rgImage = recycle(planes.rgImage);
+            });
+            StageGraph.Stage rg = graph.add("rg_image", height, () -> {
+                planes.rgImage = newImage(width, height, BufferedImage.TYPE_INT_RGB);
+                RunReport.Stage stage = report.start("rg_image").pixels(pixels);
+                map.calculateRGImage(pixels(planes.rgImage));
+                stage.end();
+            }).produces(rgImage);
+            addOutput(graph, rg, rgImage, "heightmap_rg.png", () -> planes.rgImage, Mipmaps.Filter.RG_BOX,
+                    width, height, result, 0);
+        }
+
+        // Surface maps come from the gradient norm pass, or from a pass of their own without relief nor mask
+        StageGraph.Buffer normalImage = !normalMap ? null : graph.buffer("normal_map", 4 * pixels, () -> {
+            if (!incremental) planes.normalImage = recycle(planes.normalImage);
+        });
+        StageGraph.Buffer slopeImage = !slopeMap ? null : graph.buffer("slope_map", 2 * pixels, () -> {
+            if (!incremental) planes.slopeImage = recycle(planes.slopeImage);
+        });
+        StageGraph.Stage surface = null;
+
+        StageGraph.Stage norm = null;
+        // Kept for getGradientNorm(), the relief image shares it
+        StageGraph.Buffer normPlane = graph.buffer("gradient_norm", 2 * pixels, null);
+        if (relief || rgbm) {
+            norm = graph.add("gradient_norm", 2L * height, () -> {
+                if (hasSurfaceMaps())
+                    prepareSurfaceMaps(map, planes);
+                boolean cached = map.gradientNorm != null;
+                if (!cached) {
+                    RunReport.Stage stage = report.start("cache_load").pixels(pixels);
+                    // Tiles extremums are needed, and gradients of surface maps
+                    PlaneCache.Plane cachedPlane = incremental || hasSurfaceMaps() ? null : loadCachedNorm();
+                    cached = cachedPlane != null && cachedPlane.width == width && cachedPlane.height == height;
+                    if (cached) {
+                        map.gradientNorm = cachedPlane.data;
+                        stage.end();
+                        progress.advance(2 * height);
+                    } else {
+                        stage = report.start("gradient_norm").pixels(pixels);
+                        map.calculateFusedGradientNorm(rmultiplier);
+                        stage.end();
+                        if (cache != null && normKey != null) {
+                            stage = report.start("cache_store").pixels(pixels);
+                            cache.store(normKey, new PlaneCache.Plane(width, height, map.gradientNorm));
+                            stage.end();
+                        }
+                    }
+                } else {
+                    progress.advance(2 * height);
+                }
+                report.put("cachedNorm", cached);
+                gradientNorm = new PlaneCache.Plane(width, height, map.gradientNorm);
+                if (relief)
+                    planes.reliefImage = BufferPool.grayImage(map.gradientNorm, width, height);
+            }).produces(normPlane);
+            if (relief)
+                addOutput(graph, norm, normPlane, reliefFileName(), () -> planes.reliefImage, Mipmaps.Filter.BOX,
+                        width, height, result, 1);
+            surface = norm;
+        } else if (hasSurfaceMaps()) {
+            surface = graph.add("surface_maps", height, () -> {
+                prepareSurfaceMaps(map, planes);
+                RunReport.Stage stage = report.start("surface_maps").pixels(pixels);
+                map.calculateSurfaceMaps();
+                stage.end();
+            });
+        }
+        if (normalMap) {
+            surface.produces(normalImage);
+            addOutput(graph, surface, normalImage, NORMAL_MAP, () -> planes.normalImage, Mipmaps.Filter.RGB_BOX,
+                    width, height, result, 4);
+        }
+        if (slopeMap) {
+            surface.produces(slopeImage);
+            addOutput(graph, surface, slopeImage, SLOPE_MAP, () -> planes.slopeImage, Mipmaps.Filter.BOX,
+                    width, height, result, 5);
+        }
+
+        if (rgbm) {
+            StageGraph.Stage histogram = boundShares == null ? null : graph.add("norm_histogram", height, () -> {
+                if (map.normHistogram != null) {
+                    progress.advance(height); // Counted along the norm
+                    return;
+                }
+                RunReport.Stage stage = report.start("norm_histogram").pixels(pixels);
+                map.calculateNormHistogram(); // Norm came from cache
+                stage.end();
+            }, norm);
+            if (histogram != null)
+                histogram.uses(normPlane);
+
+            BufferedImage[] trackMaskImage = new BufferedImage[1];
+            StageGraph.Buffer trackPlane = graph.buffer("track_mask", 4 * pixels, () -> {
+                if (trackMaskImage[0] != null)
+                    trackMaskImage[0].flush();
+                trackMaskImage[0] = null;
+            });
+            StageGraph.Stage track = trackMask == null ? null : graph.add("decode_track_mask", height, () -> {
+                if (this.trackMaskImage != null) {
+                    trackMaskImage[0] = this.trackMaskImage;
+                    progress.advance(height);
+                } else {
+                    RunReport.Stage stage = report.start("decode_track_mask").pixels(pixels);
+                    trackMaskImage[0] = readImage(trackMask, false);
+                    stage.end();
+                }
+                if (trackMaskImage[0] != null
+                        && (trackMaskImage[0].getWidth() != width || trackMaskImage[0].getHeight() != height))
+                    throw new ComputationException("Track mask size must be same as heightmap.");
+            }).produces(trackPlane);
+
+            StageGraph.Buffer rgbmImage = graph.buffer("rgb_mask", 4 * pixels, () -> {
+                if (!incremental) planes.rgbmImage = recycle(planes.rgbmImage);
+            });
+            StageGraph.Buffer customImage = graph.buffer("custom_color_map", custom ? 4 * pixels : 0, () -> {
+                if (!incremental) planes.customImage = recycle(planes.customImage);
+            });
+            // Mask, track mask and custom colors in a single pass, written straight into image buffers
+            StageGraph.Stage masks = graph.add("masks", height, () -> {
+                double[] bounds = resolveMaskBounds(map.normHistogram);
+                planes.rgbmImage = newImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                planes.customImage = custom ? newImage(width, height, BufferedImage.TYPE_INT_RGB) : null;
+                RunReport.Stage stage = report.start("masks").pixels(pixels);
+                map.calculateMasks(bounds[0], bounds[1], trackMaskImage[0], pixels(planes.rgbmImage),
+                        custom ? pixels(planes.customImage) : null, replaceColors);
+                stage.end();
+                planes.bounds = bounds;
+                if (incremental && trackMaskImage[0] != null)
+                    planes.trackRgb = trackRgb(trackMaskImage[0]);
+            }, norm, histogram, track).uses(normPlane).produces(rgbmImage).produces(customImage);
+            if (track != null)
+                masks.uses(trackPlane);
+            addOutput(graph, masks, rgbmImage, "rgb_mask.png", () -> planes.rgbmImage, Mipmaps.Filter.MAJORITY,
+                    width, height, result, 2);
+            if (custom)
+                addOutput(graph, masks, customImage, "custom_color_map.png", () -> planes.customImage,
+                        Mipmaps.Filter.MAJORITY, width, height, result, 3);
+        }
+        return graph;
+    }
+
+    /**
+     * Allocates surface map images and makes map compute into them.
+     */
+    private void prepareSurfaceMaps(HeightmapMath map, Planes planes) {
+        int width = map.width, height = map.height;
+        planes.normalImage = normalMap ? newImage(width, height, BufferedImage.TYPE_INT_RGB) : null;
+        planes.slopeImage = slopeMap ? newImage(width, height, BufferedImage.TYPE_USHORT_GRAY) : null;
+        map.setSurfaceMaps(normalMap ? pixels(planes.normalImage) : null,
+                slopeMap ? ((DataBufferUShort) planes.slopeImage.getRaster().getDataBuffer()).getData() : null,
+                pixelSize, heightScale);
+    }
+
+    /**
+     * Adds the stages writing an image produced by another stage, and reducing and writing its mip levels if
+     * requested. Levels are reduced while the image itself is written, the image is only read.
+     *
+     * @param index Index of the file name in result.
+     */
+    private void addOutput(StageGraph graph, StageGraph.Stage producer, StageGraph.Buffer buffer, String fileName,
+                           Supplier<BufferedImage> image, Mipmaps.Filter filter, int width, int height,
+                           String[] result, int index) {
+        graph.add("write " + fileName, height, () -> result[index] = writeImage(fileName, image.get()), producer)
+                .uses(buffer);
+        if (!mipmaps)
+            return;
+        long pixels = (long) width * height;
+        AtomicReference<List<BufferedImage>> levels = new AtomicReference<>();
+        StageGraph.Buffer levelImages = graph.buffer(fileName + " levels",
+                (filter == Mipmaps.Filter.BOX ? 2 : 4) * pixels / 3, () -> {
+                    List<BufferedImage> reduced = levels.getAndSet(null);
+                    if (reduced != null)
+                        reduced.forEach(this::recycle);
+                });
+        StageGraph.Stage reduce = graph.add("mipmaps " + fileName, 0, () -> {
+            RunReport.Stage stage = report.start("mipmaps").pixels(pixels);
+            levels.set(Mipmaps.levels(image.get(), filter, engine, progress, pool));
+            stage.end();
+        }, producer).uses(buffer).produces(levelImages);
+        graph.add("write " + fileName + " levels", Mipmaps.levelRows(width, height), () -> {
+            List<BufferedImage> reduced = levels.get();
+            for (int level = 1; level <= reduced.size(); level++)
+                writeImage(Mipmaps.levelName(fileName, level), reduced.get(level - 1));
+        }, reduce).uses(levelImages);
+    }
+
+    private BufferedImage newImage(int width, int height, int type) {
+        return pool != null ? pool.image(width, height, type) : new BufferedImage(width, height, type);
+    }
+
+    private int[] newInts(int length) {
+        return pool != null ? pool.ints(length) : new int[length];
+    }
+
+    /**
+     * Returns image to the pool, if any.
+     *
+     * @return Null, for callers to drop the image.
+     */
+    private BufferedImage recycle(BufferedImage image) {
+        if (pool != null)
+            pool.release(image);
+        return null;
+    }
+
+    /**
+     * Memory stages can hold at once: what the heap can still take, planes the pool retains included as stages
+     * reuse them, less a quarter left to the rest of the process.
+     */
+    private long memoryBudget() {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return (available + (pool != null ? pool.getRetainedBytes() : 0)) / 4 * 3;
+    }
+
+    /**
+     * Returns the gradient norm and planes kept by the last computation to the pool set with {@link #setPool}, and
+     * drops them if there is none. {@link #getGradientNorm()} returns null afterwards, and incremental computations
+     * compute everything again on next {@link #recompute()}.
+     */
+    public void release() {
+        Planes planes = this.planes;
+        PlaneCache.Plane norm = gradientNorm;
+        this.planes = null;
+        gradientNorm = null;
+        if (norm != null && cachedNorm != null && norm.data == cachedNorm.data) {
+            cachedNorm = null; // Loaded again if needed
+            normKey = null;
+        }
+        if (pool == null)
+            return;
+        if (norm != null)
+            pool.release(norm.data); // The relief image shares it
+        if (planes != null) {
+            for (BufferedImage image : new BufferedImage[]{planes.source, planes.rgImage, planes.rgbmImage,
+                    planes.customImage, planes.normalImage, planes.slopeImage})
+                pool.release(image);
+            pool.release(planes.trackRgb);
+        }
+    }
+
+    /**
+     * Reduces a map being written into its mip levels and writes them, if requested. Levels are computed while
+     * the map itself is encoded, the map is only read.
+     */
+    /**
+     * @param levelImages Receives levels borrowed from the pool, to be recycled once their writes are done.
+     */
+    private void submitMipmaps(ImageEncoder encoder, List<Future<String>> writes, List<BufferedImage> levelImages,
+                               String fileName, BufferedImage image, Mipmaps.Filter filter)
+            throws ComputationException {
+        if (!mipmaps)
+            return;
+        RunReport.Stage stage = report.start("mipmaps").pixels((long) image.getWidth() * image.getHeight());
+        List<BufferedImage> levels = Mipmaps.levels(image, filter, engine, progress, pool);
+        stage.end();
+        levelImages.addAll(levels);
+        for (int level = 1; level <= levels.size(); level++)
+            writes.add(encoder.submit(Mipmaps.levelName(fileName, level), levels.get(level - 1)));
+    }
+
+    /**
+     * Recomputes maps after the heightmap or the track mask changed on disk, reusing planes kept by the previous
+     * computation, see {@link #setIncremental(boolean)}. Changed files are compared row by row with previous
+     * ones, and only tiles that differ are recomputed, plus a halo reached by the gradient operator stencil.
+     * When the change moves gradient norm extremums, the whole norm is rescaled and every mask recomputed. Only
+     * maps that changed are written again.
+     * <p>
+     * Computes everything, like {@link #compute()}, when no planes were kept or when the heightmap size changed.
+     *
+     * @return Names of maps files, written or not, see {@link #compute(BufferedImage)}.
+     * @throws CancellationException If {@link #cancel()} was called, partially written files are deleted and
+     *                               planes are dropped.
+     */
+    public String[] recompute() throws ComputationException {
+        Planes planes = this.planes;
+        if (planes == null)
+            return compute();
+        report = new RunReport(srcFile.getPath());
+        prepareOutputDir();
+        HeightmapMath map = planes.map;
+        int width = map.width, height = map.height;
+        long pixels = (long) width * height;
+        putSettings(width, height, false);
+
+        // Planes are left as they are if a file cannot be read yet, it may still be being written
+        long sourceModified = srcFile.lastModified();
+        BufferedImage source = sourceModified != planes.sourceModified ? readSource() : null;
+        long trackModified = trackMask != null ? trackMask.lastModified() : 0;
+        BufferedImage trackMaskImage = null;
+        if (rgbm && trackMask != null && trackModified != planes.trackModified) {
+            RunReport.Stage stage = report.start("decode_track_mask").pixels(pixels);
+            trackMaskImage = this.trackMaskImage != null ? this.trackMaskImage : readImage(trackMask, false);
+            stage.end();
+            if (trackMaskImage == null || trackMaskImage.getWidth() != width || trackMaskImage.getHeight() != height)
+                throw new ComputationException("Track mask size must be same as heightmap.");
+        }
+        if (source != null && (source.getWidth() != width || source.getHeight() != height)) {
+            release();
+            return compute(source);
+        }
+
+        this.planes = null; // Until they are consistent again
+        planes.sourceModified = sourceModified;
+        planes.trackModified = trackModified;
+        DirtyTiles heights = new DirtyTiles(width, height);
+        if (source != null) {
+            RunReport.Stage stage = report.start("diff").pixels(pixels);
+            short[] data = ((DataBufferUShort) source.getRaster().getDataBuffer()).getData();
+            heights = DirtyTiles.diff(map.data, data, width, height, engine);
+            stage.end();
+            pooledSource = recycle(source); // Changed rows were copied
+        }
+        DirtyTiles track = new DirtyTiles(width, height);
+        if (trackMaskImage != null) {
+            RunReport.Stage stage = report.start("diff_track_mask").pixels(pixels);
+            if (planes.trackRgb == null) // Track mask could not be read by first computation
+                planes.trackRgb = new int[width * height];
+            int[] rgb = trackRgb(trackMaskImage);
+            track = DirtyTiles.diff(planes.trackRgb, rgb, width, height, engine);
+            if (pool != null)
+                pool.release(rgb);
+            stage.end();
+        }
+        dirtyTiles = new DirtyTiles(width, height);
+        dirtyTiles.add(heights);
+        dirtyTiles.add(track);
+        normRescaled = false;
+        report.put("dirtyTiles", dirtyTiles.getCount());
+        report.put("tiles", dirtyTiles.getTotal());
+
+        Map<Integer, Future<String>> writes = new LinkedHashMap<>(); // By index in result
+        List<Future<String>> mipWrites = new ArrayList<>();
+        List<BufferedImage> mipLevels = new ArrayList<>();
+        ImageEncoder encoder = new ImageEncoder();
+        try {
+            if (rgmap && !heights.isEmpty()) {
+                RunReport.Stage stage = report.start("rg_image").pixels(pixels);
+                map.updateRGImage(heights, pixels(planes.rgImage));
+                stage.end();
+                writes.put(0, encoder.submit("heightmap_rg.png", planes.rgImage));
+                submitMipmaps(encoder, mipWrites, mipLevels, "heightmap_rg.png", planes.rgImage, Mipmaps.Filter.RG_BOX);
+            }
+
+            if ((relief || rgbm) && !heights.isEmpty()) {
+                RunReport.Stage stage = report.start("gradient_norm").pixels(pixels);
+                normRescaled = map.updateGradientNorm(heights);
+                stage.end();
+                gradientNorm = new PlaneCache.Plane(width, height, map.gradientNorm);
+                if (relief) {
+                    planes.reliefImage.getRaster().setDataElements(0, 0, width, height, map.gradientNorm);
+                    writes.put(1, encoder.submit(reliefFileName(), planes.reliefImage));
+                    submitMipmaps(encoder, mipWrites, mipLevels, reliefFileName(), planes.reliefImage,
+                            Mipmaps.Filter.BOX);
+                }
+            }
+            report.put("normRescaled", normRescaled);
+
+            if (hasSurfaceMaps() && !heights.isEmpty()) {
+                RunReport.Stage stage = report.start("surface_maps").pixels(pixels);
+                map.updateSurfaceMaps(heights);
+                stage.end();
+                if (normalMap) {
+                    writes.put(4, encoder.submit(NORMAL_MAP, planes.normalImage));
+                    submitMipmaps(encoder, mipWrites, mipLevels, NORMAL_MAP, planes.normalImage,
+                            Mipmaps.Filter.RGB_BOX);
+                }
+                if (slopeMap) {
+                    writes.put(5, encoder.submit(SLOPE_MAP, planes.slopeImage));
+                    submitMipmaps(encoder, mipWrites, mipLevels, SLOPE_MAP, planes.slopeImage, Mipmaps.Filter.BOX);
+                }
+            }
+
+            if (rgbm && !dirtyTiles.isEmpty()) {
+                if (boundShares != null && !heights.isEmpty()) {
+                    RunReport.Stage stage = report.start("norm_histogram").pixels(pixels);
+                    map.calculateNormHistogram();
+                    stage.end();
+                }
+                double[] bounds = boundShares != null && heights.isEmpty() ? planes.bounds
+                        : resolveMaskBounds(map.normHistogram);
+                maskBounds = bounds;
+                int[] customPixels = planes.customImage != null ? pixels(planes.customImage) : null;
+                RunReport.Stage stage = report.start("masks").pixels(pixels);
+                if (normRescaled || !Arrays.equals(bounds, planes.bounds)) {
+                    DirtyTiles all = new DirtyTiles(width, height);
+                    all.markAll();
+                    map.updateMasks(all, 0, bounds[0], bounds[1], planes.trackRgb, pixels(planes.rgbmImage),
+                            customPixels, replaceColors);
+                } else {
+                    map.updateMasks(heights, gradientOperator.getRadius(), bounds[0], bounds[1], planes.trackRgb,
+                            pixels(planes.rgbmImage),
+                            customPixels, replaceColors);
+                    map.updateMasks(track, 0, bounds[0], bounds[1], planes.trackRgb, pixels(planes.rgbmImage),
+                            customPixels, replaceColors);
+                }
+                stage.end();
+                planes.bounds = bounds;
+                writes.put(2, encoder.submit("rgb_mask.png", planes.rgbmImage));
+                submitMipmaps(encoder, mipWrites, mipLevels, "rgb_mask.png", planes.rgbmImage, Mipmaps.Filter.MAJORITY);
+                if (custom) {
+                    writes.put(3, encoder.submit("custom_color_map.png", planes.customImage));
+                    submitMipmaps(encoder, mipWrites, mipLevels, "custom_color_map.png", planes.customImage,
+                            Mipmaps.Filter.MAJORITY);
+                }
+            }
+
+            String[] result = planes.result.clone();
+            for (Map.Entry<Integer, Future<String>> write : writes.entrySet())
+                result[write.getKey()] = encoder.await(write.getValue());
+            for (Future<String> write : mipWrites)
+                encoder.await(write);
+            mipLevels.forEach(this::recycle);
+            writeReport();
+            planes.result = result.clone();
+            this.planes = planes;
+            return result;
+        } catch (CancellationException e) {
+            encoder.drain();
+            mipLevels.forEach(this::recycle); // Writes are done
+            throw e;
+        } finally {
+            encoder.shutdown();
+        }
+    }
+
+    private int[] trackRgb(BufferedImage trackMaskImage) {
+        int[] rgb = newInts(trackMaskImage.getWidth() * trackMaskImage.getHeight());
+        RgbRowReader.forImage(trackMaskImage).readRows(0, trackMaskImage.getHeight(), rgb, 0);
+        return rgb;
+    }
+
+    /**
+     * What an incremental computation keeps for {@link #recompute()}.
+     */
+    private static class Planes {
+
+        final HeightmapMath map; // Heights and gradient norm
+        BufferedImage source; // Backing heights when decoded by readSource()
+        BufferedImage rgImage, reliefImage, rgbmImage, customImage, normalImage, slopeImage;
+        int[] trackRgb;
+        double[] bounds;
+        String[] result;
+        long sourceModified, trackModified;
+
+        Planes(HeightmapMath map) {
+            this.map = map;
+        }
+    }
+
+    private void putSettings(int width, int height, boolean streamed) {
+        report.put("width", width);
+        report.put("height", height);
+        report.put("streaming", streamed);
+        report.put("threads", engine.getParallelism());
+        report.put("kernels", RowKernels.getDefault().getName());
+        report.put("integerGradients", integerGradients);
+        report.put("gradientOperator", gradientOperator.getName());
+        if (hasSurfaceMaps()) {
+            report.put("pixelSize", pixelSize);
+            report.put("heightScale", heightScale);
+        }
+        report.put("compression", compression.name());
+        report.put("mipmaps", mipmaps);
+        if (streamed)
+            report.put("planes", planeStorage != null ? planeStorage.name() : "none");
+    }
+
+    private void writeReport() {
+        if (maskBounds != null) {
+            report.put("lowerBound", maskBounds[0]);
+            report.put("upperBound", maskBounds[1]);
+        }
+        if (!writeReport)
+            return;
+        try {
+            report.write(outputFile(RunReport.FILE_NAME));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Writes images on its own thread so that next maps are computed meanwhile. At most
+     * {@value #MAX_PENDING_WRITES} images wait or are being written, submitting another one blocks.
+     */
+    private class ImageEncoder {
+
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "hmaputils-encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Semaphore slots = new Semaphore(MAX_PENDING_WRITES);
+
+        /**
+         * @return Future giving file name, or null if the image could not be written.
+         */
+        Future<String> submit(String fileName, BufferedImage im) throws ComputationException {
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ComputationException("Interrupted.");
+            }
+            return executor.submit(() -> {
+                try {
+                    return writeImage(fileName, im);
+                } finally {
+                    im.flush();
+                    slots.release();
+                }
+            });
+        }
+
+        String await(Future<String> write) throws ComputationException {
+            try {
+                return write.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ComputationException("Interrupted.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException)
+                    throw (CancellationException) e.getCause();
+                e.getCause().printStackTrace();
+                return null;
+            }
+        }
+
+        /**
+         * Waits for pending writes to end, so that they are done deleting their file once computation is cancelled.
+         */
+        void drain() {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void shutdown() {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @param histogram Gradient norm histogram, only needed when bounds are derived from shares.
+     */
+    private double[] resolveMaskBounds(NormHistogram histogram) throws ComputationException {
+        if (boundShares != null)
+            maskBounds = histogram.boundsForShares(boundShares[0], boundShares[1]);
+        else if (ubound < lbound)
+            throw new ComputationException("Upper bound cannot be lower than lower bound.");
+        else
+            maskBounds = new double[]{lbound, ubound};
+        return maskBounds;
+    }
+
+    private void prepareOutputDir() throws ComputationException {
+        if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new ComputationException("Unable to create " + outputDir.getPath());
+    }
+
+    /**
+     * Computes and writes requested maps by bands of rows. A first pass over the source writes the RG image and
+     * collects gradient norm extremums, a second one computes and writes every other map.
+     */
+    private String[] computeStreaming() throws ComputationException {
+        if (srcFile == null)
+            throw new ComputationException("No input file.");
+        if (rgbm && boundShares == null && ubound < lbound)
+            throw new ComputationException("Upper bound cannot be lower than lower bound.");
+        prepareOutputDir();
+
+        String[] result = new String[6];
+        Map<RowWriter, File> writers = new LinkedHashMap<>(); // Unfinished ones
+        List<Closeable> readers = new ArrayList<>();
+        try {
+            SourceRows source = openSource(readers);
+            int width = source.width;
+            int height = source.height;
+            long pixels = (long) width * height;
+            putSettings(width, height, true);
+            planProgress(width, height, true);
+            ShortPlane heights = null;
+            if ((relief || rgbm) && planeStorage != null && !RawHeightmap.isRaw(srcFile)) {
+                heights = new ShortPlane(width, height, planeStorage, outputDirectory());
+                readers.add(heights);
+                source = copyingTo(source, heights);
+            }
+
+            RunReport.Stage stage = report.start("stream_first_pass").pixels(pixels);
+            RowWriter rgWriter = rgmap ? openWriter(writers, "heightmap_rg.png", width, height,
+                    PngRowWriter.Format.RGB8) : null;
+            int[] rgBand = rgmap ? new int[STREAMING_BAND_ROWS * width] : null;
+            Mipmaps.RowChain rgMips = rgmap ? openMipChain(writers, "heightmap_rg.png", width, height,
+                    PngRowWriter.Format.RGB8, Mipmaps.Filter.RG_BOX) : null;
+            // Surface maps are computed along the gradient norm, or along this pass without relief nor mask
+            StreamedSurface surface = hasSurfaceMaps() ? new StreamedSurface(writers, width, height) : null;
+            boolean firstPassSurface = surface != null && !relief && !rgbm;
+            HeightmapMath.NormStats stats = new HeightmapMath.NormStats(integerGradients);
+            SourceWindow window = new SourceWindow(source, STREAMING_BAND_ROWS, gradientOperator.getRadius());
+            while (window.next()) {
+                SourceWindow w = window;
+                if (rgmap) {
+                    engine.forEachBand(w.count(), (from, to) -> {
+                        for (int r = from; r < to; ++r)
+                            HeightmapMath.rgRow(w.data, w.offset(w.start + r), rgBand, r * width, width);
+                    });
+                    for (int r = 0; r < w.count(); ++r) {
+                        rgWriter.writeRow(rgBand, r * width);
+                        if (rgMips != null) rgMips.push(rgBand, r * width);
+                    }
+                }
+                if (relief || rgbm) {
+                    stats = stats.merge(engine.reduceBands(w.count(), (from, to) -> {
+                        HeightmapMath.NormStats bandStats = new HeightmapMath.NormStats(integerGradients);
+                        HeightmapMath.GradientStencil stencil = stencil(width, height);
+                        for (int i = w.start + from; i < w.start + to; ++i)
+                            stencil.at(i, w::offset).stats(w.data, 0, width, bandStats);
+                        return bandStats;
+                    }, HeightmapMath.NormStats::merge));
+                }
+                if (firstPassSurface) {
+                    engine.forEachBand(w.count(), (from, to) -> {
+                        HeightmapMath.GradientStencil stencil = stencil(width, height, true);
+                        for (int r = from; r < to; ++r) {
+                            stencil.at(w.start + r, w::offset).gradients(w.data, 0, width);
+                            surface.compute(stencil, r);
+                        }
+                    });
+                    surface.write(w.count());
+                }
+                progress.advance(w.count());
+            }
+            if (rgmap) {
+                closeWriter(writers, rgWriter);
+                stage.output(outputFile("heightmap_rg.png"));
+                closeMipChain(writers, rgMips, "heightmap_rg.png", stage);
+                result[0] = "heightmap_rg.png";
+            }
+            if (firstPassSurface)
+                surface.close(writers, stage, result);
+            stage.end();
+            if (!relief && !rgbm) {
+                writeReport();
+                progress.complete();
+                return result;
+            }
+
+            HeightmapMath.NormStats normStats = stats;
+            NormHistogram histogram = null;
+            if (rgbm && boundShares != null) {
+                stage = report.start("stream_histogram_pass").pixels(pixels);
+                histogram = streamNormHistogram(heights != null ? rows(heights) : openSource(readers), normStats);
+                stage.end();
+            }
+            double[] bounds = !rgbm ? new double[2] : resolveMaskBounds(histogram);
+            int up = HeightmapMath.maskBound(bounds[1]);
+            int low = HeightmapMath.maskBound(bounds[0]);
+
+            stage = report.start("stream_second_pass").pixels(pixels);
+            source = heights != null ? rows(heights) : openSource(readers);
+            RowWriter reliefWriter = relief ? openWriter(writers, reliefFileName(), width, height,
+                    PngRowWriter.Format.GRAY16) : null;
+            RowWriter rgbmWriter = rgbm ? openWriter(writers, "rgb_mask.png", width, height,
+                    PngRowWriter.Format.ARGB8) : null;
+            RowWriter customWriter = custom ? openWriter(writers, "custom_color_map.png", width, height,
+                    PngRowWriter.Format.RGB8) : null;
+            Mipmaps.RowChain reliefMips = relief ? openMipChain(writers, reliefFileName(), width, height,
+                    PngRowWriter.Format.GRAY16, Mipmaps.Filter.BOX) : null;
+            Mipmaps.RowChain rgbmMips = rgbm ? openMipChain(writers, "rgb_mask.png", width, height,
+                    PngRowWriter.Format.ARGB8, Mipmaps.Filter.MAJORITY) : null;
+            Mipmaps.RowChain customMips = custom ? openMipChain(writers, "custom_color_map.png", width, height,
+                    PngRowWriter.Format.RGB8, Mipmaps.Filter.MAJORITY) : null;
+            PngRowReader trackReader = null;
+            BufferedImage trackBand = null;
+            RgbRowReader trackRgbReader = null;
+            if (rgbm && trackMask != null) {
+                try {
+                    trackReader = new PngRowReader(trackMask);
+                } catch (IOException e) {
+                    throw new ComputationException("Unable to stream track mask: " + e.getMessage());
+                }
+                readers.add(trackReader);
+                if (trackReader.width != width || trackReader.height != height)
+                    throw new ComputationException("Track mask size must be same as heightmap.");
+                trackBand = trackReader.createBandImage(STREAMING_BAND_ROWS);
+                trackRgbReader = RgbRowReader.forImage(trackBand);
+            }
+
+            short[] normBand = new short[STREAMING_BAND_ROWS * width];
+            int[] maskBand = rgbm ? new int[STREAMING_BAND_ROWS * width] : null;
+            int[] trackRgb = trackBand != null ? new int[STREAMING_BAND_ROWS * width] : null;
+            int[] customBand = custom ? new int[STREAMING_BAND_ROWS * width] : null;
+            window = new SourceWindow(source, STREAMING_BAND_ROWS, gradientOperator.getRadius());
+            while (window.next()) {
+                SourceWindow w = window;
+                if (trackReader != null) {
+                    trackReader.readRows(trackBand, w.count());
+                    trackRgbReader.readRows(0, w.count(), trackRgb, 0);
+                }
+                engine.forEachBand(w.count(), (from, to) -> {
+                    HeightmapMath.GradientStencil stencil = stencil(width, height, surface != null);
+                    for (int r = from; r < to; ++r) {
+                        stencil.at(w.start + r, w::offset).norm(w.data, 0, width, normStats, rmultiplier, normBand,
+                                r * width);
+                        if (surface != null)
+                            surface.compute(stencil, r);
+                        if (rgbm)
+                            HeightmapMath.maskRow(normBand, r * width, low, up, trackRgb, r * width,
+                                    maskBand, r * width, customBand, r * width, replaceColors, width);
+                    }
+                });
+                for (int r = 0; r < w.count(); ++r) {
+                    if (relief) reliefWriter.writeRow(normBand, r * width);
+                    if (rgbm) rgbmWriter.writeRow(maskBand, r * width);
+                    if (custom) customWriter.writeRow(customBand, r * width);
+                    if (reliefMips != null) reliefMips.push(normBand, r * width);
+                    if (rgbmMips != null) rgbmMips.push(maskBand, r * width);
+                    if (customMips != null) customMips.push(customBand, r * width);
+                }
+                if (surface != null)
+                    surface.write(w.count());
+                progress.advance(w.count());
+            }
+            if (relief) {
+                closeWriter(writers, reliefWriter);
+                stage.output(outputFile(reliefFileName()));
+                closeMipChain(writers, reliefMips, reliefFileName(), stage);
+                result[1] = reliefFileName();
+            }
+            if (rgbm) {
+                closeWriter(writers, rgbmWriter);
+                stage.output(outputFile("rgb_mask.png"));
+                closeMipChain(writers, rgbmMips, "rgb_mask.png", stage);
+                result[2] = "rgb_mask.png";
+            }
+            if (custom) {
+                closeWriter(writers, customWriter);
+                stage.output(outputFile("custom_color_map.png"));
+                closeMipChain(writers, customMips, "custom_color_map.png", stage);
+                result[3] = "custom_color_map.png";
+            }
+            if (surface != null)
+                surface.close(writers, stage, result);
+            stage.end();
+            writeReport();
+            progress.complete();
+            return result;
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new ComputationException("Streaming failed: " + e.getMessage());
+        } finally {
+            for (Closeable reader : readers)
+                closeQuietly(reader);
+            // Writers still open were interrupted by an error or a cancellation
+            for (Map.Entry<RowWriter, File> writer : writers.entrySet()) {
+                closeQuietly(writer.getKey());
+                writer.getValue().delete();
+            }
+        }
+    }
+
+    /**
+     * Extra pass over the source computing only the gradient norm histogram, for bounds derived from shares.
+     */
+    private NormHistogram streamNormHistogram(SourceRows source, HeightmapMath.NormStats stats) throws IOException {
+        int width = source.width;
+        int height = source.height;
+        short[] normBand = new short[STREAMING_BAND_ROWS * width];
+        NormHistogram histogram = new NormHistogram();
+        SourceWindow window = new SourceWindow(source, STREAMING_BAND_ROWS, gradientOperator.getRadius());
+        while (window.next()) {
+            SourceWindow w = window;
+            histogram.add(engine.reduceBands(w.count(), (from, to) -> {
+                int[] counts = new int[NormHistogram.BINS];
+                HeightmapMath.GradientStencil stencil = stencil(width, height);
+                for (int r = from; r < to; ++r) {
+                    stencil.at(w.start + r, w::offset).norm(w.data, 0, width, stats, rmultiplier, normBand,
+                            r * width);
+                    NormHistogram.count(normBand, r * width, width, counts);
+                }
+                return counts;
+            }, NormHistogram::mergeCounts));
+            progress.advance(w.count());
+        }
+        return histogram;
+    }
+
+    private SourceRows openSource(List<Closeable> readers) throws ComputationException {
+        try {
+            if (RawHeightmap.isRaw(srcFile)) {
+                RawHeightmap raw = rawLayout();
+                RawHeightmap.Reader reader = raw.open(srcFile);
+                readers.add(reader);
+                return new SourceRows(raw.width, raw.height, reader::readRow);
+            }
+            PngRowReader reader = new PngRowReader(srcFile);
+            readers.add(reader);
+            if (!reader.isGray16())
+                throw new ComputationException("Input image must be a 16bit grayscaled no-alpha png.");
+            return new SourceRows(reader.width, reader.height, reader::readRow);
+        } catch (IOException e) {
+            throw new ComputationException("Unable to stream " + srcFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns source rows that are also copied into given plane as they are read.
+     */
+    private static SourceRows copyingTo(SourceRows source, ShortPlane plane) {
+        int[] row = {0};
+        return new SourceRows(source.width, source.height, (dst, off) -> {
+            source.rows.readRow(dst, off);
+            plane.setRow(row[0]++, dst, off);
+        });
+    }
+
+    private static SourceRows rows(ShortPlane plane) {
+        int[] row = {0};
+        return new SourceRows(plane.width, plane.height, (dst, off) -> plane.getRow(row[0]++, dst, off));
+    }
+
+    /**
+     * @param format Format of PNG files, raw files only take 16bit gray rows.
+     */
+    private RowWriter openWriter(Map<RowWriter, File> writers, String fileName, int width, int height,
+                                 PngRowWriter.Format format) throws IOException {
+        File file = outputFile(fileName);
+        RowWriter writer = RawHeightmap.isRaw(fileName) ? new RawHeightmap(width, height, rawOrder).create(file)
+                : new PngRowWriter(file, width, height, format, compression, engine);
+        writers.put(writer, file);
+        return writer;
+    }
+
+    /**
+     * @return Null if mipmaps were not requested.
+     */
+    private Mipmaps.RowChain openMipChain(Map<RowWriter, File> writers, String fileName, int width, int height,
+                                          PngRowWriter.Format format, Mipmaps.Filter filter) throws IOException {
+        if (!mipmaps)
+            return null;
+        return new Mipmaps.RowChain(width, height, filter, (level, levelWidth, levelHeight) ->
+                openWriter(writers, Mipmaps.levelName(fileName, level), levelWidth, levelHeight, format));
+    }
+
+    private void closeMipChain(Map<RowWriter, File> writers, Mipmaps.RowChain chain, String fileName,
+                               RunReport.Stage stage) throws IOException {
+        if (chain == null)
+            return;
+        chain.finish();
+        RowWriter[] levels = chain.getWriters();
+        for (int level = 1; level <= levels.length; level++) {
+            closeWriter(writers, levels[level - 1]);
+            stage.output(outputFile(Mipmaps.levelName(fileName, level)));
+        }
+    }
+
+    private static void closeWriter(Map<RowWriter, File> writers, RowWriter writer) throws IOException {
+        writer.close();
+        writers.remove(writer);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already failing
+        }
+    }
+
+    private interface RowSource {
+
+        void readRow(short[] dst, int off) throws IOException;
+    }
+
+    /**
+     * Heightmap rows read one at a time, from a PNG or a raw file.
+     */
+    private static class SourceRows {
+
+        final int width, height;
+        final RowSource rows;
+
+        SourceRows(int width, int height, RowSource rows) {
+            this.width = width;
+            this.height = height;
+            this.rows = rows;
+        }
+    }
+
+    private HeightmapMath.GradientStencil stencil(int width, int height) {
+        return stencil(width, height, false);
+    }
+
+    private HeightmapMath.GradientStencil stencil(int width, int height, boolean surface) {
+        return new HeightmapMath.GradientStencil(gradientOperator, width, height, surface);
+    }
+
+    /**
+     * Surface maps of a streamed computation, computed a band of rows at a time along a pass over the source.
+     */
+    private class StreamedSurface {
+
+        final int width;
+        final double scale;
+        final int[] normalBand;
+        final short[] slopeBand;
+        final RowWriter normalWriter, slopeWriter;
+        final Mipmaps.RowChain normalMips, slopeMips;
+
+        StreamedSurface(Map<RowWriter, File> writers, int width, int height) throws IOException {
+            this.width = width;
+            scale = HeightmapMath.surfaceScale(gradientOperator, pixelSize, heightScale);
+            normalBand = normalMap ? new int[STREAMING_BAND_ROWS * width] : null;
+            slopeBand = slopeMap ? new short[STREAMING_BAND_ROWS * width] : null;
+            normalWriter = normalMap ? openWriter(writers, NORMAL_MAP, width, height, PngRowWriter.Format.RGB8) : null;
+            slopeWriter = slopeMap ? openWriter(writers, SLOPE_MAP, width, height, PngRowWriter.Format.GRAY16) : null;
+            normalMips = normalMap ? openMipChain(writers, NORMAL_MAP, width, height, PngRowWriter.Format.RGB8,
+                    Mipmaps.Filter.RGB_BOX) : null;
+            slopeMips = slopeMap ? openMipChain(writers, SLOPE_MAP, width, height, PngRowWriter.Format.GRAY16,
+                    Mipmaps.Filter.BOX) : null;
+        }
+
+        /**
+         * Computes row r of the band from gradients the stencil just computed.
+         */
+        void compute(HeightmapMath.GradientStencil stencil, int r) {
+            stencil.surface(0, width, scale, normalBand, slopeBand, r * width);
+        }
+
+        void write(int rows) throws IOException {
+            for (int r = 0; r < rows; ++r) {
+                if (normalWriter != null) normalWriter.writeRow(normalBand, r * width);
+                if (slopeWriter != null) slopeWriter.writeRow(slopeBand, r * width);
+                if (normalMips != null) normalMips.push(normalBand, r * width);
+                if (slopeMips != null) slopeMips.push(slopeBand, r * width);
+            }
+        }
+
+        void close(Map<RowWriter, File> writers, RunReport.Stage stage, String[] result) throws IOException {
+            if (normalWriter != null) {
+                closeWriter(writers, normalWriter);
+                stage.output(outputFile(NORMAL_MAP));
+                closeMipChain(writers, normalMips, NORMAL_MAP, stage);
+                result[4] = NORMAL_MAP;
+            }
+            if (slopeWriter != null) {
+                closeWriter(writers, slopeWriter);
+                stage.output(outputFile(SLOPE_MAP));
+                closeMipChain(writers, slopeMips, SLOPE_MAP, stage);
+                result[5] = SLOPE_MAP;
+            }
+        }
+    }
+
+    /**
+     * Rows of a band plus halo rows above and below it, as many as the gradient stencil reaches.
+     */
+    private static class SourceWindow {
+
+        final SourceRows source;
+        final int width, height, bandRows, halo;
+        final short[] data;
+        int start, end; // Band rows, end exclusive
+        private int loaded; // Rows read so far
+
+        SourceWindow(SourceRows source, int bandRows, int halo) {
+            this.source = source;
+            this.width = source.width;
+            this.height = source.height;
+            this.bandRows = bandRows;
+            this.halo = halo;
+            data = new short[(bandRows + 2 * halo) * width];
+        }
+
+        /**
+         * Moves to next band, keeping the last halo rows of current band and the rows below it as halo.
+         *
+         * @return False if there is no more rows.
+         */
+        boolean next() throws IOException {
+            if (end >= height)
+                return false;
+            if (end > 0) {
+                int kept = Math.max(0, end - halo);
+                System.arraycopy(data, offset(kept), data, (kept - end + halo) * width, (loaded - kept) * width);
+            }
+            start = end;
+            end = Math.min(height, start + bandRows);
+            int needed = Math.min(height, end + halo);
+            for (; loaded < needed; loaded++)
+                source.rows.readRow(data, offset(loaded));
+            return true;
+        }
+
+        int count() {
+            return end - start;
+        }
+
+        int offset(int row) {
+            return (row - start + halo) * width;
+        }
+    }
+
+    /**
+     * Decodes an image the same way {@link ImageIO#read(File)} does, counting its rows as they are decoded.
+     *
+     * @param source True for the heightmap, whose height gives progress total.
+     * @return Null if the image cannot be read.
+     * @throws CancellationException If computation was cancelled, decoding is aborted.
+     */
+    private BufferedImage readImage(File file, boolean source) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int height = reader.getHeight(0);
+                if (source)
+                    planProgress(reader.getWidth(0), height, false);
+                DecodeProgress decodeProgress = new DecodeProgress(height);
+                reader.addIIOReadProgressListener(decodeProgress);
+                ImageReadParam param = reader.getDefaultReadParam();
+                BufferedImage destination = source ? pooledDestination(reader) : null;
+                param.setDestination(destination);
+                BufferedImage image;
+                try {
+                    image = reader.read(0, param);
+                } catch (IOException | RuntimeException e) {
+                    recycle(destination);
+                    throw e;
+                }
+                progress.advance(height - decodeProgress.rows);
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Borrows the image a 16bit grayscale heightmap decodes into, null without pool or for other images.
+     */
+    private BufferedImage pooledDestination(ImageReader reader) throws IOException {
+        if (pool == null)
+            return null;
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        if (type == null || type.getBufferedImageType() != BufferedImage.TYPE_USHORT_GRAY)
+            return null;
+        return pool.image(reader.getWidth(0), reader.getHeight(0), BufferedImage.TYPE_USHORT_GRAY);
+    }
+
+    /**
+     * Counts decoded rows, and aborts decoding once computation is cancelled.
+     */
+    private class DecodeProgress implements IIOReadProgressListener {
+
+        final int height;
+        int rows;
+
+        DecodeProgress(int height) {
+            this.height = height;
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            if (progress.isCancelled()) {
+                source.abort();
+                return;
+            }
+            int decoded = Math.min(height, (int) (height * percentageDone / 100));
+            if (decoded > rows) {
+                progress.advance(decoded - rows);
+                rows = decoded;
+            }
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+        }
+    }
+
+    /**
+     * @throws CancellationException If computation was cancelled, partial file is deleted.
+     */
+    private String writeImage(String fileName, BufferedImage im) {
+        File file = outputFile(fileName);
+        try {
+            progress.checkCancelled();
+            RunReport.Stage stage = report.start("write").pixels((long) im.getWidth() * im.getHeight());
+            if (!imageSink.write(im, file))
+                return null;
+            stage.output(file).end();
+            return fileName;
+        } catch (CancellationException e) {
+            file.delete();
+            throw e;
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return null;
+        }
+    }
+
+    private boolean writeFile(BufferedImage im, File file) throws IOException {
+        if (RawHeightmap.isRaw(file))
+            return RawHeightmap.write(im, file, rawOrder, progress);
+        if (PngRowWriter.write(im, file, compression, engine, progress))
+            return true;
+        boolean written = ImageIO.write(im, "png", file);
+        progress.advance(im.getHeight());
+        return written;
+    }
+
+    private File outputFile(String fileName) {
+        return new File(outputDirectory(), fileName);
+    }
+
+    private File outputDirectory() {
+        return outputDir != null ? outputDir : srcFile.getAbsoluteFile().getParentFile();
+    }
+}
@@ -0,0 +1,100 @@
+package com.majeur.hmaputils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches input files of an incremental {@link MapsComputation} and recomputes its maps each time one of them is
+ * saved, see {@link MapsComputation#recompute()}. Editors often save a file in several writes, so changes are
+ * only handled once watched files stayed untouched for {@value #QUIET_PERIOD} ms.
+ */
+public class MapsWatcher implements Closeable {
+
+    public interface Listener {
+
+        void onRecomputed(String[] result, long millis);
+
+        void onError(String reason);
+    }
+
+    public static final long QUIET_PERIOD = 300; // ms
+
+    private final MapsComputation computation;
+    private final Set<Path> files = new HashSet<>();
+    private final WatchService watchService;
+
+    public MapsWatcher(MapsComputation computation) throws IOException {
+        this.computation = computation;
+        watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> dirs = new HashSet<>();
+        for (File file : computation.getInputFiles()) {
+            Path path = file.getAbsoluteFile().toPath().normalize();
+            files.add(path);
+            // Directories are watched, files saved through a temporary file are replaced rather than modified
+            if (dirs.add(path.getParent()))
+                path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+    }
+
+    /**
+     * Recomputes maps after every change of watched files, until the calling thread is interrupted or the watcher
+     * is closed.
+     */
+    public void watch(Listener listener) throws InterruptedException {
+        try {
+            while (true) {
+                boolean changed = handle(watchService.take());
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null)
+                    changed |= handle(key);
+                if (!changed)
+                    continue;
+
+                long start = System.nanoTime();
+                try {
+                    String[] result = computation.recompute();
+                    listener.onRecomputed(result, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } catch (ComputationException e) {
+                    listener.onError(e.getMessage());
+                } catch (RuntimeException e) {
+                    listener.onError(e.toString());
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * @return True if a watched file changed.
+     */
+    private boolean handle(WatchKey key) {
+        boolean changed = false;
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                changed = true; // Events were lost
+            else if (files.contains(dir.resolve((Path) event.context()).normalize()))
+                changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,327 @@
+package com.majeur.hmaputils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mip chains of output maps: each level halves the previous one, down to a single pixel. Level sizes follow
+ * the usual GPU rule, {@code max(1, size / 2)}, so the last row or column of an odd sized level is dropped.
+ * <p>
+ * Levels are reduced from the previous level, never from the full resolution map, either from a complete image
+ * with {@link #levels} or from rows as they are computed with a {@link RowChain} when streaming.
+ */
+public class Mipmaps {
+
+    public enum Filter {
+
+        /**
+         * 2x2 average of 16bit gray values, for the relief map.
+         */
+        BOX,
+
+        /**
+         * 2x2 average of 16bit heights encoded in red and green channels, for the RG heightmap.
+         */
+        RG_BOX,
+
+        /**
+         * 2x2 average of each 8bit RGB channel, for the normal map. Normals are not normalized again.
+         */
+        RGB_BOX,
+
+        /**
+         * Most frequent RGB color of each 2x2 block, so that masks only ever contain their class colors. Ties
+         * go to the first color in row order. Alpha is averaged.
+         */
+        MAJORITY
+    }
+
+    /**
+     * Opens the writer a level is written to.
+     */
+    interface WriterFactory {
+
+        RowWriter open(int level, int width, int height) throws IOException;
+    }
+
+    public static int levelSize(int size) {
+        return Math.max(1, size >> 1);
+    }
+
+    /**
+     * Number of levels below the full resolution one.
+     */
+    public static int levelCount(int width, int height) {
+        int count = 0;
+        for (; width > 1 || height > 1; count++) {
+            width = levelSize(width);
+            height = levelSize(height);
+        }
+        return count;
+    }
+
+    /**
+     * Sum of level heights, below the full resolution one.
+     */
+    public static long levelRows(int width, int height) {
+        long rows = 0;
+        for (; width > 1 || height > 1; rows += height) {
+            width = levelSize(width);
+            height = levelSize(height);
+        }
+        return rows;
+    }
+
+    /**
+     * Returns "name_mip{level}.png" for "name.png".
+     */
+    public static String levelName(String fileName, int level) {
+        int dot = fileName.lastIndexOf('.');
+        return fileName.substring(0, dot) + "_mip" + level + fileName.substring(dot);
+    }
+
+    /**
+     * Reduces an image into every level below it, each one from the previous level, rows of a level being
+     * reduced in parallel.
+     *
+     * @param image A {@link BufferedImage#TYPE_USHORT_GRAY} image for {@link Filter#BOX}, a
+     *              {@link BufferedImage#TYPE_INT_RGB} or {@link BufferedImage#TYPE_INT_ARGB} one otherwise.
+     * @return Levels from the half size one, of the same type as the image.
+     * @throws java.util.concurrent.CancellationException If computation was cancelled.
+     */
+    public static List<BufferedImage> levels(BufferedImage image, Filter filter, ParallelEngine engine,
+                                             RowProgress progress) {
+        return levels(image, filter, engine, progress, null);
+    }
+
+    /**
+     * Same as {@link #levels(BufferedImage, Filter, ParallelEngine, RowProgress)}, borrowing levels from pool.
+     *
+     * @param pool Where levels are borrowed from, null to allocate them.
+     */
+    public static List<BufferedImage> levels(BufferedImage image, Filter filter, ParallelEngine engine,
+                                             RowProgress progress, BufferPool pool) {
+        List<BufferedImage> levels = new ArrayList<>();
+        BufferedImage src = image;
+        while (src.getWidth() > 1 || src.getHeight() > 1) {
+            int srcWidth = src.getWidth();
+            int srcHeight = src.getHeight();
+            int width = levelSize(srcWidth);
+            BufferedImage dst = pool != null ? pool.image(width, levelSize(srcHeight), image.getType())
+                    : new BufferedImage(width, levelSize(srcHeight), image.getType());
+            Object srcData = data(src);
+            Object dstData = data(dst);
+            engine.forEachBand(dst.getHeight(), (from, to) -> {
+                for (int y = from; y < to; y++) {
+                    if (progress != null)
+                        progress.checkCancelled();
+                    int row0 = 2 * y * srcWidth;
+                    int row1 = Math.min(2 * y + 1, srcHeight - 1) * srcWidth;
+                    reduceRow(filter, srcData, row0, srcData, row1, srcWidth, dstData, y * width, width);
+                }
+            });
+            levels.add(dst);
+            src = dst;
+        }
+        return levels;
+    }
+
+    private static Object data(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_USHORT_GRAY)
+            return ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static void reduceRow(Filter filter, Object src0, int row0, Object src1, int row1, int srcWidth,
+                                  Object dst, int dstOff, int width) {
+        switch (filter) {
+            case BOX:
+                boxRow((short[]) src0, row0, (short[]) src1, row1, srcWidth, (short[]) dst, dstOff, width);
+                break;
+            case RG_BOX:
+                rgBoxRow((int[]) src0, row0, (int[]) src1, row1, srcWidth, (int[]) dst, dstOff, width);
+                break;
+            case RGB_BOX:
+                rgbBoxRow((int[]) src0, row0, (int[]) src1, row1, srcWidth, (int[]) dst, dstOff, width);
+                break;
+            case MAJORITY:
+                majorityRow((int[]) src0, row0, (int[]) src1, row1, srcWidth, (int[]) dst, dstOff, width);
+                break;
+        }
+    }
+
+    /**
+     * Reduces two source rows, the one starting at row0 in src0 and the one below it starting at row1 in src1,
+     * into a row of width pixels.
+     */
+    public static void boxRow(short[] src0, int row0, short[] src1, int row1, int srcWidth,
+                              short[] dst, int dstOff, int width) {
+        for (int x = 0; x < width; x++) {
+            int x0 = 2 * x;
+            int x1 = Math.min(x0 + 1, srcWidth - 1);
+            int sum = (src0[row0 + x0] & 0xffff) + (src0[row0 + x1] & 0xffff)
+                    + (src1[row1 + x0] & 0xffff) + (src1[row1 + x1] & 0xffff);
+            dst[dstOff + x] = (short) ((sum + 2) >> 2);
+        }
+    }
+
+    /**
+     * @see #boxRow
+     */
+    public static void rgBoxRow(int[] src0, int row0, int[] src1, int row1, int srcWidth,
+                                int[] dst, int dstOff, int width) {
+        for (int x = 0; x < width; x++) {
+            int x0 = 2 * x;
+            int x1 = Math.min(x0 + 1, srcWidth - 1);
+            int sum = (src0[row0 + x0] >> 8 & 0xffff) + (src0[row0 + x1] >> 8 & 0xffff)
+                    + (src1[row1 + x0] >> 8 & 0xffff) + (src1[row1 + x1] >> 8 & 0xffff);
+            dst[dstOff + x] = (sum + 2) >> 2 << 8;
+        }
+    }
+
+    /**
+     * @see #boxRow
+     */
+    public static void rgbBoxRow(int[] src0, int row0, int[] src1, int row1, int srcWidth,
+                                 int[] dst, int dstOff, int width) {
+        for (int x = 0; x < width; x++) {
+            int x0 = 2 * x;
+            int x1 = Math.min(x0 + 1, srcWidth - 1);
+            int a = src0[row0 + x0], b = src0[row0 + x1], c = src1[row1 + x0], d = src1[row1 + x1];
+            int pixel = 0;
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                int sum = (a >> shift & 0xff) + (b >> shift & 0xff) + (c >> shift & 0xff) + (d >> shift & 0xff);
+                pixel |= (sum + 2) >> 2 << shift;
+            }
+            dst[dstOff + x] = pixel;
+        }
+    }
+
+    /**
+     * @see #boxRow
+     */
+    public static void majorityRow(int[] src0, int row0, int[] src1, int row1, int srcWidth,
+                                   int[] dst, int dstOff, int width) {
+        for (int x = 0; x < width; x++) {
+            int x0 = 2 * x;
+            int x1 = Math.min(x0 + 1, srcWidth - 1);
+            int a = src0[row0 + x0], b = src0[row0 + x1], c = src1[row1 + x0], d = src1[row1 + x1];
+            int ab = same(a, b), ac = same(a, c), ad = same(a, d), bc = same(b, c), bd = same(b, d), cd = same(c, d);
+            int color = a, votes = ab + ac + ad;
+            if (ab + bc + bd > votes) {
+                color = b;
+                votes = ab + bc + bd;
+            }
+            if (ac + bc + cd > votes) {
+                color = c;
+                votes = ac + bc + cd;
+            }
+            if (ad + bd + cd > votes)
+                color = d;
+            int alpha = ((a >>> 24) + (b >>> 24) + (c >>> 24) + (d >>> 24) + 2) >> 2;
+            dst[dstOff + x] = alpha << 24 | color & 0xffffff;
+        }
+    }
+
+    private static int same(int a, int b) {
+        return ((a ^ b) & 0xffffff) == 0 ? 1 : 0;
+    }
+
+    /**
+     * Builds levels of a map whose rows come one at a time, in order, writing each level as its rows are
+     * reduced. Only two rows per level are kept, so memory does not depend on the map height.
+     */
+    static class RowChain {
+
+        private final Filter filter;
+        private final RowWriter[] writers;
+        private final int[] widths, heights, written;
+        private final Object[] pending; // Row of previous level waiting for the next one, per level
+        private final boolean[] hasPending;
+        private final Object[] rows; // Reduced row, per level
+
+        /**
+         * @param width  Full resolution width.
+         * @param height Full resolution height.
+         */
+        RowChain(int width, int height, Filter filter, WriterFactory factory) throws IOException {
+            this.filter = filter;
+            int count = levelCount(width, height);
+            writers = new RowWriter[count];
+            widths = new int[count + 1];
+            heights = new int[count + 1];
+            written = new int[count + 1];
+            pending = new Object[count + 1];
+            hasPending = new boolean[count + 1];
+            rows = new Object[count + 1];
+            widths[0] = width;
+            heights[0] = height;
+            for (int level = 1; level <= count; level++) {
+                widths[level] = levelSize(widths[level - 1]);
+                heights[level] = levelSize(heights[level - 1]);
+                pending[level] = filter == Filter.BOX ? new short[widths[level - 1]] : new int[widths[level - 1]];
+                rows[level] = filter == Filter.BOX ? new short[widths[level]] : new int[widths[level]];
+                writers[level - 1] = factory.open(level, widths[level], heights[level]);
+            }
+        }
+
+        /**
+         * Adds next full resolution row of a {@link Filter#BOX} map.
+         */
+        void push(short[] row, int off) throws IOException {
+            push(1, row, off);
+        }
+
+        /**
+         * Adds next full resolution row of a color map, any filter but {@link Filter#BOX}.
+         */
+        void push(int[] row, int off) throws IOException {
+            push(1, row, off);
+        }
+
+        /**
+         * Reduces the last row of levels with a single row left, which only happens to levels one row high.
+         */
+        void finish() throws IOException {
+            for (int level = 1; level < heights.length; level++)
+                if (hasPending[level] && written[level] < heights[level])
+                    reduce(level, pending[level], 0);
+        }
+
+        /**
+         * @return Writers of levels, from the half size one.
+         */
+        RowWriter[] getWriters() {
+            return writers;
+        }
+
+        private void push(int level, Object row, int off) throws IOException {
+            if (level >= heights.length)
+                return;
+            int srcWidth = widths[level - 1];
+            if (!hasPending[level]) {
+                System.arraycopy(row, off, pending[level], 0, srcWidth);
+                hasPending[level] = true;
+                return;
+            }
+            hasPending[level] = false;
+            if (written[level] < heights[level]) // Last row of odd heights is dropped
+                reduce(level, row, off);
+        }
+
+        private void reduce(int level, Object row, int off) throws IOException {
+            Object dst = rows[level];
+            reduceRow(filter, pending[level], 0, row, off, widths[level - 1], dst, 0, widths[level]);
+            if (dst instanceof short[])
+                writers[level - 1].writeRow((short[]) dst, 0);
+            else
+                writers[level - 1].writeRow((int[]) dst, 0);
+            written[level]++;
+            push(level + 1, dst, 0);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.majeur.hmaputils;
+
+/**
+ * Count of every 16bit gradient norm value. Answers which share of the map each RGB mask class covers for
+ * any bounds, and which bounds give wanted shares, in time proportional to the number of bins instead of
+ * the number of pixels.
+ */
+public class NormHistogram {
+
+    public static final int BINS = 65536;
+
+    private final long[] counts = new long[BINS];
+    private long[] cumulative; // cumulative[v] is the number of values below v, computed on first query
+    private long total;
+
+    /**
+     * Histogram of a whole plane.
+     */
+    public static NormHistogram of(short[] plane, ParallelEngine engine) {
+        NormHistogram histogram = new NormHistogram();
+        int[] counts = engine.reduceBands(plane.length, (from, to) -> {
+            int[] band = new int[BINS];
+            count(plane, from, to - from, band);
+            return band;
+        }, NormHistogram::mergeCounts);
+        histogram.add(counts);
+        return histogram;
+    }
+
+    /**
+     * Counts values of a row into band counts.
+     */
+    static void count(short[] src, int off, int len, int[] counts) {
+        for (int i = off; i < off + len; i++)
+            counts[src[i] & 0xffff]++;
+    }
+
+    /**
+     * Sums band counts into the first ones, the same way for any band order.
+     */
+    static int[] mergeCounts(int[] a, int[] b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        for (int v = 0; v < BINS; v++)
+            a[v] += b[v];
+        return a;
+    }
+
+    void add(int[] bandCounts) {
+        if (bandCounts == null)
+            return;
+        for (int v = 0; v < BINS; v++) {
+            counts[v] += bandCounts[v];
+            total += bandCounts[v];
+        }
+        cumulative = null;
+    }
+
+    public long getCount(int value) {
+        return counts[value];
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Number of values lower than given one.
+     */
+    public long countBelow(int value) {
+        if (cumulative == null) {
+            long[] sums = new long[BINS + 1];
+            for (int v = 0; v < BINS; v++)
+                sums[v + 1] = sums[v] + counts[v];
+            cumulative = sums;
+        }
+        return cumulative[Math.max(0, Math.min(BINS, value))];
+    }
+
+    /**
+     * Shares of the map the RGB mask would set to green, red and blue with given bounds, as
+     * {@link HeightmapMath#calculateMasks} classifies them.
+     */
+    public double[] classShares(double lowerBound, double upperBound) {
+        if (total == 0)
+            return new double[3];
+        long green = countBelow(HeightmapMath.maskBound(lowerBound));
+        long greenOrRed = Math.max(green, countBelow(HeightmapMath.maskBound(upperBound)));
+        return new double[]{(double) green / total, (double) (greenOrRed - green) / total,
+                (double) (total - greenOrRed) / total};
+    }
+
+    /**
+     * Finds the bounds that make the RGB mask closest to given shares.
+     *
+     * @param blueShare Share of the map wanted in blue, the strongest slopes (cliffs).
+     * @param redShare  Share of the map wanted in red, medium slopes (hills). Remaining is green.
+     * @return Lower and upper bounds, ready for {@link HeightmapMath#calculateMasks}.
+     */
+    public double[] boundsForShares(double blueShare, double redShare) {
+        if (blueShare < 0 || redShare < 0 || blueShare + redShare > 1)
+            throw new IllegalArgumentException("Shares must be positive and sum to 1 at most.");
+        int upper = valueForShareBelow(1 - blueShare);
+        int lower = Math.min(upper, valueForShareBelow(1 - blueShare - redShare));
+        return new double[]{lower / (double) HeightmapMath.USHORT_MAX_VALUE, upper / (double) HeightmapMath.USHORT_MAX_VALUE};
+    }
+
+    /**
+     * Smallest value having the number of values below it closest to given share of the map.
+     */
+    private int valueForShareBelow(double share) {
+        double target = share * total;
+        int best = 0;
+        double bestError = Double.MAX_VALUE;
+        for (int v = 0; v <= HeightmapMath.USHORT_MAX_VALUE; v++) {
+            double error = Math.abs(countBelow(v) - target);
+            if (error < bestError) {
+                bestError = error;
+                best = v;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,133 @@
+package com.majeur.hmaputils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * Runs row based kernels over bands of rows, either on the calling thread or on a {@link ForkJoinPool}.
+ * <p>
+ * Bands only depend on the number of rows and on the parallelism, and partial results of a reduction are
+ * always combined in band order, so results do not depend on threads scheduling. Kernels that need
+ * neighbour rows (gradient stencil) read them directly from the shared source plane, bands do not
+ * need to copy their halo.
+ */
+public class ParallelEngine {
+
+    public interface BandAction {
+
+        void run(int from, int to);
+    }
+
+    public interface BandFunction<T> {
+
+        T apply(int from, int to);
+    }
+
+    public static final String PARALLELISM_PROPERTY = "hmaputils.parallelism";
+
+    public static final ParallelEngine SEQUENTIAL = new ParallelEngine(1);
+
+    private static final int BANDS_PER_THREAD = 4;
+    private static final int MIN_BAND_ROWS = 8;
+
+    private static ParallelEngine defaultEngine;
+
+    private final int parallelism;
+    private final ForkJoinPool pool;
+
+    public ParallelEngine(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        this.parallelism = parallelism;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Returns the engine shared by computations, which uses all available processors unless
+     * {@value #PARALLELISM_PROPERTY} system property says otherwise.
+     */
+    public static synchronized ParallelEngine getDefault() {
+        if (defaultEngine == null) {
+            int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+            defaultEngine = parallelism > 1 ? new ParallelEngine(parallelism) : SEQUENTIAL;
+        }
+        return defaultEngine;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Returns an executor running tasks on this engine threads, or on the calling thread for a sequential engine.
+     */
+    public Executor getExecutor() {
+        return pool != null ? pool : Runnable::run;
+    }
+
+    public void forEachBand(int rows, BandAction action) {
+        reduceBands(rows, (from, to) -> {
+            action.run(from, to);
+            return null;
+        }, (a, b) -> null);
+    }
+
+    /**
+     * Applies a function to each band of rows and combines partial results in band order.
+     *
+     * @param rows     Total number of rows.
+     * @param function Function computing the partial result of rows [from, to).
+     * @param combiner Function merging two partial results, first one being the upper band.
+     * @return Combined result, or null if there is no rows.
+     */
+    public <T> T reduceBands(int rows, BandFunction<T> function, BinaryOperator<T> combiner) {
+        if (rows <= 0)
+            return null;
+        int bands = Math.max(1, Math.min(parallelism * BANDS_PER_THREAD, rows / MIN_BAND_ROWS));
+        if (pool == null || bands == 1)
+            return function.apply(0, rows);
+        return pool.invoke(new BandTask<>(rows, bands, 0, bands, function, combiner));
+    }
+
+    public void shutdown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    private static class BandTask<T> extends RecursiveTask<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int rows, bands, firstBand, lastBand;
+        private final BandFunction<T> function;
+        private final BinaryOperator<T> combiner;
+
+        BandTask(int rows, int bands, int firstBand, int lastBand, BandFunction<T> function, BinaryOperator<T> combiner) {
+            this.rows = rows;
+            this.bands = bands;
+            this.firstBand = firstBand;
+            this.lastBand = lastBand;
+            this.function = function;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected T compute() {
+            if (lastBand - firstBand == 1)
+                return function.apply(bandStart(firstBand), bandStart(lastBand));
+
+            int middle = (firstBand + lastBand) >>> 1;
+            BandTask<T> upper = new BandTask<>(rows, bands, firstBand, middle, function, combiner);
+            BandTask<T> lower = new BandTask<>(rows, bands, middle, lastBand, function, combiner);
+            lower.fork();
+            T upperResult = upper.compute();
+            return combiner.apply(upperResult, lower.join());
+        }
+
+        private int bandStart(int band) {
+            return (int) ((long) rows * band / bands);
+        }
+    }
+}
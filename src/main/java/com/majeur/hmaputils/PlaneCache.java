@@ -0,0 +1,184 @@
+package com.majeur.hmaputils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Persistent cache of intermediate 16bit planes, such as the gradient norm, so that runs only changing
+ * downstream parameters do not recompute them. Entries are keyed by a hash of the source file content
+ * and of the parameters the plane depends on.
+ * <p>
+ * Each entry is a file made of a 16 bytes header (magic, version, width, height) followed by the plane
+ * samples as big endian shorts, which is memory-mapped on load. Least recently used entries are deleted
+ * once the cache grows over its size limit.
+ */
+public class PlaneCache {
+
+    /**
+     * Plane of 16bit samples, row after row.
+     */
+    public static class Plane {
+
+        public final int width, height;
+        public final short[] data;
+
+        public Plane(int width, int height, short[] data) {
+            this.width = width;
+            this.height = height;
+            this.data = data;
+        }
+    }
+
+    public static final String SIZE_PROPERTY = "hmaputils.cache.size";
+
+    private static final long DEFAULT_SIZE_MB = 1024;
+    private static final int MAGIC = 0x484d5043; // HMPC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final String EXTENSION = ".plane";
+
+    private static PlaneCache defaultCache;
+
+    private final File dir;
+    private final long maxBytes;
+
+    public PlaneCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache stored in the working directory next to config.json. Its size is bounded to
+     * {@value #SIZE_PROPERTY} system property in megabytes, 1024 by default.
+     */
+    public static synchronized PlaneCache getDefault() {
+        if (defaultCache == null) {
+            long megabytes = Long.getLong(SIZE_PROPERTY, DEFAULT_SIZE_MB);
+            defaultCache = new PlaneCache(new File(HeightmapUtilities.getWorkingDir(), "cache"), megabytes << 20);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Computes the key of a plane derived from given file with given parameters.
+     */
+    public static String key(File source, Object... parameters) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new RuntimeException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(source)) {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                digest.update(buffer, 0, n);
+        }
+        for (Object parameter : parameters)
+            digest.update(("|" + parameter).getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest())
+            key.append(String.format("%02x", b));
+        return key.toString();
+    }
+
+    /**
+     * Returns the plane stored under given key, or null if there is none or if it is unreadable.
+     */
+    public Plane load(String key) {
+        File file = file(key);
+        if (!file.isFile())
+            return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+                return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            if (width <= 0 || height <= 0 || size != HEADER_SIZE + 2L * width * height)
+                return null;
+            short[] data = new short[width * height];
+            buffer.asShortBuffer().get(data);
+            file.setLastModified(System.currentTimeMillis()); // Recently used
+            return new Plane(width, height, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Stores a plane under given key, then evicts least recently used entries if the cache is too large.
+     * Failures are only logged, caching is never required.
+     */
+    public void store(String key, Plane plane) {
+        File tmp = null;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Unable to create " + dir.getPath());
+            tmp = File.createTempFile(key, ".tmp", dir);
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(plane.width).putInt(plane.height);
+                int length = plane.width * plane.height;
+                for (int i = 0; i < length; ) {
+                    int n = Math.min(length - i, buffer.remaining() / 2);
+                    buffer.asShortBuffer().put(plane.data, i, n);
+                    buffer.position(buffer.position() + 2 * n);
+                    i += n;
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                    buffer.clear();
+                }
+            }
+            Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            evict();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+
+    private synchronized void evict() {
+        File[] entries = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+        if (entries == null)
+            return;
+        long total = 0;
+        for (File entry : entries)
+            total += entry.length();
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < entries.length && total > maxBytes; i++) {
+            long length = entries[i].length();
+            if (entries[i].delete())
+                total -= length;
+        }
+    }
+
+    private File file(String key) {
+        return new File(dir, key + EXTENSION);
+    }
+}
@@ -0,0 +1,303 @@
+package com.majeur.hmaputils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a non-interlaced PNG one row at a time, so that images larger than the heap can be processed.
+ * Any color type and bit depth is supported, pixel values are the ones {@link ImageIO#read(File)} gives.
+ */
+public class PngRowReader implements Closeable {
+
+    private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+
+    public static final int COLOR_GRAY = 0;
+    public static final int COLOR_RGB = 2;
+    public static final int COLOR_PALETTE = 3;
+    public static final int COLOR_GRAY_ALPHA = 4;
+    public static final int COLOR_RGBA = 6;
+
+    private final File file;
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+
+    public final int width, height;
+    public final int bitDepth, colorType;
+    private final int channels, bytesPerPixel, rowBytes;
+    private int[] transparentSamples;
+
+    private byte[] previous, current;
+    private final byte[] filterType = new byte[1];
+    private final byte[] inflateBuffer = new byte[16 * 1024];
+    private int chunkRemaining;
+    private boolean idatEnded;
+    private int row;
+
+    public PngRowReader(File file) throws IOException {
+        this.file = file;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readLong() != SIGNATURE)
+                throw new IOException(file.getName() + " is not a png file.");
+
+            int length = in.readInt();
+            if (in.readInt() != chunkType("IHDR"))
+                throw new IOException(file.getName() + " has no header.");
+            width = in.readInt();
+            height = in.readInt();
+            bitDepth = in.readUnsignedByte();
+            colorType = in.readUnsignedByte();
+            in.readUnsignedByte(); // compression method, deflate is the only one defined
+            in.readUnsignedByte(); // filter method, adaptive is the only one defined
+            int interlace = in.readUnsignedByte();
+            in.skipBytes(length - 13 + 4); // remaining header and CRC
+            if (interlace != 0)
+                throw new IOException(file.getName() + " is interlaced, which cannot be read row by row.");
+
+            switch (colorType) {
+                case COLOR_GRAY:
+                case COLOR_PALETTE:
+                    channels = 1;
+                    break;
+                case COLOR_GRAY_ALPHA:
+                    channels = 2;
+                    break;
+                case COLOR_RGB:
+                    channels = 3;
+                    break;
+                case COLOR_RGBA:
+                    channels = 4;
+                    break;
+                default:
+                    throw new IOException(file.getName() + " has an unknown color type.");
+            }
+            bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+            rowBytes = (int) (((long) width * channels * bitDepth + 7) / 8);
+            previous = new byte[rowBytes];
+            current = new byte[rowBytes];
+
+            seekImageData();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static int chunkType(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+
+    /**
+     * Skips chunks until first IDAT, keeping the transparency one.
+     */
+    private void seekImageData() throws IOException {
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type == chunkType("IDAT")) {
+                chunkRemaining = length;
+                return;
+            } else if (type == chunkType("tRNS") && colorType != COLOR_PALETTE) {
+                transparentSamples = new int[length / 2];
+                for (int i = 0; i < transparentSamples.length; i++)
+                    transparentSamples[i] = in.readUnsignedShort();
+                in.skipBytes(length - transparentSamples.length * 2 + 4);
+            } else if (type == chunkType("IEND")) {
+                throw new IOException(file.getName() + " has no image data.");
+            } else {
+                skipFully(length + 4L);
+            }
+        }
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Returns true if the image is a 16bit grayscaled no-alpha png, which can be read with {@link #readRow(short[], int)}.
+     */
+    public boolean isGray16() {
+        return colorType == COLOR_GRAY && bitDepth == 16 && transparentSamples == null;
+    }
+
+    /**
+     * Creates an image of given height with the same type {@link ImageIO#read(File)} gives for this file, to be
+     * filled with {@link #readRows(BufferedImage, int)}.
+     */
+    public BufferedImage createBandImage(int rows) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("png");
+        if (!readers.hasNext())
+            throw new IOException("No png reader available.");
+        ImageReader reader = readers.next();
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            reader.setInput(stream, true, true);
+            ImageTypeSpecifier type = reader.getImageTypes(0).next();
+            return type.createBufferedImage(width, rows);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Reads next row of a 16bit grayscaled png.
+     */
+    public void readRow(short[] dst, int off) throws IOException {
+        byte[] bytes = nextRow();
+        for (int j = 0; j < width; ++j)
+            dst[off + j] = (short) ((bytes[2 * j] & 0xff) << 8 | bytes[2 * j + 1] & 0xff);
+    }
+
+    /**
+     * Reads next rows into the first rows of an image created with {@link #createBandImage(int)}.
+     */
+    public void readRows(BufferedImage band, int rows) throws IOException {
+        WritableRaster raster = band.getRaster();
+        int bands = raster.getNumBands();
+        boolean addAlpha = bands > channels; // ImageIO converts tRNS of gray and rgb images to an alpha channel
+        int[] samples = new int[width * bands];
+        for (int r = 0; r < rows; r++) {
+            byte[] bytes = nextRow();
+            for (int j = 0, k = 0; j < width; j++) {
+                boolean transparent = transparentSamples != null;
+                for (int c = 0; c < channels; c++) {
+                    int sample = sample(bytes, j * channels + c);
+                    samples[k++] = sample;
+                    if (transparent && (c >= transparentSamples.length || sample != transparentSamples[c]))
+                        transparent = false;
+                }
+                if (addAlpha)
+                    samples[k++] = transparent ? 0 : (1 << bitDepth) - 1;
+            }
+            raster.setPixels(0, r, width, 1, samples);
+        }
+    }
+
+    private int sample(byte[] bytes, int index) {
+        switch (bitDepth) {
+            case 16:
+                return (bytes[2 * index] & 0xff) << 8 | bytes[2 * index + 1] & 0xff;
+            case 8:
+                return bytes[index] & 0xff;
+            default:
+                int bitOffset = index * bitDepth;
+                int shift = 8 - bitDepth - (bitOffset & 7);
+                return (bytes[bitOffset >> 3] >> shift) & ((1 << bitDepth) - 1);
+        }
+    }
+
+    private byte[] nextRow() throws IOException {
+        if (row >= height)
+            throw new EOFException("No more rows in " + file.getName());
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+
+        inflateFully(filterType, 0, 1);
+        inflateFully(current, 0, rowBytes);
+        unfilter(filterType[0], current, previous);
+        row++;
+        return current;
+    }
+
+    private void inflateFully(byte[] dst, int off, int len) throws IOException {
+        int read = 0;
+        try {
+            while (read < len) {
+                int n = inflater.inflate(dst, off + read, len - read);
+                read += n;
+                if (n == 0) {
+                    if (inflater.finished() || inflater.needsDictionary())
+                        throw new EOFException("Unexpected end of image data in " + file.getName());
+                    if (inflater.needsInput())
+                        feedInflater();
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted image data in " + file.getName(), e);
+        }
+    }
+
+    private void feedInflater() throws IOException {
+        while (chunkRemaining == 0) {
+            if (idatEnded)
+                throw new EOFException("Unexpected end of image data in " + file.getName());
+            in.readInt(); // CRC
+            int length = in.readInt();
+            if (in.readInt() != chunkType("IDAT")) {
+                idatEnded = true;
+                throw new EOFException("Unexpected end of image data in " + file.getName());
+            }
+            chunkRemaining = length;
+        }
+        int n = in.read(inflateBuffer, 0, Math.min(inflateBuffer.length, chunkRemaining));
+        if (n < 0)
+            throw new EOFException("Unexpected end of file " + file.getName());
+        chunkRemaining -= n;
+        inflater.setInput(inflateBuffer, 0, n);
+    }
+
+    private void unfilter(int filter, byte[] row, byte[] prior) throws IOException {
+        int bpp = bytesPerPixel;
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < rowBytes; i++)
+                    row[i] += row[i - bpp];
+                break;
+            case 2:
+                for (int i = 0; i < rowBytes; i++)
+                    row[i] += prior[i];
+                break;
+            case 3:
+                for (int i = 0; i < bpp; i++)
+                    row[i] += (prior[i] & 0xff) >> 1;
+                for (int i = bpp; i < rowBytes; i++)
+                    row[i] += ((row[i - bpp] & 0xff) + (prior[i] & 0xff)) >> 1;
+                break;
+            case 4:
+                for (int i = 0; i < bpp; i++)
+                    row[i] += prior[i];
+                for (int i = bpp; i < rowBytes; i++)
+                    row[i] += paeth(row[i - bpp] & 0xff, prior[i] & 0xff, prior[i - bpp] & 0xff);
+                break;
+            default:
+                throw new IOException("Unknown row filter in " + file.getName());
+        }
+    }
+
+    static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,500 @@
+package com.majeur.hmaputils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes a PNG one row at a time, so that images larger than the heap can be written.
+ * <p>
+ * Rows are grouped in blocks which are filtered and deflated independently on a {@link ParallelEngine}, the way
+ * pigz does: every block but the last one ends on a byte boundary with a sync flush, is primed with the last 32K
+ * of the previous block as dictionary, and block checksums are combined into the one of the whole zlib stream.
+ * Resulting image data is a single standard zlib stream.
+ */
+public class PngRowWriter implements RowWriter {
+
+    public enum Format {
+        /**
+         * 16bit grayscale, rows given as shorts.
+         */
+        GRAY16(0, 16, 2),
+        /**
+         * 8bit RGB, rows given as 0xRRGGBB ints.
+         */
+        RGB8(2, 8, 3),
+        /**
+         * 8bit RGBA, rows given as 0xAARRGGBB ints.
+         */
+        ARGB8(6, 8, 4);
+
+        final int colorType, bitDepth, bytesPerPixel;
+
+        Format(int colorType, int bitDepth, int bytesPerPixel) {
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.bytesPerPixel = bytesPerPixel;
+        }
+    }
+
+    /**
+     * Trade-offs between encoding speed and file size.
+     */
+    public enum Profile {
+        /**
+         * Up filter on every row and fastest deflate level, for iterations.
+         */
+        FAST(1, FILTER_UP),
+        /**
+         * Adaptive filtering and the deflate level ImageIO png writer uses.
+         */
+        DEFAULT(4, FILTER_ADAPTIVE),
+        /**
+         * Adaptive filtering and strongest deflate level, for releases.
+         */
+        SMALL(9, FILTER_ADAPTIVE);
+
+        final int level, filter;
+
+        Profile(int level, int filter) {
+            this.level = level;
+            this.filter = filter;
+        }
+    }
+
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_ADAPTIVE = -1;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int BLOCK_SIZE = 512 * 1024; // Raw bytes per compressed block
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int BLOCKS_PER_THREAD = 2; // Blocks in flight, bounds memory
+
+    private final Format format;
+    private final Profile profile;
+    private final int width, height, rowBytes;
+    private final Executor executor;
+    private final int maxPendingBlocks;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE + 12);
+    private final byte[] idat = new byte[CHUNK_SIZE];
+    private int idatLength;
+
+    private final ArrayDeque<CompletableFuture<Block>> pending = new ArrayDeque<>();
+    private CompletableFuture<byte[]> previousFiltered;
+    private long checksum = 1; // Adler-32 of no data
+    private byte[] block, prior;
+    private final int blockRows;
+    private int blockRow, row;
+
+    public PngRowWriter(File file, int width, int height, Format format) throws IOException {
+        this(file, width, height, format, Profile.DEFAULT, ParallelEngine.SEQUENTIAL);
+    }
+
+    public PngRowWriter(File file, int width, int height, Format format, Profile profile, ParallelEngine engine)
+            throws IOException {
+        this.format = format;
+        this.profile = profile;
+        this.width = width;
+        this.height = height;
+        executor = engine.getExecutor();
+        maxPendingBlocks = engine.getParallelism() * BLOCKS_PER_THREAD;
+
+        rowBytes = width * format.bytesPerPixel;
+        blockRows = Math.max(1, BLOCK_SIZE / rowBytes);
+        block = new byte[Math.min(blockRows, height) * rowBytes];
+        prior = new byte[rowBytes];
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            write(SIGNATURE, 0, SIGNATURE.length);
+            byte[] header = new byte[13];
+            writeInt(header, 0, width);
+            writeInt(header, 4, height);
+            header[8] = (byte) format.bitDepth;
+            header[9] = (byte) format.colorType;
+            writeChunk("IHDR", header, 0, header.length);
+
+            int cmf = 0x78; // Deflate with a 32K window
+            int flg = (profile.level <= 1 ? 0 : profile.level <= 5 ? 1 : profile.level == 6 ? 2 : 3) << 6;
+            flg += 31 - (cmf << 8 | flg) % 31;
+            writeIdat(new byte[]{(byte) cmf, (byte) flg}, 0, 2);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /**
+     * Writes an image with this encoder if its type is one of the ones computations create, that is
+     * {@link BufferedImage#TYPE_USHORT_GRAY}, {@link BufferedImage#TYPE_INT_RGB} or {@link BufferedImage#TYPE_INT_ARGB}.
+     *
+     * @return False if image type is not supported, nothing is written then.
+     */
+    public static boolean write(BufferedImage im, File file, Profile profile, ParallelEngine engine) throws IOException {
+        return write(im, file, profile, engine, null);
+    }
+
+    /**
+     * Same as {@link #write(BufferedImage, File, Profile, ParallelEngine)}, counting each written row.
+     *
+     * @param progress Where rows are counted, can be null. Writing stops with
+     *                 {@link java.util.concurrent.CancellationException} once it is cancelled, leaving a partial file.
+     */
+    public static boolean write(BufferedImage im, File file, Profile profile, ParallelEngine engine,
+                                RowProgress progress) throws IOException {
+        Raster raster = im.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        if (raster.getParent() != null || raster.getMinX() != 0 || raster.getMinY() != 0)
+            return false;
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        int width = im.getWidth(), height = im.getHeight();
+
+        if (im.getType() == BufferedImage.TYPE_USHORT_GRAY && sm instanceof ComponentSampleModel) {
+            short[] data = ((DataBufferUShort) dataBuffer).getData();
+            int stride = ((ComponentSampleModel) sm).getScanlineStride();
+            try (PngRowWriter writer = new PngRowWriter(file, width, height, Format.GRAY16, profile, engine)) {
+                for (int i = 0; i < height; i++) {
+                    writer.writeRow(data, dataBuffer.getOffset() + i * stride);
+                    if (progress != null)
+                        progress.advance(1);
+                }
+            }
+            return true;
+        }
+        if ((im.getType() == BufferedImage.TYPE_INT_RGB || im.getType() == BufferedImage.TYPE_INT_ARGB)
+                && sm instanceof SinglePixelPackedSampleModel) {
+            int[] data = ((DataBufferInt) dataBuffer).getData();
+            int stride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+            Format format = im.getType() == BufferedImage.TYPE_INT_ARGB ? Format.ARGB8 : Format.RGB8;
+            try (PngRowWriter writer = new PngRowWriter(file, width, height, format, profile, engine)) {
+                for (int i = 0; i < height; i++) {
+                    writer.writeRow(data, dataBuffer.getOffset() + i * stride);
+                    if (progress != null)
+                        progress.advance(1);
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes next row of a {@link Format#GRAY16} image.
+     */
+    @Override
+    public void writeRow(short[] src, int off) throws IOException {
+        if (format != Format.GRAY16)
+            throw new IllegalStateException("Shorts rows are only for " + Format.GRAY16);
+        byte[] current = nextRow();
+        int p = blockRow * rowBytes;
+        for (int j = 0; j < width; j++) {
+            short v = src[off + j];
+            current[p++] = (byte) (v >>> 8);
+            current[p++] = (byte) v;
+        }
+        endRow();
+    }
+
+    /**
+     * Writes next row of a {@link Format#RGB8} or {@link Format#ARGB8} image.
+     */
+    @Override
+    public void writeRow(int[] src, int off) throws IOException {
+        if (format == Format.GRAY16)
+            throw new IllegalStateException("Ints rows are only for color formats");
+        boolean alpha = format == Format.ARGB8;
+        byte[] current = nextRow();
+        int k = blockRow * rowBytes;
+        for (int j = 0; j < width; j++) {
+            int v = src[off + j];
+            current[k++] = (byte) (v >>> 16);
+            current[k++] = (byte) (v >>> 8);
+            current[k++] = (byte) v;
+            if (alpha)
+                current[k++] = (byte) (v >>> 24);
+        }
+        endRow();
+    }
+
+    private byte[] nextRow() {
+        if (row >= height)
+            throw new IllegalStateException("All rows have already been written.");
+        return block;
+    }
+
+    private void endRow() throws IOException {
+        row++;
+        blockRow++;
+        if (blockRow == blockRows || row == height)
+            submitBlock();
+    }
+
+    /**
+     * Hands current block over to the engine and writes the blocks that are done, in order.
+     */
+    private void submitBlock() throws IOException {
+        byte[] raw = block, rawPrior = prior;
+        int rows = blockRow;
+        boolean last = row == height;
+        prior = Arrays.copyOfRange(raw, (rows - 1) * rowBytes, rows * rowBytes);
+        block = last ? null : new byte[Math.min(blockRows, height - row) * rowBytes];
+        blockRow = 0;
+
+        CompletableFuture<byte[]> filtered = CompletableFuture.supplyAsync(
+                () -> filterBlock(raw, rawPrior, rows), executor);
+        CompletableFuture<byte[]> dictionary = previousFiltered;
+        CompletableFuture<Block> compressed = dictionary == null
+                ? filtered.thenApplyAsync(data -> deflateBlock(data, null, last), executor)
+                : filtered.thenCombineAsync(dictionary, (data, dict) -> deflateBlock(data, dict, last), executor);
+        previousFiltered = last ? null : filtered;
+        pending.add(compressed);
+
+        while (pending.size() > (last ? 0 : maxPendingBlocks))
+            writeBlock(pending.poll());
+    }
+
+    private byte[] filterBlock(byte[] raw, byte[] rawPrior, int rows) {
+        byte[] filtered = new byte[rows * (rowBytes + 1)];
+        byte[] previous = rawPrior.clone(), current = new byte[rowBytes];
+        byte[][] candidates = new byte[5][rowBytes + 1];
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(raw, r * rowBytes, current, 0, rowBytes);
+            byte[] best = profile.filter == FILTER_ADAPTIVE
+                    ? filterRow(current, previous, format.bytesPerPixel, candidates)
+                    : filterRow(current, previous, format.bytesPerPixel, profile.filter, candidates[0]);
+            System.arraycopy(best, 0, filtered, r * (rowBytes + 1), rowBytes + 1);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return filtered;
+    }
+
+    private Block deflateBlock(byte[] data, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(profile.level, true);
+        try {
+            if (dictionary != null) {
+                int length = Math.min(DICTIONARY_SIZE, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - length, length);
+            }
+            deflater.setInput(data);
+            if (last)
+                deflater.finish();
+            byte[] out = new byte[data.length / 2 + 64];
+            int length = 0;
+            while (true) {
+                if (length == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                int n = deflater.deflate(out, length, out.length - length,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                length += n;
+                if (last ? deflater.finished() : length < out.length)
+                    break;
+            }
+            Adler32 adler = new Adler32();
+            adler.update(data);
+            return new Block(out, length, adler.getValue(), data.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeBlock(CompletableFuture<Block> future) throws IOException {
+        Block compressed;
+        try {
+            compressed = future.join();
+        } catch (CompletionException e) {
+            throw new IOException("Unable to compress image data.", e.getCause());
+        }
+        writeIdat(compressed.data, 0, compressed.length);
+        checksum = combineAdler32(checksum, compressed.checksum, compressed.rawLength);
+    }
+
+    /**
+     * Checksum of two concatenated sequences from their own checksums, same as zlib adler32_combine().
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final int base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = remainder * sum1 % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += (adler1 >>> 16 & 0xffff) + (adler2 >>> 16 & 0xffff) + base - remainder;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | sum2 << 16;
+    }
+
+    /**
+     * Applies the five PNG filters to a row and returns the one with the smallest sum of absolute
+     * values, prefixed with its filter type.
+     */
+    static byte[] filterRow(byte[] row, byte[] prior, int bpp, byte[][] filtered) {
+        long bestSum = Long.MAX_VALUE;
+        byte[] best = null;
+        for (int f = 0; f < 5; f++) {
+            byte[] dst = filterRow(row, prior, bpp, f, filtered[f]);
+            long sum = 0;
+            for (int i = 1; i < dst.length; i++)
+                sum += Math.abs(dst[i]);
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = dst;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Applies given PNG filter to a row, result is prefixed with the filter type.
+     */
+    static byte[] filterRow(byte[] row, byte[] prior, int bpp, int filter, byte[] dst) {
+        int n = row.length;
+        dst[0] = (byte) filter;
+        for (int i = 0; i < n; i++) {
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = prior[i] & 0xff;
+            int c = i >= bpp ? prior[i - bpp] & 0xff : 0;
+            int predictor;
+            switch (filter) {
+                case 1:
+                    predictor = a;
+                    break;
+                case 2:
+                    predictor = b;
+                    break;
+                case 3:
+                    predictor = (a + b) >> 1;
+                    break;
+                case 4:
+                    predictor = PngRowReader.paeth(a, b, c);
+                    break;
+                default:
+                    predictor = 0;
+            }
+            dst[i + 1] = (byte) (row[i] - predictor);
+        }
+        return dst;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (row == height) {
+                while (!pending.isEmpty())
+                    writeBlock(pending.poll());
+                byte[] trailer = new byte[4];
+                writeInt(trailer, 0, (int) checksum);
+                writeIdat(trailer, 0, trailer.length);
+                if (idatLength > 0)
+                    writeChunk("IDAT", idat, 0, idatLength);
+                writeChunk("IEND", new byte[0], 0, 0);
+                flush();
+            }
+        } finally {
+            pending.clear();
+            channel.close();
+        }
+        if (row != height)
+            throw new IOException("Only " + row + " rows out of " + height + " were written.");
+    }
+
+    /**
+     * Splits compressed data into IDAT chunks.
+     */
+    private void writeIdat(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_SIZE - idatLength);
+            System.arraycopy(b, off, idat, idatLength, n);
+            idatLength += n;
+            off += n;
+            len -= n;
+            if (idatLength == CHUNK_SIZE) {
+                writeChunk("IDAT", idat, 0, idatLength);
+                idatLength = 0;
+            }
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int off, int len) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, off, len);
+        byte[] header = new byte[8];
+        writeInt(header, 0, len);
+        System.arraycopy(typeBytes, 0, header, 4, 4);
+        write(header, 0, header.length);
+        write(data, off, len);
+        byte[] footer = new byte[4];
+        writeInt(footer, 0, (int) crc.getValue());
+        write(footer, 0, footer.length);
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining())
+                flush();
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Deflated data of a block with the checksum of its uncompressed data.
+     */
+    private static class Block {
+
+        final byte[] data;
+        final int length;
+        final long checksum;
+        final long rawLength;
+
+        Block(byte[] data, int length, long checksum, long rawLength) {
+            this.data = data;
+            this.length = length;
+            this.checksum = checksum;
+            this.rawLength = rawLength;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.majeur.hmaputils;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Shows the RGB mask, or the custom color map, computed from a downsampled copy of the gradient norm of
+ * the last run. Changing bounds or colors only re-thresholds that small plane, after a short delay so that
+ * typing does not recompute on every key. Track mask is not previewed.
+ */
+public class PreviewPanel extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    public interface ParamsSource {
+
+        /**
+         * @return Lower bound, upper bound, then red, green, blue and black custom colors, or null if
+         * some field cannot be parsed yet.
+         */
+        double[] getPreviewParams();
+
+        boolean isCustomPreview();
+    }
+
+    private static final int PREVIEW_SIZE = 256;
+    private static final int DEBOUNCE_DELAY = 150; // ms
+
+    private final ParamsSource paramsSource;
+    private final Timer debounceTimer;
+
+    private HeightmapMath map; // Only holds the downsampled norm
+    private BufferedImage image;
+
+    public PreviewPanel(ParamsSource paramsSource) {
+        this.paramsSource = paramsSource;
+        setBorder(BorderFactory.createTitledBorder("Preview"));
+        setPreferredSize(new Dimension(PREVIEW_SIZE + 16, PREVIEW_SIZE + 28));
+        debounceTimer = new Timer(DEBOUNCE_DELAY, e -> refresh());
+        debounceTimer.setRepeats(false);
+    }
+
+    /**
+     * Downsamples a gradient norm and keeps it for next previews.
+     *
+     * @param norm Full resolution norm, null to clear the preview.
+     */
+    public void setGradientNorm(PlaneCache.Plane norm) {
+        if (norm == null) {
+            map = null;
+            image = null;
+            repaint();
+            return;
+        }
+        int step = Math.max(1, (Math.max(norm.width, norm.height) + PREVIEW_SIZE - 1) / PREVIEW_SIZE);
+        int width = (norm.width + step - 1) / step;
+        int height = (norm.height + step - 1) / step;
+        short[] small = new short[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                small[y * width + x] = norm.data[y * step * norm.width + x * step];
+
+        map = new HeightmapMath(width, height, width, null);
+        map.gradientNorm = small;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        refresh();
+    }
+
+    /**
+     * Recomputes the preview once parameters stop changing.
+     */
+    public void schedule() {
+        if (map != null)
+            debounceTimer.restart();
+    }
+
+    private void refresh() {
+        double[] params = paramsSource.getPreviewParams();
+        if (map == null || params == null || params[1] < params[0])
+            return;
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        if (paramsSource.isCustomPreview())
+            map.calculateMasks(params[0], params[1], null, null, pixels,
+                    new int[]{(int) params[2], (int) params[3], (int) params[4], (int) params[5]});
+        else
+            map.calculateMasks(params[0], params[1], null, pixels, null, null);
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Insets insets = getInsets();
+        int width = getWidth() - insets.left - insets.right;
+        int height = getHeight() - insets.top - insets.bottom;
+        if (image == null) {
+            String text = "Press Go ! once";
+            FontMetrics metrics = g.getFontMetrics();
+            g.drawString(text, insets.left + (width - metrics.stringWidth(text)) / 2,
+                    insets.top + (height + metrics.getAscent()) / 2);
+            return;
+        }
+        double scale = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+        int w = (int) (image.getWidth() * scale), h = (int) (image.getHeight() * scale);
+        g.drawImage(image, insets.left + (width - w) / 2, insets.top + (height - h) / 2, w, h, null);
+    }
+}
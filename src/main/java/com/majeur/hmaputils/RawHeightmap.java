@@ -0,0 +1,267 @@
+package com.majeur.hmaputils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Headerless 16bit heightmaps as terrain tools export them (.r16, .raw): unsigned heights one after the other, row
+ * by row, little endian by default. There is nothing to inflate nor unfilter, files are mapped with
+ * {@link FileChannel#map} and heights copied straight into the short array {@link HeightmapMath} consumes.
+ * <p>
+ * Files are mapped by bands of rows, a mapping being limited to 2GB. Written files go through a channel rather than
+ * a mapping, which would keep them locked on some platforms until it is garbage collected.
+ */
+public class RawHeightmap {
+
+    public static final String EXTENSION = ".r16";
+
+    private static final String[] EXTENSIONS = {".r16", ".raw"};
+    private static final int MAPPED_BYTES = 64 << 20; // Mapped at once
+    private static final int PROGRESS_ROWS = 256; // Copied between progress updates
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    public final int width, height;
+    public final ByteOrder order;
+
+    public RawHeightmap(int width, int height, ByteOrder order) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid raw heightmap size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        this.order = order;
+    }
+
+    public static boolean isRaw(File file) {
+        return isRaw(file.getName());
+    }
+
+    public static boolean isRaw(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS)
+            if (name.endsWith(extension))
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns the layout of a raw heightmap file. Its size is inferred from file length when width or height is not
+     * given (zero), which only works for square heightmaps.
+     *
+     * @throws IOException If the file cannot be read, if its length does not match given size or if no square
+     *                     size matches it.
+     */
+    public static RawHeightmap of(File file, int width, int height, ByteOrder order) throws IOException {
+        long length = Files.size(file.toPath());
+        if (width > 0 && height > 0) {
+            if ((long) width * height * 2 != length)
+                throw new IOException(file.getName() + " is " + length + " bytes, a " + width + "x" + height
+                        + " raw heightmap is " + (long) width * height * 2 + ".");
+            return new RawHeightmap(width, height, order);
+        }
+        long side = (long) Math.sqrt(length / 2.0);
+        while (side * side * 2 > length)
+            side--;
+        while ((side + 1) * (side + 1) * 2 <= length)
+            side++;
+        if (side == 0 || side * side * 2 != length || side > Integer.MAX_VALUE)
+            throw new IOException(file.getName() + " is " + length + " bytes, which is not a square 16bit "
+                    + "heightmap. Give its size.");
+        return new RawHeightmap((int) side, (int) side, order);
+    }
+
+    /**
+     * Reads heights into a {@link BufferedImage#TYPE_USHORT_GRAY} image, the one a 16bit PNG heightmap decodes to.
+     *
+     * @param progress Where rows are counted, can be null.
+     * @throws java.util.concurrent.CancellationException If computation was cancelled.
+     */
+    public BufferedImage read(File file, RowProgress progress) throws IOException {
+        return read(file, progress, null);
+    }
+
+    /**
+     * Same as {@link #read(File, RowProgress)}, borrowing the image from pool.
+     *
+     * @param pool Where the image is borrowed from, null to allocate it. It is returned if reading fails.
+     */
+    public BufferedImage read(File file, RowProgress progress, BufferPool pool) throws IOException {
+        if ((long) width * height > Integer.MAX_VALUE)
+            throw new IOException(width + "x" + height + " is too large to be read at once.");
+        BufferedImage image = pool != null ? pool.image(width, height, BufferedImage.TYPE_USHORT_GRAY)
+                : new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+        short[] data = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+        try (Reader reader = open(file)) {
+            reader.readRows(data, 0, height, progress);
+        } catch (IOException | RuntimeException e) {
+            if (pool != null)
+                pool.release(image);
+            throw e;
+        }
+        return image;
+    }
+
+    public Reader open(File file) throws IOException {
+        return new Reader(file);
+    }
+
+    public Writer create(File file) throws IOException {
+        return new Writer(file);
+    }
+
+    /**
+     * Writes a {@link BufferedImage#TYPE_USHORT_GRAY} image as a raw heightmap.
+     *
+     * @param progress Where rows are counted, can be null. Writing stops with
+     *                 {@link java.util.concurrent.CancellationException} once it is cancelled, leaving a partial file.
+     * @return False if image type is not supported, nothing is written then.
+     */
+    public static boolean write(BufferedImage im, File file, ByteOrder order, RowProgress progress)
+            throws IOException {
+        Raster raster = im.getRaster();
+        if (im.getType() != BufferedImage.TYPE_USHORT_GRAY || !(raster.getSampleModel() instanceof ComponentSampleModel)
+                || raster.getParent() != null || raster.getMinX() != 0 || raster.getMinY() != 0)
+            return false;
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        short[] data = ((DataBufferUShort) dataBuffer).getData();
+        int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+        try (Writer writer = new RawHeightmap(im.getWidth(), im.getHeight(), order).create(file)) {
+            for (int i = 0; i < im.getHeight(); i++) {
+                if (progress != null)
+                    progress.checkCancelled();
+                writer.writeRow(data, dataBuffer.getOffset() + i * stride);
+                if (progress != null)
+                    progress.advance(1);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "RawHeightmap [" + width + "x" + height + " " + order + "]";
+    }
+
+    /**
+     * Reads rows one after the other, mapping the file a band of rows at a time.
+     */
+    public class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final int bandRows;
+        private ShortBuffer band;
+        private int bandEnd, row;
+
+        private Reader(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            if (channel.size() != (long) width * height * 2) {
+                channel.close();
+                throw new IOException(file.getName() + " is not a " + width + "x" + height + " raw heightmap.");
+            }
+            bandRows = Math.max(1, MAPPED_BYTES / (width * 2));
+        }
+
+        public void readRow(short[] dst, int off) throws IOException {
+            readRows(dst, off, 1, null);
+        }
+
+        /**
+         * Reads next rows into dst, one after the other from off.
+         *
+         * @param progress Where rows are counted, can be null.
+         * @throws java.util.concurrent.CancellationException If computation was cancelled.
+         */
+        public void readRows(short[] dst, int off, int rows, RowProgress progress) throws IOException {
+            if (row + rows > height)
+                throw new IOException("Only " + (height - row) + " rows left out of " + height + ".");
+            while (rows > 0) {
+                if (progress != null)
+                    progress.checkCancelled();
+                if (band == null || row == bandEnd)
+                    map();
+                int n = Math.min(Math.min(rows, bandEnd - row), PROGRESS_ROWS);
+                band.get(dst, off, n * width);
+                off += n * width;
+                row += n;
+                rows -= n;
+                if (progress != null)
+                    progress.advance(n);
+            }
+        }
+
+        private void map() throws IOException {
+            bandEnd = Math.min(height, row + bandRows);
+            band = channel.map(FileChannel.MapMode.READ_ONLY, (long) row * width * 2, (long) (bandEnd - row) * width * 2)
+                    .order(order).asShortBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            band = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes rows one after the other, gathering them in a direct buffer flushed to the file channel.
+     */
+    public class Writer implements RowWriter {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private int row;
+
+        private Writer(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_BYTES, width * 2)).order(order);
+        }
+
+        @Override
+        public void writeRow(short[] src, int off) throws IOException {
+            if (row == height)
+                throw new IOException("Every " + height + " rows were written.");
+            if (buffer.remaining() < width * 2)
+                flush();
+            buffer.asShortBuffer().put(src, off, width);
+            buffer.position(buffer.position() + width * 2);
+            row++;
+        }
+
+        @Override
+        public void writeRow(int[] src, int off) {
+            throw new IllegalStateException("Raw heightmaps only have shorts rows");
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (row == height)
+                    flush();
+            } finally {
+                channel.close();
+            }
+            if (row != height)
+                throw new IOException("Only " + row + " rows out of " + height + " were written.");
+        }
+    }
+}
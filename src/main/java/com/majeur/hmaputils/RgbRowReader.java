@@ -0,0 +1,184 @@
+package com.majeur.hmaputils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads rows of an image as the colors {@link BufferedImage#getRGB(int, int)} would give, accessing
+ * the backing buffer directly for common layouts instead of going through the color model for
+ * each pixel. Readers are stateless and can be shared between threads.
+ */
+public abstract class RgbRowReader {
+
+    final int width;
+
+    RgbRowReader(int width) {
+        this.width = width;
+    }
+
+    /**
+     * Creates the fastest reader supporting given image.
+     */
+    public static RgbRowReader forImage(BufferedImage im) {
+        Raster raster = im.getRaster();
+        ColorModel cm = im.getColorModel();
+        DataBuffer buffer = raster.getDataBuffer();
+
+        if (buffer instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel
+                && cm instanceof ComponentColorModel && cm.getColorSpace().isCS_sRGB()
+                && !cm.isAlphaPremultiplied() && isEightBits(cm) && raster.getNumBands() >= 3) {
+            return new InterleavedBytes(im); // TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR and alike
+        }
+        if (buffer instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && cm instanceof DirectColorModel && !cm.isAlphaPremultiplied() && isStandardMasks((DirectColorModel) cm)) {
+            return new PackedInts(im); // TYPE_INT_RGB, TYPE_INT_ARGB
+        }
+        if (raster.getNumBands() == 1 && raster.getSampleModel().getSampleSize(0) <= 16
+                && (cm instanceof IndexColorModel || cm instanceof ComponentColorModel)) {
+            return new LookupTable(im); // Indexed and grayscale
+        }
+        return new Fallback(im);
+    }
+
+    private static boolean isEightBits(ColorModel cm) {
+        for (int size : cm.getComponentSize())
+            if (size != 8) return false;
+        return true;
+    }
+
+    private static boolean isStandardMasks(DirectColorModel cm) {
+        return cm.getRedMask() == 0x00ff0000 && cm.getGreenMask() == 0x0000ff00 && cm.getBlueMask() == 0x000000ff
+                && (cm.getAlphaMask() == 0 || cm.getAlphaMask() == 0xff000000);
+    }
+
+    /**
+     * Reads colors of rows [y, y + rows) into dst, one row after the other.
+     */
+    public abstract void readRows(int y, int rows, int[] dst, int dstOff);
+
+    private static class InterleavedBytes extends RgbRowReader {
+
+        private final byte[] data;
+        private final int base, scanlineStride, pixelStride;
+        private final int red, green, blue, alpha;
+
+        InterleavedBytes(BufferedImage im) {
+            super(im.getWidth());
+            Raster raster = im.getRaster();
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            int[] offsets = sm.getBandOffsets();
+            int[] banks = sm.getBankIndices();
+            int bank = banks[0];
+            for (int b : banks)
+                if (b != bank) throw new IllegalArgumentException("Banded rasters are not supported.");
+            data = buffer.getData(bank);
+            scanlineStride = sm.getScanlineStride();
+            pixelStride = sm.getPixelStride();
+            base = buffer.getOffsets()[bank]
+                    - raster.getSampleModelTranslateY() * scanlineStride
+                    - raster.getSampleModelTranslateX() * pixelStride;
+            red = offsets[0];
+            green = offsets[1];
+            blue = offsets[2];
+            alpha = im.getColorModel().hasAlpha() ? offsets[3] : -1;
+        }
+
+        @Override
+        public void readRows(int y, int rows, int[] dst, int dstOff) {
+            for (int r = 0; r < rows; r++) {
+                int p = base + (y + r) * scanlineStride;
+                int d = dstOff + r * width;
+                for (int x = 0; x < width; x++, p += pixelStride) {
+                    int a = alpha >= 0 ? data[p + alpha] & 0xff : 0xff;
+                    dst[d + x] = a << 24 | (data[p + red] & 0xff) << 16 | (data[p + green] & 0xff) << 8
+                            | data[p + blue] & 0xff;
+                }
+            }
+        }
+    }
+
+    private static class PackedInts extends RgbRowReader {
+
+        private final int[] data;
+        private final int base, scanlineStride, opaque;
+
+        PackedInts(BufferedImage im) {
+            super(im.getWidth());
+            Raster raster = im.getRaster();
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            data = buffer.getData();
+            scanlineStride = sm.getScanlineStride();
+            base = buffer.getOffset()
+                    - raster.getSampleModelTranslateY() * scanlineStride
+                    - raster.getSampleModelTranslateX();
+            opaque = im.getColorModel().hasAlpha() ? 0 : 0xff000000;
+        }
+
+        @Override
+        public void readRows(int y, int rows, int[] dst, int dstOff) {
+            for (int r = 0; r < rows; r++) {
+                int p = base + (y + r) * scanlineStride;
+                int d = dstOff + r * width;
+                for (int x = 0; x < width; x++)
+                    dst[d + x] = data[p + x] | opaque;
+            }
+        }
+    }
+
+    /**
+     * Single sample images, colors of every possible sample are computed once by the color model.
+     */
+    private static class LookupTable extends RgbRowReader {
+
+        private final Raster raster;
+        private final int[] colors;
+
+        LookupTable(BufferedImage im) {
+            super(im.getWidth());
+            raster = im.getRaster();
+            ColorModel cm = im.getColorModel();
+            colors = new int[1 << raster.getSampleModel().getSampleSize(0)];
+            Object pixel = raster.getDataElements(0, 0, null);
+            for (int v = 0; v < colors.length; v++) {
+                if (pixel instanceof byte[]) ((byte[]) pixel)[0] = (byte) v;
+                else if (pixel instanceof short[]) ((short[]) pixel)[0] = (short) v;
+                else ((int[]) pixel)[0] = v;
+                colors[v] = cm.getRGB(pixel);
+            }
+        }
+
+        @Override
+        public void readRows(int y, int rows, int[] dst, int dstOff) {
+            int[] samples = dstOff == 0 ? dst : new int[rows * width];
+            raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, rows, 0, samples);
+            for (int i = 0; i < rows * width; i++)
+                dst[dstOff + i] = colors[samples[i]];
+        }
+    }
+
+    private static class Fallback extends RgbRowReader {
+
+        private final BufferedImage im;
+
+        Fallback(BufferedImage im) {
+            super(im.getWidth());
+            this.im = im;
+        }
+
+        @Override
+        public void readRows(int y, int rows, int[] dst, int dstOff) {
+            im.getRGB(0, y, width, rows, dst, dstOff, width);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.majeur.hmaputils;
+
+/**
+ * Per-pixel row kernels of {@link HeightmapMath}. This class is the scalar reference implementation,
+ * {@code VectorRowKernels} (src/vector) overrides kernels with the incubating Vector API and gives the exact
+ * same results. It is only compiled with JDK 16 or later and only works when the JVM runs with
+ * {@code --add-modules jdk.incubator.vector}, so it is loaded reflectively.
+ */
+public class RowKernels {
+
+    /**
+     * Set to false to use scalar kernels even when the Vector API is available.
+     */
+    public static final String VECTOR_PROPERTY = "hmaputils.vector";
+
+    public static final RowKernels SCALAR = new RowKernels();
+
+    private static final String VECTOR_CLASS = "com.majeur.hmaputils.VectorRowKernels";
+
+    private static RowKernels defaultKernels;
+
+    protected RowKernels() {
+    }
+
+    /**
+     * Returns vector kernels if available and not disabled by {@value #VECTOR_PROPERTY} system property,
+     * scalar ones otherwise.
+     */
+    public static synchronized RowKernels getDefault() {
+        if (defaultKernels == null) {
+            RowKernels vector = Boolean.parseBoolean(System.getProperty(VECTOR_PROPERTY, "true")) ? vector() : null;
+            defaultKernels = vector != null ? vector : SCALAR;
+        }
+        return defaultKernels;
+    }
+
+    /**
+     * Returns Vector API kernels, or null if they were not compiled or if the module is missing.
+     */
+    public static RowKernels vector() {
+        try {
+            return (RowKernels) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * RG encoding of a row, first pixel is left untouched.
+     */
+    public void rgRow(short[] src, int srcOff, int[] dst, int dstOff, int width) {
+        for (int j = 1; j < width; ++j) {
+
+            dst[dstOff + j] = (src[srcOff + j] & 0xffff) << 8;
+        }
+    }
+
+    /**
+     * Gradient norm of a row from exact integer differences, see {@link HeightmapMath#setIntegerGradients(boolean)}.
+     *
+     * @param scale Factor turning the square root of the doubled squared norm into the output range.
+     */
+    public void integerNormRow(short[] src, int prev, int row, int next, boolean edgeRow, int width,
+                               double scale, short[] dst, int dstOff) {
+        integerNormRange(src, prev, row, next, edgeRow, width, 0, width, scale, dst, dstOff);
+    }
+
+    /**
+     * {@link #integerNormRow} restricted to columns [from, to).
+     */
+    protected static void integerNormRange(short[] src, int prev, int row, int next, boolean edgeRow, int width,
+                                           int from, int to, double scale, short[] dst, int dstOff) {
+        int rowFactor = edgeRow ? 2 : 1;
+        for (int j = from; j < to; ++j) {
+            int left = j > 0 ? j - 1 : 0;
+            int right = j < width - 1 ? j + 1 : width - 1;
+            int colFactor = j == 0 || j == width - 1 ? 2 : 1;
+
+            long dx = ((src[next + j] & 0xffff) - (src[prev + j] & 0xffff)) * rowFactor;
+            long dy = ((src[row + right] & 0xffff) - (src[row + left] & 0xffff)) * colFactor;
+
+            dst[dstOff + j] = (short) Math.min(Math.sqrt(dx * dx + dy * dy) * scale, HeightmapMath.USHORT_MAX_VALUE);
+        }
+    }
+
+    /**
+     * RGB mask colors of a row of norms: green below low, red below up, blue above.
+     */
+    public void rgbMaskRow(short[] norm, int normOff, int[] dst, int dstOff, int width, int low, int up) {
+        for (int x = 0; x < width; ++x) {
+
+            int val = norm[normOff + x] & 0xffff; // get unsigned short as int
+
+            if (val < low)
+                dst[dstOff + x] = 0x0000ff00; // green
+            else if (val < up)
+                dst[dstOff + x] = 0x00ff0000; // red
+            else
+                dst[dstOff + x] = 0x000000ff; // blue
+        }
+    }
+
+    /**
+     * Replaces RGB mask colors of a row with custom ones, anything else becomes black.
+     */
+    public void alterRgbMaskRow(int[] src, int srcOff, int[] dst, int dstOff, int width,
+                                int red, int green, int blue, int black) {
+        for (int x = 0; x < width; ++x) {
+
+            int val = src[srcOff + x];
+
+            if (val == 0x00ff0000) {
+                dst[dstOff + x] = red;
+            } else if (val == 0x0000ff00) {
+                dst[dstOff + x] = green;
+            } else if (val == 0x000000ff) {
+                dst[dstOff + x] = blue;
+            } else {
+                dst[dstOff + x] = black;
+            }
+
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.majeur.hmaputils;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of a computation in processed rows, summed over every stage, and its cancellation flag.
+ * <p>
+ * Kernels report rows as they go with {@link #advance(int)}, from any thread. Once {@link #cancel()} was called
+ * it throws {@link CancellationException}, so computations stop within a row on every thread. The listener is
+ * notified at most every {@value #NOTIFY_INTERVAL} ms, plus once on {@link #complete()}, with values that never
+ * go backwards.
+ */
+public class RowProgress {
+
+    public static final long NOTIFY_INTERVAL = 200; // ms
+
+    private final MapsComputation.ProgressListener listener;
+    private final LongAdder done = new LongAdder();
+    private final AtomicLong nextNotify = new AtomicLong(System.nanoTime());
+    private volatile long total;
+    private volatile boolean cancelled;
+    private int notified; // Last value given to listener
+
+    /**
+     * @param listener Notified of progress, can be null.
+     */
+    public RowProgress(MapsComputation.ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the number of rows all stages will process, progress is bounded to it.
+     */
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getDone() {
+        return Math.min(done.sum(), total);
+    }
+
+    /**
+     * Makes every following {@link #advance(int)} or {@link #checkCancelled()} call throw.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException If computation was cancelled.
+     */
+    public void checkCancelled() {
+        if (cancelled)
+            throw new CancellationException("Cancelled.");
+    }
+
+    /**
+     * Counts processed rows, or rows of a stage that turned out not to be needed.
+     *
+     * @throws CancellationException If computation was cancelled.
+     */
+    public void advance(int rows) {
+        checkCancelled();
+        done.add(rows);
+        if (listener == null)
+            return;
+        long now = System.nanoTime();
+        long next = nextNotify.get();
+        if (now - next >= 0 && nextNotify.compareAndSet(next, now + TimeUnit.MILLISECONDS.toNanos(NOTIFY_INTERVAL)))
+            notifyListener();
+    }
+
+    /**
+     * Counts every remaining row and notifies the listener.
+     */
+    public void complete() {
+        done.add(Math.max(0, total - done.sum()));
+        if (listener != null)
+            notifyListener();
+    }
+
+    private synchronized void notifyListener() {
+        int progress = (int) getDone();
+        if (progress <= notified)
+            return;
+        notified = progress;
+        listener.onProgress(progress, (int) total);
+    }
+}
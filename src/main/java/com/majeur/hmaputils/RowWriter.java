@@ -0,0 +1,21 @@
+package com.majeur.hmaputils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * File a map is written to one row at a time, as a PNG with {@link PngRowWriter} or as raw heights with
+ * {@link RawHeightmap.Writer}. Closing a writer before every row was written fails.
+ */
+public interface RowWriter extends Closeable {
+
+    /**
+     * Writes next row of a 16bit gray map.
+     */
+    void writeRow(short[] src, int off) throws IOException;
+
+    /**
+     * Writes next row of a color map.
+     */
+    void writeRow(int[] src, int off) throws IOException;
+}
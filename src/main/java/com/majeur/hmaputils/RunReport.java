@@ -0,0 +1,185 @@
+package com.majeur.hmaputils;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures stages of a {@link MapsComputation}: wall time, bytes allocated, megapixels per second and size
+ * of written files. Each stage is emitted as a {@link StageEvent} and kept for the JSON report written next to
+ * outputs.
+ * <p>
+ * Allocations are counted over all threads, so stages running at the same time, such as an image write and
+ * the next kernel, both count what the other allocated.
+ */
+public class RunReport {
+
+    public class Stage {
+
+        private final String name;
+        private long pixels;
+        private final String thread = Thread.currentThread().getName();
+        private final long startNanos = System.nanoTime();
+        private final long startAllocated = allocatedBytes();
+        private final StageEvent event = new StageEvent();
+        private final Map<String, Long> outputs = new LinkedHashMap<>();
+        private long wallNanos, allocated;
+
+        private Stage(String name) {
+            this.name = name;
+            event.begin();
+        }
+
+        /**
+         * Sets the number of pixels processed by this stage, for throughput.
+         */
+        public Stage pixels(long pixels) {
+            this.pixels = pixels;
+            return this;
+        }
+
+        /**
+         * Counts a file written by this stage, once it is complete.
+         */
+        public Stage output(File file) {
+            outputs.put(file.getName(), file.length());
+            return this;
+        }
+
+        public void end() {
+            wallNanos = System.nanoTime() - startNanos;
+            long endAllocated = allocatedBytes();
+            allocated = startAllocated < 0 || endAllocated < 0 ? -1 : Math.max(0, endAllocated - startAllocated);
+            event.end();
+            if (event.shouldCommit()) {
+                event.source = source;
+                event.stage = name;
+                event.megapixels = pixels / 1e6;
+                event.megapixelsPerSecond = getMegapixelsPerSecond();
+                event.allocated = allocated;
+                event.outputs = String.join(",", outputs.keySet());
+                event.outputSize = getOutputSize();
+                event.commit();
+            }
+            synchronized (RunReport.this) {
+                stages.add(this);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getWallMillis() {
+            return wallNanos / 1e6;
+        }
+
+        public long getAllocated() {
+            return allocated;
+        }
+
+        public double getMegapixelsPerSecond() {
+            return wallNanos > 0 ? pixels / 1e6 / (wallNanos / 1e9) : 0;
+        }
+
+        public long getOutputSize() {
+            long size = 0;
+            for (long bytes : outputs.values())
+                size += bytes;
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("stage", name);
+            json.put("thread", thread);
+            json.put("wallMillis", getWallMillis());
+            json.put("allocatedBytes", allocated);
+            json.put("megapixels", pixels / 1e6);
+            json.put("megapixelsPerSecond", getMegapixelsPerSecond());
+            JSONObject files = new JSONObject();
+            files.putAll(outputs);
+            json.put("outputs", files);
+            json.put("outputBytes", getOutputSize());
+            return json;
+        }
+    }
+
+    public static final String FILE_NAME = "maps_report.json";
+
+    private final String source;
+    private final long startNanos = System.nanoTime();
+    private final List<Stage> stages = new ArrayList<>();
+    private final Map<String, Object> properties = new LinkedHashMap<>();
+
+    public RunReport(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Starts measuring a stage, which must then be ended from the same thread.
+     */
+    public Stage start(String name) {
+        return new Stage(name);
+    }
+
+    /**
+     * Adds a run-level entry to the report, such as image size or settings.
+     */
+    public synchronized void put(String key, Object value) {
+        properties.put(key, value);
+    }
+
+    /**
+     * Returns ended stages, in end order.
+     */
+    public synchronized List<Stage> getStages() {
+        return new ArrayList<>(stages);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("source", source);
+        json.putAll(properties);
+        json.put("wallMillis", (System.nanoTime() - startNanos) / 1e6);
+        JSONArray array = new JSONArray();
+        for (Stage stage : stages)
+            array.add(stage.toJson());
+        json.put("stages", array);
+        return json;
+    }
+
+    public void write(File file) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(toJson().toJSONString());
+        }
+    }
+
+    /**
+     * Bytes allocated so far by live threads, -1 if the JVM does not measure it.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+            return -1;
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            if (bytes > 0)
+                total += bytes;
+        return total;
+    }
+}
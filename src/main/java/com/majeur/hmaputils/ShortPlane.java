@@ -0,0 +1,124 @@
+package com.majeur.hmaputils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Plane of 16bit samples held outside of Java arrays, addressed by rows so that it can go beyond 2^31 samples.
+ * Samples are stored in chunks of whole rows, each one a {@link ByteBuffer} of at most {@value #CHUNK_BYTES} bytes,
+ * either on heap, direct or mapped from a scratch file. Mapped planes barely use the heap: the OS page cache keeps
+ * the rows being worked on and writes the others back to disk when memory runs short.
+ * <p>
+ * Row kernels work on int-indexed arrays, they are given bands of rows copied in and out with {@link #getRow} and
+ * {@link #setRow}. Chunks of byte buffers are enough for that, kernels never address the plane as a whole, which is
+ * also why it is not a memory segment. Rows can be accessed from several threads at once.
+ */
+public class ShortPlane implements Closeable {
+
+    public enum Storage {
+
+        /**
+         * Heap byte buffers, for planes that fit in the heap.
+         */
+        HEAP,
+
+        /**
+         * Direct byte buffers, outside of the heap but still in memory.
+         */
+        DIRECT,
+
+        /**
+         * Scratch file mapped in memory, deleted once the plane is closed.
+         */
+        MAPPED
+    }
+
+    private static final int CHUNK_BYTES = 1 << 30;
+
+    public final int width, height;
+    private final int chunkRows;
+    private final ShortBuffer[] chunks;
+    private final FileChannel channel; // Of the scratch file, null unless mapped
+
+    /**
+     * @param scratchDir Directory of the scratch file of {@link Storage#MAPPED} planes, the default temporary
+     *                   directory if null.
+     */
+    public ShortPlane(int width, int height, Storage storage, File scratchDir) throws IOException {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid plane size " + width + "x" + height);
+        if (width > CHUNK_BYTES / 2)
+            throw new IllegalArgumentException("Plane rows cannot be wider than " + CHUNK_BYTES / 2 + " samples.");
+        this.width = width;
+        this.height = height;
+        chunkRows = CHUNK_BYTES / (width * 2);
+        chunks = new ShortBuffer[(height + chunkRows - 1) / chunkRows];
+
+        if (storage == Storage.MAPPED) {
+            Path file = scratchDir != null ? Files.createTempFile(scratchDir.toPath(), "hmaputils-", ".plane")
+                    : Files.createTempFile("hmaputils-", ".plane");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } else {
+            channel = null;
+        }
+        try {
+            for (int c = 0; c < chunks.length; c++) {
+                int rows = Math.min(chunkRows, height - c * chunkRows);
+                int bytes = rows * width * 2;
+                ByteBuffer buffer;
+                if (storage == Storage.MAPPED)
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, (long) c * chunkRows * width * 2, bytes);
+                else if (storage == Storage.DIRECT)
+                    buffer = ByteBuffer.allocateDirect(bytes);
+                else
+                    buffer = ByteBuffer.allocate(bytes);
+                chunks[c] = buffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+            }
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies row y into dst from off.
+     */
+    public void getRow(int y, short[] dst, int off) {
+        ShortBuffer chunk = chunks[y / chunkRows].duplicate();
+        chunk.position(y % chunkRows * width);
+        chunk.get(dst, off, width);
+    }
+
+    /**
+     * Copies src from off into row y.
+     */
+    public void setRow(int y, short[] src, int off) {
+        ShortBuffer chunk = chunks[y / chunkRows].duplicate();
+        chunk.position(y % chunkRows * width);
+        chunk.put(src, off, width);
+    }
+
+    /**
+     * Deletes the scratch file of mapped planes. Its pages stay mapped until the plane is garbage collected, on
+     * platforms that cannot delete mapped files the file goes away once they are unmapped.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ShortPlane [" + width + "x" + height + "]";
+    }
+}
@@ -0,0 +1,46 @@
+package com.majeur.hmaputils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event of a {@link RunReport} stage. Only recorded when a recording is running, for
+ * instance with {@code java -XX:StartFlightRecording=filename=maps.jfr ...}, it costs nothing otherwise.
+ * Event duration is the stage wall time.
+ */
+@Name("com.majeur.hmaputils.Stage")
+@Label("Maps Computation Stage")
+@Category("Heightmap Utilities")
+@Description("Decoding, kernel or image write of a maps computation")
+@StackTrace(false)
+public class StageEvent extends Event {
+
+    @Label("Source")
+    String source;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Megapixels")
+    double megapixels;
+
+    @Label("Megapixels per Second")
+    double megapixelsPerSecond;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by all threads during the stage, -1 if the JVM does not measure it")
+    @DataAmount
+    long allocated;
+
+    @Label("Outputs")
+    String outputs;
+
+    @Label("Output Size")
+    @DataAmount
+    long outputSize;
+}
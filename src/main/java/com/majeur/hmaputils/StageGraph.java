@@ -0,0 +1,239 @@
+package com.majeur.hmaputils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stages of a computation as a dependency graph. Each stage starts as soon as the stages it depends on are done,
+ * so that independent ones, such as the RG image and the gradient norm, run at the same time.
+ * <p>
+ * Stages produce and use {@link Buffer}s. A buffer is counted from the start of the stage producing it until the
+ * last stage using it is done, its release action then drops it. Buffers without release action are kept, they stay
+ * counted until the run ends. Stages only start while buffers counted so far
+ * and the ones they produce fit in the memory budget, or when nothing else runs so that a stage larger than the
+ * budget still runs, alone. Ready stages start in the order they were added.
+ */
+public class StageGraph {
+
+    public interface Work {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * Plane or image passed from a stage to the ones using it.
+     */
+    public static class Buffer {
+
+        private final String name;
+        private final long bytes;
+        private final Runnable release;
+        private Stage producer;
+        private int users, pendingUsers;
+
+        private Buffer(String name, long bytes, Runnable release) {
+            this.name = name;
+            this.bytes = bytes;
+            this.release = release;
+        }
+
+        @Override
+        public String toString() {
+            return "Buffer [" + name + ", " + bytes + " bytes]";
+        }
+    }
+
+    public static class Stage {
+
+        private final String name;
+        private final long rows;
+        private final Work work;
+        private final List<Stage> dependencies = new ArrayList<>();
+        private final List<Stage> dependents = new ArrayList<>();
+        private final List<Buffer> produced = new ArrayList<>();
+        private final List<Buffer> used = new ArrayList<>();
+        private int pendingDependencies;
+        private boolean started;
+
+        private Stage(String name, long rows, Work work) {
+            this.name = name;
+            this.rows = rows;
+            this.work = work;
+        }
+
+        public Stage produces(Buffer buffer) {
+            if (buffer.producer != null)
+                throw new IllegalStateException(buffer + " already has a producer.");
+            buffer.producer = this;
+            produced.add(buffer);
+            return this;
+        }
+
+        /**
+         * Declares a buffer this stage reads, the stage producing it must be one of its dependencies.
+         */
+        public Stage uses(Buffer buffer) {
+            if (!dependencies.contains(buffer.producer))
+                throw new IllegalStateException(name + " does not depend on the producer of " + buffer);
+            buffer.users++;
+            used.add(buffer);
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return "Stage [" + name + "]";
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private long heldBytes; // Of buffers whose producer started and users are not all done
+    private int running, remaining;
+    private Throwable failure;
+
+    /**
+     * Adds a stage, after the ones it depends on which makes cycles impossible.
+     *
+     * @param rows         Rows the stage counts in progress, see {@link #getRows()}.
+     * @param dependencies Stages to wait for, null ones are ignored.
+     */
+    public Stage add(String name, long rows, Work work, Stage... dependencies) {
+        Stage stage = new Stage(name, rows, work);
+        for (Stage dependency : dependencies) {
+            if (dependency == null)
+                continue;
+            if (!stages.contains(dependency))
+                throw new IllegalArgumentException(dependency + " is not in this graph.");
+            stage.dependencies.add(dependency);
+            dependency.dependents.add(stage);
+        }
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * @param release Drops the buffer once it is no longer used, null for buffers that are kept past the run.
+     */
+    public Buffer buffer(String name, long bytes, Runnable release) {
+        return new Buffer(name, bytes, release);
+    }
+
+    /**
+     * Returns the rows stages count in progress all together, known before any of them runs.
+     */
+    public long getRows() {
+        long rows = 0;
+        for (Stage stage : stages)
+            rows += stage.rows;
+        return rows;
+    }
+
+    /**
+     * Runs every stage on at most threads threads and returns once they are all done. Once a stage fails, stages
+     * that did not start yet are skipped and running ones are waited for, buffers they would have used are then
+     * released.
+     *
+     * @throws Exception First failure of a stage, such as a {@link java.util.concurrent.CancellationException}.
+     */
+    public synchronized void run(int threads, long memoryBudget) throws Exception {
+        for (Stage stage : stages) {
+            stage.pendingDependencies = stage.dependencies.size();
+            for (Buffer buffer : stage.produced)
+                buffer.pendingUsers = buffer.users;
+        }
+        remaining = stages.size();
+        heldBytes = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "hmaputils-stage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            schedule(executor, threads, memoryBudget);
+            while (running > 0 || (failure == null && remaining > 0))
+                wait();
+        } finally {
+            executor.shutdown();
+        }
+        if (failure != null)
+            releaseSkipped();
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw (Exception) failure;
+    }
+
+    private void schedule(ExecutorService executor, int threads, long memoryBudget) {
+        for (Stage stage : stages) {
+            if (failure != null || running >= threads)
+                return;
+            if (stage.started || stage.pendingDependencies > 0)
+                continue;
+            long bytes = 0;
+            for (Buffer buffer : stage.produced)
+                bytes += buffer.bytes;
+            if (running > 0 && heldBytes + bytes > memoryBudget)
+                continue;
+            stage.started = true;
+            running++;
+            heldBytes += bytes;
+            executor.execute(() -> {
+                Throwable thrown = null;
+                try {
+                    stage.work.run();
+                } catch (Throwable t) {
+                    thrown = t;
+                }
+                synchronized (StageGraph.this) {
+                    if (thrown != null && failure == null)
+                        failure = thrown;
+                    finish(stage);
+                    schedule(executor, threads, memoryBudget);
+                    StageGraph.this.notifyAll();
+                }
+            });
+        }
+    }
+
+    private void finish(Stage stage) {
+        running--;
+        remaining--;
+        for (Stage dependent : stage.dependents)
+            dependent.pendingDependencies--;
+        for (Buffer buffer : stage.used)
+            if (--buffer.pendingUsers == 0)
+                release(buffer);
+        for (Buffer buffer : stage.produced)
+            if (buffer.users == 0)
+                release(buffer);
+    }
+
+    private void release(Buffer buffer) {
+        if (buffer.release == null)
+            return; // Kept, still in memory
+        heldBytes -= buffer.bytes;
+        buffer.release.run();
+    }
+
+    /**
+     * Releases buffers of started stages that skipped stages were still to use, the others are released already or
+     * were never produced.
+     */
+    private void releaseSkipped() {
+        for (Stage stage : stages) {
+            if (!stage.started)
+                continue;
+            for (Buffer buffer : stage.produced)
+                if (buffer.pendingUsers > 0) {
+                    buffer.pendingUsers = 0;
+                    release(buffer);
+                }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.majeur.hmaputils;
+
+import java.util.Arrays;
+
+/**
+ * Separable {@link GradientOperator}: heights are differentiated along one direction and smoothed along the other
+ * one by integer kernels, so that the gradient across rows is derivative (rows) x smoothing (columns) and the one
+ * along rows is smoothing (rows) x derivative (columns). Both 2D stencils are applied at once, skipping zero weights.
+ * <p>
+ * Border heights are repeated beyond the map, except for the bare 3-point central difference which doubles border
+ * differences instead, turning them into the one-sided differences {@link HeightmapMath} always used.
+ */
+public class StencilOperator implements GradientOperator {
+
+    private static final int[] BINOMIAL = {1, 2, 1};
+    private static final int[] CENTRAL = {-1, 0, 1};
+
+    private final String name;
+    private final int[] derivative, smoothing;
+    private final int radius;
+    private final int gain;
+    private final boolean oneSided;
+    // Non-zero taps of both stencils: row in the rows window, column relative to the pixel and weight
+    private final int[] xRows, xColumns, xWeights;
+    private final int[] yRows, yColumns, yWeights;
+
+    /**
+     * @param derivative Odd length derivative kernel, from the lowest to the highest row or column.
+     * @param smoothing  Odd length smoothing kernel.
+     */
+    public StencilOperator(String name, int[] derivative, int[] smoothing) {
+        if (derivative.length % 2 == 0 || smoothing.length % 2 == 0)
+            throw new IllegalArgumentException("Kernels must have an odd length.");
+        this.name = name;
+        this.derivative = derivative.clone();
+        this.smoothing = smoothing.clone();
+        radius = Math.max(derivative.length, smoothing.length) / 2;
+        if (radius > MAX_RADIUS)
+            throw new IllegalArgumentException("Kernels cannot reach more than " + MAX_RADIUS + " pixels away.");
+        oneSided = Arrays.equals(derivative, CENTRAL) && smoothing.length == 1 && smoothing[0] == 1;
+        int slope = 0, sum = 0;
+        for (int k = 0; k < derivative.length; k++)
+            slope += derivative[k] * (k - derivative.length / 2);
+        for (int weight : smoothing)
+            sum += weight;
+        gain = slope * sum;
+
+        int[][] x = taps(pad(derivative), pad(smoothing));
+        int[][] y = taps(pad(smoothing), pad(derivative));
+        xRows = x[0];
+        xColumns = x[1];
+        xWeights = x[2];
+        yRows = y[0];
+        yColumns = y[1];
+        yWeights = y[2];
+    }
+
+    /**
+     * Returns this operator applied to heights smoothed by a 3x3 binomial filter, both being fused into a stencil
+     * one pixel larger on each side.
+     */
+    public StencilOperator smoothed() {
+        return new StencilOperator(name + "-smoothed", convolve(derivative, BINOMIAL), convolve(smoothing, BINOMIAL));
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getRadius() {
+        return radius;
+    }
+
+    @Override
+    public double getGain() {
+        return gain;
+    }
+
+    @Override
+    public void gradients(short[] src, int[] rows, int width, int from, int to, int[] dx, int[] dy) {
+        int rowFactor = oneSided && (rows[0] == rows[1] || rows[2] == rows[1]) ? 2 : 1;
+        int interiorFrom = Math.min(to, Math.max(from, radius));
+        int interiorTo = Math.max(interiorFrom, Math.min(to, width - radius));
+        borderGradients(src, rows, width, from, interiorFrom, rowFactor, dx, dy);
+        // Tap by tap over the whole span rather than pixel by pixel, plain loops the JIT unrolls and vectorizes
+        interiorGradients(src, rows, interiorFrom, interiorTo, xRows, xColumns, xWeights, dx);
+        interiorGradients(src, rows, interiorFrom, interiorTo, yRows, yColumns, yWeights, dy);
+        if (rowFactor != 1)
+            for (int j = interiorFrom; j < interiorTo; ++j)
+                dx[j] *= rowFactor;
+        borderGradients(src, rows, width, interiorTo, to, rowFactor, dx, dy);
+    }
+
+    private static void interiorGradients(short[] src, int[] rows, int from, int to,
+                                          int[] tapRows, int[] tapColumns, int[] tapWeights, int[] dst) {
+        Arrays.fill(dst, from, to, 0);
+        for (int t = 0; t < tapWeights.length; t++) {
+            int offset = rows[tapRows[t]] + tapColumns[t], weight = tapWeights[t];
+            for (int j = from; j < to; ++j)
+                dst[j] += weight * (src[offset + j] & 0xffff);
+        }
+    }
+
+    /**
+     * Gradients of columns whose stencil reaches beyond the left or the right border.
+     */
+    private void borderGradients(short[] src, int[] rows, int width, int from, int to, int rowFactor,
+                                 int[] dx, int[] dy) {
+        for (int j = from; j < to; ++j) {
+            int gx = 0, gy = 0;
+            for (int t = 0; t < xWeights.length; t++)
+                gx += xWeights[t] * (src[rows[xRows[t]] + clamp(j + xColumns[t], width)] & 0xffff);
+            for (int t = 0; t < yWeights.length; t++)
+                gy += yWeights[t] * (src[rows[yRows[t]] + clamp(j + yColumns[t], width)] & 0xffff);
+            int colFactor = oneSided && (j == 0 || j == width - 1) ? 2 : 1;
+            dx[j] = gx * rowFactor;
+            dy[j] = gy * colFactor;
+        }
+    }
+
+    private static int clamp(int column, int width) {
+        return column < 0 ? 0 : column < width ? column : width - 1;
+    }
+
+    /**
+     * Centers kernel in 2 * radius + 1 weights.
+     */
+    private int[] pad(int[] kernel) {
+        int[] padded = new int[2 * radius + 1];
+        System.arraycopy(kernel, 0, padded, radius - kernel.length / 2, kernel.length);
+        return padded;
+    }
+
+    /**
+     * Returns rows, columns and weights of non-zero taps of the rows x columns stencil.
+     */
+    private int[][] taps(int[] rows, int[] columns) {
+        int count = 0;
+        for (int r : rows)
+            for (int c : columns)
+                if (r * c != 0)
+                    count++;
+        int[][] taps = new int[3][count];
+        int t = 0;
+        for (int k = 0; k < rows.length; k++) {
+            for (int m = 0; m < columns.length; m++) {
+                if (rows[k] * columns[m] == 0)
+                    continue;
+                taps[0][t] = k;
+                taps[1][t] = m - radius;
+                taps[2][t] = rows[k] * columns[m];
+                t++;
+            }
+        }
+        return taps;
+    }
+
+    private static int[] convolve(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length - 1];
+        for (int i = 0; i < a.length; i++)
+            for (int j = 0; j < b.length; j++)
+                result[i + j] += a[i] * b[j];
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "StencilOperator [" + name + ", " + Arrays.toString(derivative) + " x " + Arrays.toString(smoothing)
+                + "]";
+    }
+}
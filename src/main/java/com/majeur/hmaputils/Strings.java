@@ -40,6 +40,97 @@ public class Strings {
                     + System.lineSeparator()
                     + "Useful to create various maps such as softness map or zone maps.";
 
+    public static final String NORMALMAP_LABEL = "Compute normal map";
+    public static final String NORMALMAP_DESCR =
+            ""
+                    + "Create a tangent space normal map (normal_map.png) from the gradients of the relief map, "
+                    + "OpenGL convention (green up)."
+                    + System.lineSeparator()
+                    + "Pixel size and height scale are the world units between two pixels and of a heightmap unit.";
+
+    public static final String SLOPEMAP_LABEL = "Compute slope map";
+    public static final String SLOPEMAP_DESCR =
+            ""
+                    + "Create a 16bit slope map (slope_map.png) where black is flat and white is vertical, "
+                    + "slope in degrees being value * 90 / 65535."
+                    + System.lineSeparator()
+                    + "Pixel size and height scale are the world units between two pixels and of a heightmap unit.";
+
+    public static final String MIPMAPS_LABEL = "Generate mipmaps";
+    public static final String MIPMAPS_DESCR =
+            ""
+                    + "Also write every mip level of each map, halving its size down to a single pixel "
+                    + "(name_mip1.png, name_mip2.png...). Masks keep their class colors.";
+
+    public static final String CLI_USAGE =
+            ""
+                    + "Usage: java -jar reflex-hmaputils.jar [options] <heightmap | directory | glob>..."
+                    + System.lineSeparator()
+                    + "Directories are searched for heightmap.png and hmap.png files. Outputs are written next to "
+                    + "each heightmap unless --output is given."
+                    + System.lineSeparator()
+                    + System.lineSeparator()
+                    + "  --rg                  " + RG_LABEL + System.lineSeparator()
+                    + "  --relief              " + RELIEF_LABEL + System.lineSeparator()
+                    + "  --multiplier <value>  Relief multiplier (default 1.0)" + System.lineSeparator()
+                    + "  --rgb-mask            " + RGBM_LABEL + " (implies --relief)" + System.lineSeparator()
+                    + "  --lower <value>       RGB mask lower bound (default 0.3)" + System.lineSeparator()
+                    + "  --upper <value>       RGB mask upper bound (default 0.6)" + System.lineSeparator()
+                    + "  --auto-bounds <b,r>   Derive bounds so that b% of the map is blue and r% red (implies --rgb-mask)"
+                    + System.lineSeparator()
+                    + "  --track-mask <file>   Track mask, relative to each heightmap directory if not absolute"
+                    + System.lineSeparator()
+                    + "  --custom              " + CUSTOMMAP_LABEL + " (implies --rgb-mask)" + System.lineSeparator()
+                    + "  --colors <r,g,b,k>    Custom colors in hex (default ff0000,00ff00,0000ff,000000)"
+                    + System.lineSeparator()
+                    + "  --output <dir>        Output directory, one sub directory per heightmap if several"
+                    + System.lineSeparator()
+                    + "  --jobs <n>            Heightmaps computed concurrently (default 1)" + System.lineSeparator()
+                    + "  --parallelism <n>     Threads used by each computation (default: processor count)"
+                    + System.lineSeparator()
+                    + "  --streaming           Stream heightmaps by bands of rows, default for maps larger than the heap"
+                    + System.lineSeparator()
+                    + "  --no-streaming        Decode heightmaps at once even if they look too large"
+                    + System.lineSeparator()
+                    + "  --planes <storage>    Keep streamed heights in heap, direct or mapped (scratch file) buffers "
+                    + "instead of decoding them on each pass" + System.lineSeparator()
+                    + "  --integer-gradients   Compute relief from exact integer gradients, faster than the default"
+                    + System.lineSeparator()
+                    + "  --gradient <op>       Gradient operator: central (default), sobel or scharr"
+                    + System.lineSeparator()
+                    + "  --smooth-gradient     Smooth heights with a 3x3 binomial filter before the gradient operator"
+                    + System.lineSeparator()
+                    + "  --normal-map          " + NORMALMAP_LABEL + ", normal_map.png" + System.lineSeparator()
+                    + "  --slope-map           " + SLOPEMAP_LABEL + ", slope_map.png in degrees * 65535 / 90"
+                    + System.lineSeparator()
+                    + "  --pixel-size <units>  World units between two pixels of normal and slope maps (default 1)"
+                    + System.lineSeparator()
+                    + "  --height-scale <u>    World units of a heightmap unit for normal and slope maps (default 1)"
+                    + System.lineSeparator()
+                    + "  --compression <mode>  PNG compression: fast, default or small" + System.lineSeparator()
+                    + "  --no-cache            Always recompute gradient norm instead of reusing cached ones"
+                    + System.lineSeparator()
+                    + "  --serve <port>        Serve jobs over HTTP on 127.0.0.1 instead (POST /jobs, GET /jobs/<id>)"
+                    + System.lineSeparator()
+                    + "  --queue <n>           Jobs waiting for a --serve worker before new ones are refused (default "
+                    + JobServer.DEFAULT_QUEUE_CAPACITY + ")" + System.lineSeparator()
+                    + "  --watch               Recompute changed tiles each time the heightmap or track mask is saved"
+                    + System.lineSeparator()
+                    + "  --mipmaps             " + MIPMAPS_LABEL + ", as <map>_mip<level>.png"
+                    + System.lineSeparator()
+                    + "  --raw-size <WxH>      Size of raw 16bit heightmaps (.r16, .raw), inferred when square"
+                    + System.lineSeparator()
+                    + "  --big-endian          Raw heightmaps are big endian instead of little endian"
+                    + System.lineSeparator()
+                    + "  --raw-relief          Write the relief map as raw 16bit heights, heightmap_relief.r16 "
+                    + "(implies --relief)" + System.lineSeparator()
+                    + "  --no-report           Do not write " + RunReport.FILE_NAME + " (stage timings) next to outputs"
+                    + System.lineSeparator()
+                    + "  --help                Show this message"
+                    + System.lineSeparator()
+                    + System.lineSeparator()
+                    + "Exit code is 0 if every heightmap succeeded, 1 if any failed, 2 on invalid arguments.";
+
     public static final String[] CHECKBOX_LABELS = {RG_LABEL, RELIEF_LABEL, RGBM_LABEL, CUSTOMMAP_LABEL};
     public static final String[] CHECKBOX_DESCRS = {RG_DESCR, RELIEF_DESCR, RGBM_DESCR, CUSTOMMAP_DESCR};
 }
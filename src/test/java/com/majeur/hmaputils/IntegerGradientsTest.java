@@ -0,0 +1,114 @@
+package com.majeur.hmaputils;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Norms of {@link HeightmapMath#setIntegerGradients(boolean)} must be within one unit of the ones computed with
+ * {@link Math#hypot(double, double)}, as the exact squared norm only rounds differently when the scaled norm is very
+ * close to an integer.
+ */
+public class IntegerGradientsTest {
+
+    private static final int[][] SIZES = {{1, 1}, {1, 9}, {9, 1}, {2, 2}, {3, 5}, {37, 23}, {256, 129}};
+    private static final double[] MULTIPLIERS = {1, 0.37, 2.5};
+
+    private static final ParallelEngine PARALLEL = new ParallelEngine(3);
+
+    @AfterClass
+    public static void shutdown() {
+        PARALLEL.shutdown();
+    }
+
+    @Test
+    public void centralDifferenceMatchesGradientPlanes() {
+        for (int[] size : SIZES)
+            for (Map map : Map.values())
+                for (double multiplier : MULTIPLIERS) {
+                    short[] data = map.heights(size[0], size[1]);
+                    HeightmapMath reference = new HeightmapMath(size[0], size[1], size[0], data);
+                    reference.calculateGradients();
+                    reference.calculateGradientNorm(multiplier);
+                    for (ParallelEngine engine : new ParallelEngine[]{ParallelEngine.SEQUENTIAL, PARALLEL})
+                        for (boolean trackTiles : new boolean[]{false, true}) {
+                            short[] norm = integerNorm(data, size, GradientOperator.CENTRAL_DIFFERENCE, engine,
+                                    trackTiles, multiplier);
+                            assertWithinOneUnit(reference.gradientNorm, norm, map + " " + size[0] + "x" + size[1]
+                                    + " x" + multiplier + " tiles " + trackTiles);
+                        }
+                }
+    }
+
+    @Test
+    public void otherOperatorsMatchHypot() {
+        GradientOperator[] operators = {GradientOperator.SOBEL, GradientOperator.SCHARR,
+                GradientOperator.forName("central", true), GradientOperator.forName("scharr", true)};
+        for (GradientOperator operator : operators)
+            for (int[] size : SIZES)
+                for (Map map : Map.values()) {
+                    short[] data = map.heights(size[0], size[1]);
+                    HeightmapMath reference = new HeightmapMath(size[0], size[1], size[0], data);
+                    reference.setGradientOperator(operator);
+                    reference.calculateFusedGradientNorm(1);
+                    short[] norm = integerNorm(data, size, operator, PARALLEL, false, 1);
+                    assertWithinOneUnit(reference.gradientNorm, norm,
+                            operator.getName() + " " + map + " " + size[0] + "x" + size[1]);
+                }
+    }
+
+    private static short[] integerNorm(short[] data, int[] size, GradientOperator operator, ParallelEngine engine,
+                                       boolean trackTiles, double multiplier) {
+        HeightmapMath math = new HeightmapMath(size[0], size[1], size[0], data);
+        math.setEngine(engine);
+        math.setGradientOperator(operator);
+        math.setTrackTiles(trackTiles);
+        math.setIntegerGradients(true);
+        math.calculateFusedGradientNorm(multiplier);
+        return math.gradientNorm;
+    }
+
+    private static void assertWithinOneUnit(short[] expected, short[] actual, String message) {
+        assertTrue(message, expected.length == actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            int difference = Math.abs((expected[i] & 0xffff) - (actual[i] & 0xffff));
+            if (difference > 1)
+                fail(message + ": pixel " + i + " is " + (actual[i] & 0xffff) + " instead of " + (expected[i] & 0xffff));
+        }
+    }
+
+    private enum Map {
+        RANDOM, FLAT, PERIODIC, SMOOTH, BINARY;
+
+        short[] heights(int width, int height) {
+            Random random = new Random(width * 31 + height);
+            short[] data = new short[width * height];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++) {
+                    int value;
+                    switch (this) {
+                        case RANDOM:
+                            value = random.nextInt(65536);
+                            break;
+                        case FLAT:
+                            value = 12345;
+                            break;
+                        case PERIODIC:
+                            value = (x * 7 + y * 3) % 16 * 4000;
+                            break;
+                        case SMOOTH:
+                            value = (int) (32767 + 30000 * Math.sin(x * 0.05) * Math.cos(y * 0.07));
+                            break;
+                        default:
+                            value = random.nextBoolean() ? 65535 : 0;
+                    }
+                    data[y * width + x] = (short) value;
+                }
+            return data;
+        }
+    }
+}
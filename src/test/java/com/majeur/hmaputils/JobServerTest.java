@@ -0,0 +1,166 @@
+package com.majeur.hmaputils;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Requests to a server with a single worker and room for a single queued job, the worker being kept busy by a
+ * large heightmap.
+ */
+public class JobServerTest {
+
+    private static final int SIZE = 2048; // Noise with every output takes seconds to compute and write
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JobServer server;
+    private File heightmap;
+
+    @Before
+    public void start() throws IOException {
+        server = new JobServer(0, 1, 1, ParallelEngine.SEQUENTIAL);
+        server.start();
+        heightmap = new File(folder.getRoot(), "heightmap.r16");
+        byte[] row = new byte[SIZE * 2];
+        Random random = new Random(19);
+        try (RandomAccessFile file = new RandomAccessFile(heightmap, "rw")) {
+            for (int y = 0; y < SIZE; y++) {
+                random.nextBytes(row);
+                file.write(row);
+            }
+        }
+    }
+
+    @After
+    public void stop() {
+        server.close();
+    }
+
+    @Test
+    public void queueAndCancel() throws Exception {
+        Response running = request("POST", "/jobs", job("running"));
+        assertEquals(202, running.status);
+        String runningJob = running.location;
+        assertNotNull(runningJob);
+        waitFor(runningJob, "running"); // May already be running when the response is sent
+
+        Response queued = request("POST", "/jobs", job("queued"));
+        assertEquals(202, queued.status);
+        assertEquals("/jobs/" + queued.json.get("id"), queued.location);
+        assertEquals("queued", request("GET", queued.location, null).json.get("status"));
+
+        Response rejected = request("POST", "/jobs", job("rejected"));
+        assertEquals(429, rejected.status);
+        assertNotNull(rejected.retryAfter);
+        assertNotNull(rejected.json.get("error"));
+
+        Response cancelled = request("DELETE", queued.location, null);
+        assertEquals(202, cancelled.status);
+        assertEquals("cancelled", cancelled.json.get("status"));
+        assertEquals("cancelled", request("GET", queued.location, null).json.get("status"));
+        assertEquals(409, request("DELETE", queued.location, null).status);
+        assertEquals("running", request("GET", runningJob, null).json.get("status"));
+
+        assertEquals(202, request("DELETE", runningJob, null).status);
+        waitFor(runningJob, "cancelled");
+        assertEquals(409, request("DELETE", runningJob, null).status);
+    }
+
+    @Test
+    public void badRequests() throws Exception {
+        Response invalid = request("POST", "/jobs", "{\"source\": ");
+        assertEquals(400, invalid.status);
+        assertNotNull(invalid.json.get("error"));
+        assertEquals(400, request("POST", "/jobs", "[1, 2]").status);
+        assertEquals(400, request("POST", "/jobs", "{\"relief\": true}").status);
+        assertEquals(400, request("POST", "/jobs", "{\"source\": \"h.png\"}").status);
+        assertEquals(404, request("GET", "/jobs/42", null).status);
+    }
+
+    @Test
+    public void endedJobs() throws Exception {
+        heightmap = new File(folder.getRoot(), "missing.png");
+        Response failing = request("POST", "/jobs", job("failing"));
+        assertEquals(202, failing.status);
+        waitFor(failing.location, "failed");
+        assertEquals(409, request("DELETE", failing.location, null).status);
+    }
+
+    @SuppressWarnings("unchecked")
+    private String job(String output) {
+        JSONObject json = new JSONObject();
+        json.put("source", heightmap.getPath());
+        json.put("output", new File(folder.getRoot(), output).getPath());
+        json.put("rg", true);
+        json.put("custom", true);
+        json.put("mipmaps", true);
+        json.put("normalMap", true);
+        json.put("slopeMap", true);
+        return json.toJSONString();
+    }
+
+    private void waitFor(String job, String status) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!status.equals(request("GET", job, null).json.get("status"))) {
+            assertTrue(job + " is not " + status, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private Response request(String method, String path, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        Response response = new Response();
+        response.status = connection.getResponseCode();
+        response.location = connection.getHeaderField("Location");
+        response.retryAfter = connection.getHeaderField("Retry-After");
+        try (InputStream in = response.status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) > 0; )
+                bytes.write(buffer, 0, read);
+            response.json = (JSONObject) new JSONParser().parse(bytes.toString("UTF-8"));
+        } catch (ParseException e) {
+            throw new IOException(e);
+        } finally {
+            connection.disconnect();
+        }
+        return response;
+    }
+
+    private static class Response {
+
+        int status;
+        String location, retryAfter;
+        JSONObject json;
+    }
+}
@@ -0,0 +1,112 @@
+package com.majeur.hmaputils;
+
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Written files must decode with ImageIO into the pixels they were written from, whatever the number of compressed
+ * blocks and IDAT chunks, profile and threads.
+ */
+public class PngRowWriterTest {
+
+    // Single pixel, and several 512K blocks in every format with rows repeating across block boundaries
+    private static final int[][] SIZES = {{1, 1}, {613, 997}, {1, 3001}};
+
+    private static final ParallelEngine PARALLEL = new ParallelEngine(3);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @AfterClass
+    public static void shutdown() {
+        PARALLEL.shutdown();
+    }
+
+    @Test
+    public void gray16() throws IOException {
+        roundTrip(BufferedImage.TYPE_USHORT_GRAY);
+    }
+
+    @Test
+    public void rgb8() throws IOException {
+        roundTrip(BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Test
+    public void argb8() throws IOException {
+        roundTrip(BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private void roundTrip(int type) throws IOException {
+        for (int[] size : SIZES) {
+            BufferedImage image = image(size[0], size[1], type);
+            for (PngRowWriter.Profile profile : PngRowWriter.Profile.values())
+                for (ParallelEngine engine : new ParallelEngine[]{ParallelEngine.SEQUENTIAL, PARALLEL}) {
+                    String name = type + " " + size[0] + "x" + size[1] + " " + profile + " "
+                            + engine.getParallelism() + " threads";
+                    File file = folder.newFile();
+                    assertTrue(name, PngRowWriter.write(image, file, profile, engine));
+                    BufferedImage decoded = ImageIO.read(file);
+                    assertEquals(name, image.getWidth(), decoded.getWidth());
+                    assertEquals(name, image.getHeight(), decoded.getHeight());
+                    if (type == BufferedImage.TYPE_USHORT_GRAY) {
+                        int[] expected = image.getRaster().getSamples(0, 0, size[0], size[1], 0, (int[]) null);
+                        int[] actual = decoded.getRaster().getSamples(0, 0, size[0], size[1], 0, (int[]) null);
+                        assertEquals(name, 1, decoded.getRaster().getNumBands());
+                        assertEquals(name, 16, decoded.getColorModel().getComponentSize(0));
+                        assertArrayEquals(name, expected, actual);
+                    } else {
+                        assertEquals(name, type == BufferedImage.TYPE_INT_ARGB, decoded.getColorModel().hasAlpha());
+                        assertArrayEquals(name, image.getRGB(0, 0, size[0], size[1], null, 0, size[0]),
+                                decoded.getRGB(0, 0, size[0], size[1], null, 0, size[0]));
+                    }
+                }
+        }
+    }
+
+    /**
+     * Smooth areas, noise and rows repeating a few hundred rows later, so that filters are mixed and compressed
+     * blocks refer to data of the blocks before them.
+     */
+    private static BufferedImage image(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(width * 31L + height);
+        int[] values = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (y >= 300 && y % 7 == 0)
+                    values[i] = values[i - 300 * width];
+                else if ((x / 64 + y / 64) % 3 == 0)
+                    values[i] = random.nextInt();
+                else
+                    values[i] = x * 97 + y * 13 | (x ^ y) << 16 | (y & 0xff) << 24;
+            }
+        }
+        if (type == BufferedImage.TYPE_USHORT_GRAY) {
+            short[] data = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < data.length; i++)
+                data[i] = (short) values[i];
+        } else {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int mask = type == BufferedImage.TYPE_INT_ARGB ? 0xffffffff : 0xffffff;
+            for (int i = 0; i < data.length; i++)
+                data[i] = values[i] & mask;
+        }
+        return image;
+    }
+}
@@ -0,0 +1,112 @@
+package com.majeur.hmaputils;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Readers must give the colors {@link BufferedImage#getRGB(int, int)} gives, whatever the layout of the raster.
+ */
+public class RgbRowReaderTest {
+
+    private static final int WIDTH = 67, HEIGHT = 41;
+
+    @Test
+    public void threeByteBgr() {
+        check(image(BufferedImage.TYPE_3BYTE_BGR), "InterleavedBytes");
+    }
+
+    @Test
+    public void fourByteAbgr() {
+        check(image(BufferedImage.TYPE_4BYTE_ABGR), "InterleavedBytes");
+    }
+
+    @Test
+    public void intRgb() {
+        check(image(BufferedImage.TYPE_INT_RGB), "PackedInts");
+    }
+
+    @Test
+    public void intArgb() {
+        check(image(BufferedImage.TYPE_INT_ARGB), "PackedInts");
+    }
+
+    @Test
+    public void indexed() {
+        check(image(BufferedImage.TYPE_BYTE_INDEXED), "LookupTable");
+    }
+
+    @Test
+    public void gray() {
+        check(image(BufferedImage.TYPE_BYTE_GRAY), "LookupTable");
+        check(image(BufferedImage.TYPE_USHORT_GRAY), "LookupTable");
+    }
+
+    @Test
+    public void otherLayouts() {
+        check(image(BufferedImage.TYPE_INT_BGR), "Fallback");
+        check(image(BufferedImage.TYPE_USHORT_565_RGB), "Fallback");
+        check(image(BufferedImage.TYPE_INT_ARGB_PRE), "Fallback");
+    }
+
+    @Test
+    public void subImages() {
+        int[] types = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_BYTE_INDEXED, BufferedImage.TYPE_INT_BGR};
+        for (int type : types)
+            check(image(type).getSubimage(5, 3, WIDTH - 9, HEIGHT - 7), null);
+    }
+
+    @Test
+    public void layoutsGiveSameColors() {
+        int[] expected = read(image(BufferedImage.TYPE_INT_ARGB), 0, HEIGHT);
+        assertArrayEquals(expected, read(image(BufferedImage.TYPE_4BYTE_ABGR), 0, HEIGHT));
+        int[] opaque = read(image(BufferedImage.TYPE_INT_RGB), 0, HEIGHT);
+        assertArrayEquals(opaque, read(image(BufferedImage.TYPE_3BYTE_BGR), 0, HEIGHT));
+    }
+
+    /**
+     * Same pixels in every layout, as exactly as the layout can store them.
+     */
+    private static BufferedImage image(int type) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        Random random = new Random(7);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                image.setRGB(x, y, random.nextInt());
+        return image;
+    }
+
+    /**
+     * Compares rows read whole, in bands and at an offset in the destination with getRGB().
+     *
+     * @param reader Simple name of the reader the image must get, null for any.
+     */
+    private static void check(BufferedImage image, String reader) {
+        if (reader != null)
+            assertEquals(reader, RgbRowReader.forImage(image).getClass().getSimpleName());
+        int width = image.getWidth(), height = image.getHeight();
+        int[] expected = image.getRGB(0, 0, width, height, null, 0, width);
+        assertArrayEquals(expected, read(image, 0, height));
+
+        RgbRowReader rows = RgbRowReader.forImage(image);
+        int offset = 3;
+        for (int y = 0; y < height; y += 4) {
+            int count = Math.min(4, height - y);
+            int[] band = new int[offset + count * width];
+            rows.readRows(y, count, band, offset);
+            for (int i = 0; i < count * width; i++)
+                assertEquals("pixel " + (i % width) + ", " + (y + i / width), expected[y * width + i], band[offset + i]);
+        }
+    }
+
+    private static int[] read(BufferedImage image, int y, int rows) {
+        int[] dst = new int[rows * image.getWidth()];
+        RgbRowReader.forImage(image).readRows(y, rows, dst, 0);
+        return dst;
+    }
+}
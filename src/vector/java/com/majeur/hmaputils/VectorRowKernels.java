@@ -0,0 +1,141 @@
+package com.majeur.hmaputils;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link RowKernels} on the incubating Vector API, loaded by {@link RowKernels#vector()}. Branches become
+ * lane compares and blends, columns not filling a whole vector and stencil borders go through scalar code.
+ * Results are identical to scalar kernels.
+ * <p>
+ * Only the integer gradient norm is vectorized, the default norm stays scalar as a vector hypot would not round
+ * like {@link Math#hypot(double, double)}. The integer norm needs short vectors with as many lanes as preferred
+ * double vectors, which 128 bits hardware does not have: it then stays scalar too, other kernels are still
+ * vectorized.
+ */
+public class VectorRowKernels extends RowKernels {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORTS = shorts(INTS.length());
+
+    // Null when the norm kernel is not supported
+    private static final NormSpecies NORM = NormSpecies.create();
+
+    /**
+     * Norm kernel works in doubles, narrower int and short species have as many lanes.
+     */
+    private static class NormSpecies {
+
+        final VectorSpecies<Double> doubles = DoubleVector.SPECIES_PREFERRED;
+        final VectorSpecies<Integer> ints =
+                VectorSpecies.of(int.class, VectorShape.forBitSize(doubles.length() * Integer.SIZE));
+        final VectorSpecies<Short> shorts = shorts(doubles.length());
+
+        static NormSpecies create() {
+            try {
+                NormSpecies species = new NormSpecies();
+                IntVector.zero(species.ints);
+                ShortVector.zero(species.shorts);
+                return species;
+            } catch (IllegalArgumentException | UnsupportedOperationException e) {
+                return null; // Shape too narrow
+            }
+        }
+    }
+
+    private static VectorSpecies<Short> shorts(int lanes) {
+        return VectorSpecies.of(short.class, VectorShape.forBitSize(lanes * Short.SIZE));
+    }
+
+    public VectorRowKernels() {
+        // Fails here, and falls back to scalar kernels, if a shape is not supported
+        IntVector.zero(INTS);
+        ShortVector.zero(SHORTS);
+    }
+
+    @Override
+    public String getName() {
+        return "vector (" + INTS.vectorBitSize() + " bits" + (NORM == null ? ", scalar norm)" : ")");
+    }
+
+    private static IntVector unsigned(short[] src, int off) {
+        return ((IntVector) ShortVector.fromArray(SHORTS, src, off).convertShape(VectorOperators.S2I, INTS, 0))
+                .and(0xffff);
+    }
+
+    private static IntVector unsignedNarrow(short[] src, int off) {
+        return ((IntVector) ShortVector.fromArray(NORM.shorts, src, off).convertShape(VectorOperators.S2I, NORM.ints, 0))
+                .and(0xffff);
+    }
+
+    @Override
+    public void rgRow(short[] src, int srcOff, int[] dst, int dstOff, int width) {
+        int j = 1; // First pixel is left untouched
+        for (int bound = 1 + INTS.loopBound(width - 1); j < bound; j += INTS.length())
+            unsigned(src, srcOff + j).lanewise(VectorOperators.LSHL, 8).intoArray(dst, dstOff + j);
+        for (; j < width; ++j)
+            dst[dstOff + j] = (src[srcOff + j] & 0xffff) << 8;
+    }
+
+    @Override
+    public void integerNormRow(short[] src, int prev, int row, int next, boolean edgeRow, int width,
+                               double scale, short[] dst, int dstOff) {
+        if (width < 3 || NORM == null) {
+            super.integerNormRow(src, prev, row, next, edgeRow, width, scale, dst, dstOff);
+            return;
+        }
+        // Inner columns use central differences, doubled differences only happen on rows
+        integerNormRange(src, prev, row, next, edgeRow, width, 0, 1, scale, dst, dstOff);
+        int rowFactor = edgeRow ? 2 : 1;
+        int j = 1;
+        VectorSpecies<Double> doubles = NORM.doubles;
+        for (int bound = 1 + doubles.loopBound(width - 2); j < bound; j += doubles.length()) {
+            IntVector dx = unsignedNarrow(src, next + j).sub(unsignedNarrow(src, prev + j)).mul(rowFactor);
+            IntVector dy = unsignedNarrow(src, row + j + 1).sub(unsignedNarrow(src, row + j - 1));
+            DoubleVector x = (DoubleVector) dx.convertShape(VectorOperators.I2D, doubles, 0);
+            DoubleVector y = (DoubleVector) dy.convertShape(VectorOperators.I2D, doubles, 0);
+            // Squares are below 2^35, exact in doubles, so the square root is the scalar one
+            DoubleVector norm = x.mul(x).add(y.mul(y)).lanewise(VectorOperators.SQRT).mul(scale)
+                    .min(HeightmapMath.USHORT_MAX_VALUE);
+            ((ShortVector) norm.convertShape(VectorOperators.D2I, NORM.ints, 0)
+                    .convertShape(VectorOperators.I2S, NORM.shorts, 0))
+                    .intoArray(dst, dstOff + j);
+        }
+        integerNormRange(src, prev, row, next, edgeRow, width, j, width, scale, dst, dstOff);
+    }
+
+    @Override
+    public void rgbMaskRow(short[] norm, int normOff, int[] dst, int dstOff, int width, int low, int up) {
+        IntVector green = IntVector.broadcast(INTS, 0x0000ff00);
+        IntVector red = IntVector.broadcast(INTS, 0x00ff0000);
+        IntVector blue = IntVector.broadcast(INTS, 0x000000ff);
+        int x = 0;
+        for (int bound = INTS.loopBound(width); x < bound; x += INTS.length()) {
+            IntVector val = unsigned(norm, normOff + x);
+            VectorMask<Integer> belowUp = val.compare(VectorOperators.LT, up);
+            VectorMask<Integer> belowLow = val.compare(VectorOperators.LT, low);
+            blue.blend(red, belowUp).blend(green, belowLow).intoArray(dst, dstOff + x);
+        }
+        super.rgbMaskRow(norm, normOff + x, dst, dstOff + x, width - x, low, up);
+    }
+
+    @Override
+    public void alterRgbMaskRow(int[] src, int srcOff, int[] dst, int dstOff, int width,
+                                int red, int green, int blue, int black) {
+        IntVector others = IntVector.broadcast(INTS, black);
+        int x = 0;
+        for (int bound = INTS.loopBound(width); x < bound; x += INTS.length()) {
+            IntVector val = IntVector.fromArray(INTS, src, srcOff + x);
+            others.blend(red, val.compare(VectorOperators.EQ, 0x00ff0000))
+                    .blend(green, val.compare(VectorOperators.EQ, 0x0000ff00))
+                    .blend(blue, val.compare(VectorOperators.EQ, 0x000000ff))
+                    .intoArray(dst, dstOff + x);
+        }
+        super.alterRgbMaskRow(src, srcOff + x, dst, dstOff + x, width - x, red, green, blue, black);
+    }
+}